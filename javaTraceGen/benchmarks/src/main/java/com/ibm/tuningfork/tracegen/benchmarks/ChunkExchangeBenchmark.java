@@ -0,0 +1,106 @@
+/*
+ * This file is part of the Tuning Fork Visualization Platform
+ *  (http://sourceforge.net/projects/tuningforkvp)
+ *
+ * Copyright (c) 2005 - 2008 IBM Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ */
+
+package com.ibm.tuningfork.tracegen.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ibm.tuningfork.tracegen.ILogger;
+import com.ibm.tuningfork.tracegen.LoggerFactory;
+import com.ibm.tuningfork.tracegen.LoggerOptions;
+import com.ibm.tuningfork.tracegen.impl.AbstractFeedlet;
+import com.ibm.tuningfork.tracegen.types.EventType;
+import com.ibm.tuningfork.tracegen.types.EventTypeSpaceVersion;
+import com.ibm.tuningfork.tracegen.types.ScalarType;
+
+/**
+ * The throughput of the exchange of event chunks between feedlets and the
+ * logger. Each thread has a feedlet of its own and flushes it after every
+ * event, so each operation takes an empty chunk from the ready queue and
+ * hands it to the full queue, from which the logger writes it and recycles
+ * it. Run the class itself, rather than through the benchmarks jar, to
+ * measure it with 1, 2, 4 and so on up to 128 threads:
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar \
+ *     com.ibm.tuningfork.tracegen.benchmarks.ChunkExchangeBenchmark
+ * </pre>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChunkExchangeBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class ExchangeState {
+	public ILogger logger;
+	public EventType longET;
+	private File file;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+	    file = File.createTempFile("benchmark", ".trace");
+	    logger = LoggerFactory.makeFileLogger(file,
+		    new EventTypeSpaceVersion[0], true, new LoggerOptions());
+	    longET = new EventType("Long", "A long", LoggerState
+		    .attribute(ScalarType.LONG));
+	    logger.addEventType(longET);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+	    logger.close();
+	    file.delete();
+	}
+    }
+
+    @State(Scope.Thread)
+    public static class FeedletState {
+	public AbstractFeedlet feedlet;
+	public long value = 0;
+
+	@Setup(Level.Trial)
+	public void setUp(ExchangeState state) {
+	    feedlet = (AbstractFeedlet) state.logger.makeFeedlet(Thread
+		    .currentThread().getName(), "Benchmark thread");
+	}
+    }
+
+    @Benchmark
+    public void exchange(ExchangeState state, FeedletState f) {
+	f.feedlet.addEvent(state.longET, f.value++);
+	f.feedlet.flush();
+    }
+
+    public static void main(String[] args) throws Exception {
+	Scaling.run(ChunkExchangeBenchmark.class, 128, args);
+    }
+}
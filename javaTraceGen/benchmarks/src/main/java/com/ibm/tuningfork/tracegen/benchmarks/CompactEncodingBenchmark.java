@@ -0,0 +1,125 @@
+/*
+ * This file is part of the Tuning Fork Visualization Platform
+ *  (http://sourceforge.net/projects/tuningforkvp)
+ *
+ * Copyright (c) 2005 - 2008 IBM Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ */
+
+package com.ibm.tuningfork.tracegen.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ibm.tuningfork.tracegen.chunk.CompactEventChunk;
+import com.ibm.tuningfork.tracegen.chunk.EventChunk;
+import com.ibm.tuningfork.tracegen.types.EventAttribute;
+import com.ibm.tuningfork.tracegen.types.EventType;
+import com.ibm.tuningfork.tracegen.types.ScalarType;
+
+/**
+ * The size and speed of the standard event encoding against the compact one,
+ * which stores timestamps as deltas and type indices and values as varints.
+ * Events are encoded straight into a chunk, which is reset whenever it fills.
+ * The score is events per microsecond. The bytes counter is the encoded
+ * chunks, headers included, in bytes per microsecond, so dividing it by the
+ * score gives the bytes per event.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompactEncodingBenchmark {
+
+    @State(Scope.Thread)
+    public static class ChunkState {
+	@Param( { "standard", "compact" })
+	public String encoding;
+
+	public EventChunk chunk;
+	public EventType startET;
+	public EventType stopET;
+	public EventType intET;
+	public EventType longET;
+	public int value = 0;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+	    chunk = encoding.equals("compact") ? new CompactEventChunk(false)
+		    : new EventChunk(false);
+	    chunk.reset(0, 0);
+	    startET = new EventType("Start", "A timer started",
+		    new EventAttribute[0]);
+	    stopET = new EventType("Stop", "A timer stopped",
+		    new EventAttribute[0]);
+	    intET = new EventType("Int", "An int", LoggerState
+		    .attribute(ScalarType.INT));
+	    longET = new EventType("Long", "A long", LoggerState
+		    .attribute(ScalarType.LONG));
+	}
+    }
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Encoded {
+	public long bytes;
+
+	@Setup(Level.Iteration)
+	public void clear() {
+	    bytes = 0;
+	}
+
+	/* Count the full chunk and start it afresh */
+	void full(EventChunk chunk) {
+	    bytes += chunk.getSize();
+	    chunk.reset(0, 0);
+	}
+    }
+
+    /* One event of a timer start and stop pair, which carry no attributes */
+    @Benchmark
+    public void timer(ChunkState s, Encoded encoded) {
+	EventType et = (s.value++ & 1) == 0 ? s.startET : s.stopET;
+	while (!s.chunk.addEvent(System.nanoTime(), et)) {
+	    encoded.full(s.chunk);
+	}
+    }
+
+    /* A small counter, which a varint holds in a byte or two */
+    @Benchmark
+    public void smallInt(ChunkState s, Encoded encoded) {
+	while (!s.chunk.addEvent(System.nanoTime(), s.intET,
+		s.value++ & 0x3fff)) {
+	    encoded.full(s.chunk);
+	}
+    }
+
+    /* A long spread over its whole range, the worst case for a varint */
+    @Benchmark
+    public void wideLong(ChunkState s, Encoded encoded) {
+	long v = (long) s.value++ * 0x9e3779b97f4a7c15L;
+	while (!s.chunk.addEvent(System.nanoTime(), s.longET, v)) {
+	    encoded.full(s.chunk);
+	}
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * This file is part of the Tuning Fork Visualization Platform
+ *  (http://sourceforge.net/projects/tuningforkvp)
+ *
+ * Copyright (c) 2005 - 2008 IBM Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ */
+
+package com.ibm.tuningfork.tracegen.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ibm.tuningfork.tracegen.chunk.CompactEventChunk;
+import com.ibm.tuningfork.tracegen.chunk.CompressedChunk;
+import com.ibm.tuningfork.tracegen.chunk.EventChunk;
+import com.ibm.tuningfork.tracegen.types.EventAttribute;
+import com.ibm.tuningfork.tracegen.types.EventType;
+import com.ibm.tuningfork.tracegen.types.ScalarType;
+
+/**
+ * The ratio and cost of compressing an event chunk as the logger does before
+ * writing it. The chunk is filled once with timer start and stop events and
+ * value events, a few hundred nanoseconds apart, and each operation deflates
+ * the whole chunk into a container, so the score is chunks per millisecond.
+ * The in and out counters are the bytes before and after compression per
+ * millisecond: in is the compression speed in kB/s and in divided by out is
+ * the ratio. A chunk that would not shrink
+ * counts as written uncompressed. The encoding parameter shows how much of
+ * the gain the compact encoding already takes.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+
+    @State(Scope.Thread)
+    public static class ChunkState {
+	@Param( { "1", "6" })
+	public int level;
+
+	@Param( { "standard", "compact" })
+	public String encoding;
+
+	public EventChunk chunk;
+	public CompressedChunk container;
+	public Deflater deflater;
+	public byte[] scratch = new byte[EventChunk.DEFAULT_EVENT_CHUNK_SIZE];
+
+	@Setup(Level.Trial)
+	public void setUp() {
+	    chunk = encoding.equals("compact") ? new CompactEventChunk(false)
+		    : new EventChunk(false);
+	    chunk.reset(0, 0);
+	    EventType startET = new EventType("Start", "A timer started",
+		    new EventAttribute[0]);
+	    EventType stopET = new EventType("Stop", "A timer stopped",
+		    new EventAttribute[0]);
+	    EventType valueET = new EventType("Value", "A value",
+		    LoggerState.attribute(ScalarType.LONG));
+	    // The same events every trial, so that the ratios compare
+	    Random random = new Random(42);
+	    long time = 1000000000L;
+	    long value = 0;
+	    boolean full = false;
+	    while (!full) {
+		time += 50 + random.nextInt(450);
+		full = !chunk.addEvent(time, startET);
+		time += 50 + random.nextInt(450);
+		full = full || !chunk.addEvent(time, valueET, value++);
+		time += 50 + random.nextInt(450);
+		full = full || !chunk.addEvent(time, stopET);
+	    }
+	    chunk.close();
+	    container = new CompressedChunk(EventChunk.DEFAULT_EVENT_CHUNK_SIZE);
+	    deflater = new Deflater(level);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+	    deflater.end();
+	}
+    }
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Bytes {
+	public long in;
+	public long out;
+
+	@Setup(Level.Iteration)
+	public void clear() {
+	    in = 0;
+	    out = 0;
+	}
+    }
+
+    @Benchmark
+    public boolean compress(ChunkState s, Bytes bytes) {
+	int length = s.chunk.getSize();
+	s.container.reset();
+	boolean compressed = s.container.compress(s.chunk, s.deflater,
+		s.scratch);
+	bytes.in += length;
+	bytes.out += compressed ? s.container.getByteBuffer().remaining()
+		: length;
+	return compressed;
+    }
+}
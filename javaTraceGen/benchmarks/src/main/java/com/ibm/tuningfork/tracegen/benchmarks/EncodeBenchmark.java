@@ -0,0 +1,124 @@
+/*
+ * This file is part of the Tuning Fork Visualization Platform
+ *  (http://sourceforge.net/projects/tuningforkvp)
+ *
+ * Copyright (c) 2005 - 2008 IBM Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ */
+
+package com.ibm.tuningfork.tracegen.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ibm.tuningfork.tracegen.chunk.EventChunk;
+import com.ibm.tuningfork.tracegen.types.EventAttribute;
+import com.ibm.tuningfork.tracegen.types.EventType;
+import com.ibm.tuningfork.tracegen.types.ScalarType;
+
+/**
+ * The cost of encoding an event into an event chunk, with no logger, feedlet
+ * or output involved. The chunk is reset whenever it fills. The storage
+ * parameter chooses a chunk over a byte array on the heap or over a direct
+ * buffer off it; run with -prof gc to compare the garbage each makes.
+ * FileWriteBenchmark compares the two for a whole logger, whose chunks live
+ * as long as it does.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncodeBenchmark {
+
+    @State(Scope.Thread)
+    public static class ChunkState {
+	@Param( { "heap", "direct" })
+	public String storage;
+
+	public EventChunk chunk;
+	public EventType longET;
+	public EventType doubleET;
+	public EventType stringET;
+	public EventType arraysET;
+	public int[] ints = new int[] { 1 };
+	public long[] longs = new long[] { 2 };
+	public double[] doubles = new double[] { 3.0 };
+	public String[] strings = new String[] { "four" };
+	public long value = 0;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+	    int size = EventChunk.DEFAULT_EVENT_CHUNK_SIZE;
+	    ByteBuffer buffer = storage.equals("direct") ? ByteBuffer
+		    .allocateDirect(size) : ByteBuffer.allocate(size);
+	    chunk = new EventChunk(false, buffer);
+	    chunk.reset(0, 0);
+	    longET = new EventType("Long", "A long", LoggerState
+		    .attribute(ScalarType.LONG));
+	    doubleET = new EventType("Double", "A double", LoggerState
+		    .attribute(ScalarType.DOUBLE));
+	    stringET = new EventType("String", "A String", LoggerState
+		    .attribute(ScalarType.STRING));
+	    arraysET = new EventType("Arrays", "One attribute of each type",
+		    new EventAttribute[] { LoggerState.attribute(ScalarType.INT),
+			    LoggerState.attribute(ScalarType.LONG),
+			    LoggerState.attribute(ScalarType.DOUBLE),
+			    LoggerState.attribute(ScalarType.STRING) });
+	}
+
+	/* Start the chunk afresh once an event did not fit */
+	void full() {
+	    chunk.reset(0, 0);
+	}
+    }
+
+    @Benchmark
+    public void encodeLong(ChunkState s) {
+	while (!s.chunk.addEvent(System.nanoTime(), s.longET, s.value++)) {
+	    s.full();
+	}
+    }
+
+    @Benchmark
+    public void encodeDouble(ChunkState s) {
+	while (!s.chunk.addEvent(System.nanoTime(), s.doubleET,
+		(double) s.value++)) {
+	    s.full();
+	}
+    }
+
+    @Benchmark
+    public void encodeString(ChunkState s) {
+	while (!s.chunk.addEvent(System.nanoTime(), s.stringET, "benchmark")) {
+	    s.full();
+	}
+    }
+
+    @Benchmark
+    public void encodeArrays(ChunkState s) {
+	while (!s.chunk.addEvent(System.nanoTime(), s.arraysET, s.ints,
+		s.longs, s.doubles, s.strings)) {
+	    s.full();
+	}
+    }
+}
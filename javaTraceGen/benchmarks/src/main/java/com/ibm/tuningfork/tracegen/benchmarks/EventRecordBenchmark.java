@@ -0,0 +1,103 @@
+/*
+ * This file is part of the Tuning Fork Visualization Platform
+ *  (http://sourceforge.net/projects/tuningforkvp)
+ *
+ * Copyright (c) 2005 - 2008 IBM Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ */
+
+package com.ibm.tuningfork.tracegen.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ibm.tuningfork.tracegen.IFeedlet;
+import com.ibm.tuningfork.tracegen.types.EventAttribute;
+import com.ibm.tuningfork.tracegen.types.EventRecord;
+import com.ibm.tuningfork.tracegen.types.EventType;
+import com.ibm.tuningfork.tracegen.types.ScalarType;
+
+/**
+ * Adding an event of two ints, two longs and a double through a reused
+ * EventRecord, against passing arrays made for each event as callers did
+ * before records. Run with -prof gc to see the bytes allocated per event,
+ * which is where the two differ.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventRecordBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class TypeState {
+	public EventType eventType;
+
+	@Setup(Level.Trial)
+	public void setUp(LoggerState state) {
+	    eventType = new EventType("Record", "Two ints, two longs, a double",
+		    new EventAttribute[] {
+			    new EventAttribute("Int 0", "An int", ScalarType.INT),
+			    new EventAttribute("Int 1", "An int", ScalarType.INT),
+			    new EventAttribute("Long 0", "A long",
+				    ScalarType.LONG),
+			    new EventAttribute("Long 1", "A long",
+				    ScalarType.LONG),
+			    new EventAttribute("Double", "A double",
+				    ScalarType.DOUBLE) });
+	    state.logger.addEventType(eventType);
+	}
+    }
+
+    @State(Scope.Thread)
+    public static class FeedletState {
+	public IFeedlet feedlet;
+	public EventRecord record;
+	public int value = 0;
+
+	@Setup(Level.Trial)
+	public void setUp(LoggerState state, TypeState type) {
+	    feedlet = state.logger.makeFeedlet(Thread.currentThread()
+		    .getName(), "Benchmark thread");
+	    feedlet.bindToCurrentThread();
+	    record = new EventRecord(type.eventType);
+	}
+    }
+
+    @Benchmark
+    public void arrays(TypeState type, FeedletState f) {
+	int v = f.value++;
+	f.feedlet.addEvent(type.eventType, new int[] { v, v + 1 },
+		new long[] { v + 2, v + 3 }, new double[] { v + 4 }, null);
+    }
+
+    @Benchmark
+    public void record(FeedletState f) {
+	int v = f.value++;
+	EventRecord record = f.record;
+	record.setInt(0, v);
+	record.setInt(1, v + 1);
+	record.setLong(0, v + 2);
+	record.setLong(1, v + 3);
+	record.setDouble(0, v + 4);
+	f.feedlet.addEvent(record);
+    }
+}
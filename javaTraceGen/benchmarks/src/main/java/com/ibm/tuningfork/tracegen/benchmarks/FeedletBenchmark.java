@@ -0,0 +1,93 @@
+/*
+ * This file is part of the Tuning Fork Visualization Platform
+ *  (http://sourceforge.net/projects/tuningforkvp)
+ *
+ * Copyright (c) 2005 - 2008 IBM Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ */
+
+package com.ibm.tuningfork.tracegen.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ibm.tuningfork.tracegen.IFeedlet;
+
+/**
+ * The cost of adding an event through each of the addEvent overloads of a
+ * feedlet owned by the calling thread. Run with -t to vary the number of
+ * threads, each with a feedlet of its own, and with -prof gc for the bytes
+ * allocated per event.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FeedletBenchmark {
+
+    @State(Scope.Thread)
+    public static class FeedletState {
+	public IFeedlet feedlet;
+	public int[] ints = new int[] { 1 };
+	public long[] longs = new long[] { 2 };
+	public double[] doubles = new double[] { 3.0 };
+	public String[] strings = new String[] { "four" };
+	public long value = 0;
+
+	@Setup(Level.Trial)
+	public void setUp(LoggerState state) {
+	    feedlet = state.logger.makeFeedlet(Thread.currentThread()
+		    .getName(), "Benchmark thread");
+	    feedlet.bindToCurrentThread();
+	}
+    }
+
+    @Benchmark
+    public void addEvent(LoggerState state, FeedletState f) {
+	f.feedlet.addEvent(state.noneET);
+    }
+
+    @Benchmark
+    public void addEventInt(LoggerState state, FeedletState f) {
+	f.feedlet.addEvent(state.intET, (int) f.value++);
+    }
+
+    @Benchmark
+    public void addEventLong(LoggerState state, FeedletState f) {
+	f.feedlet.addEvent(state.longET, f.value++);
+    }
+
+    @Benchmark
+    public void addEventDouble(LoggerState state, FeedletState f) {
+	f.feedlet.addEvent(state.doubleET, (double) f.value++);
+    }
+
+    @Benchmark
+    public void addEventString(LoggerState state, FeedletState f) {
+	f.feedlet.addEvent(state.stringET, "benchmark");
+    }
+
+    @Benchmark
+    public void addEventArrays(LoggerState state, FeedletState f) {
+	f.feedlet.addEvent(state.arraysET, f.ints, f.longs, f.doubles,
+		f.strings);
+    }
+}
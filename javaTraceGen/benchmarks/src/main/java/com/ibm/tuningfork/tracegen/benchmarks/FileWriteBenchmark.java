@@ -0,0 +1,130 @@
+/*
+ * This file is part of the Tuning Fork Visualization Platform
+ *  (http://sourceforge.net/projects/tuningforkvp)
+ *
+ * Copyright (c) 2005 - 2008 IBM Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ */
+
+package com.ibm.tuningfork.tracegen.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ibm.tuningfork.tracegen.IFeedlet;
+import com.ibm.tuningfork.tracegen.ILogger;
+import com.ibm.tuningfork.tracegen.LoggerFactory;
+import com.ibm.tuningfork.tracegen.LoggerOptions;
+import com.ibm.tuningfork.tracegen.types.EventAttribute;
+import com.ibm.tuningfork.tracegen.types.EventRecord;
+import com.ibm.tuningfork.tracegen.types.EventType;
+import com.ibm.tuningfork.tracegen.types.EventTypeSpaceVersion;
+import com.ibm.tuningfork.tracegen.types.ScalarType;
+
+/**
+ * The rate at which a file logger writes a trace. Threads add events as fast
+ * as they can under the BLOCK overflow policy, so once the chunks are used
+ * up they add events only as fast as the logger writes them. The bytes
+ * counter is the event data written, in bytes per microsecond, which is
+ * MB/s. The offHeap parameter chooses between event chunks on the heap and
+ * in direct buffers, which the file channel writes without a copy.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileWriteBenchmark {
+
+    // Eight longs, so that an event is 76 bytes in a chunk
+    private static final int LONGS = 8;
+    private static final int EVENT_SIZE = 8 + 4 + LONGS * 8;
+
+    @State(Scope.Benchmark)
+    public static class WriterState {
+	@Param( { "false", "true" })
+	public boolean offHeap;
+
+	public ILogger logger;
+	public EventType eventType;
+	private File file;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+	    LoggerOptions options = new LoggerOptions();
+	    options.setOffHeapEventChunks(offHeap);
+	    options.setOverflowPolicy(LoggerOptions.BLOCK);
+	    file = File.createTempFile("benchmark", ".trace");
+	    logger = LoggerFactory.makeFileLogger(file,
+		    new EventTypeSpaceVersion[0], true, options);
+	    EventAttribute[] attributes = new EventAttribute[LONGS];
+	    for (int i = 0; i < LONGS; i++) {
+		attributes[i] = new EventAttribute("Long " + i, "A long",
+			ScalarType.LONG);
+	    }
+	    eventType = new EventType("Longs", "Eight longs", attributes);
+	    logger.addEventType(eventType);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+	    logger.close();
+	    file.delete();
+	}
+    }
+
+    @State(Scope.Thread)
+    public static class FeedletState {
+	public IFeedlet feedlet;
+	public EventRecord record;
+
+	@Setup(Level.Trial)
+	public void setUp(WriterState state) {
+	    feedlet = state.logger.makeFeedlet(Thread.currentThread()
+		    .getName(), "Benchmark thread");
+	    record = new EventRecord(state.eventType);
+	}
+    }
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Written {
+	public long bytes;
+
+	@Setup(Level.Iteration)
+	public void clear() {
+	    bytes = 0;
+	}
+    }
+
+    @Benchmark
+    public void write(FeedletState f, Written written) {
+	for (int i = 0; i < LONGS; i++) {
+	    f.record.setLong(i, written.bytes + i);
+	}
+	f.feedlet.addEvent(f.record);
+	written.bytes += EVENT_SIZE;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * This file is part of the Tuning Fork Visualization Platform
+ *  (http://sourceforge.net/projects/tuningforkvp)
+ *
+ * Copyright (c) 2005 - 2008 IBM Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ */
+
+package com.ibm.tuningfork.tracegen.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.ibm.tuningfork.tracegen.ILogger;
+import com.ibm.tuningfork.tracegen.ITimerEvent;
+import com.ibm.tuningfork.tracegen.LoggerFactory;
+import com.ibm.tuningfork.tracegen.LoggerOptions;
+import com.ibm.tuningfork.tracegen.types.EventAttribute;
+import com.ibm.tuningfork.tracegen.types.EventType;
+import com.ibm.tuningfork.tracegen.types.EventTypeSpaceVersion;
+import com.ibm.tuningfork.tracegen.types.ScalarType;
+
+/**
+ * A logger shared by all the threads of a benchmark, together with the event
+ * types they add.
+ *
+ * The output parameter chooses the logger: "file" writes a trace to a
+ * temporary file, "compact" does the same with compact events, and "null"
+ * is the null logger, which discards events before they reach a chunk.
+ */
+@State(Scope.Benchmark)
+public class LoggerState {
+
+    @Param( { "file", "compact", "null" })
+    public String output;
+
+    public ILogger logger;
+    public ITimerEvent timer;
+    public EventType noneET;
+    public EventType intET;
+    public EventType longET;
+    public EventType doubleET;
+    public EventType stringET;
+    public EventType arraysET;
+    private File file;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+	logger = makeLogger(output);
+	timer = logger.makeTimerEvent("Benchmark Timer");
+	noneET = addEventType(new EventType("None", "No attributes"));
+	intET = addEventType(new EventType("Int", "An int", attribute(
+		ScalarType.INT)));
+	longET = addEventType(new EventType("Long", "A long", attribute(
+		ScalarType.LONG)));
+	doubleET = addEventType(new EventType("Double", "A double",
+		attribute(ScalarType.DOUBLE)));
+	stringET = addEventType(new EventType("String", "A String",
+		attribute(ScalarType.STRING)));
+	arraysET = addEventType(new EventType("Arrays",
+		"One attribute of each type", new EventAttribute[] {
+			attribute(ScalarType.INT), attribute(ScalarType.LONG),
+			attribute(ScalarType.DOUBLE),
+			attribute(ScalarType.STRING) }));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+	logger.close();
+	if (file != null) {
+	    file.delete();
+	}
+    }
+
+    private ILogger makeLogger(String output) throws IOException {
+	if (output.equals("null")) {
+	    return LoggerFactory.makeNullLogger();
+	}
+	LoggerOptions options = new LoggerOptions();
+	options.setCompactEvents(output.equals("compact"));
+	file = File.createTempFile("benchmark", ".trace");
+	return LoggerFactory.makeFileLogger(file, new EventTypeSpaceVersion[0],
+		true, options);
+    }
+
+    private EventType addEventType(EventType et) {
+	logger.addEventType(et);
+	return et;
+    }
+
+    static EventAttribute attribute(ScalarType type) {
+	return new EventAttribute(type.getName(), "A " + type.getName(), type);
+    }
+}
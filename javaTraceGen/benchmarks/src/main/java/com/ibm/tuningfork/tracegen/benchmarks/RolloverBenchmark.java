@@ -0,0 +1,62 @@
+/*
+ * This file is part of the Tuning Fork Visualization Platform
+ *  (http://sourceforge.net/projects/tuningforkvp)
+ *
+ * Copyright (c) 2005 - 2008 IBM Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ */
+
+package com.ibm.tuningfork.tracegen.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ibm.tuningfork.tracegen.impl.AbstractFeedlet;
+
+/**
+ * The cost of an event that starts a new event chunk: the feedlet is flushed
+ * after every event, so each event takes an empty chunk in ensureEventChunk
+ * and hands it back full.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RolloverBenchmark {
+
+    @State(Scope.Thread)
+    public static class FeedletState {
+	public AbstractFeedlet feedlet;
+	public long value = 0;
+
+	@Setup(Level.Trial)
+	public void setUp(LoggerState state) {
+	    feedlet = (AbstractFeedlet) state.logger.makeFeedlet(Thread
+		    .currentThread().getName(), "Benchmark thread");
+	}
+    }
+
+    @Benchmark
+    public void addEventAndFlush(LoggerState state, FeedletState f) {
+	f.feedlet.addEvent(state.longET, f.value++);
+	f.feedlet.flush();
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * This file is part of the Tuning Fork Visualization Platform
+ *  (http://sourceforge.net/projects/tuningforkvp)
+ *
+ * Copyright (c) 2005 - 2008 IBM Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ */
+
+package com.ibm.tuningfork.tracegen.benchmarks;
+
+import java.util.Collection;
+
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks of a class with 1, 2, 4 and so on up to a most threads,
+ * and prints the score of each benchmark for each number of threads, so that
+ * how it scales can be read off one table. Other JMH options may be given on
+ * the command line as usual.
+ */
+public final class Scaling {
+
+    private Scaling() {
+    }
+
+    public static void run(Class<?> benchmark, int maxThreads, String[] args)
+	    throws RunnerException, CommandLineOptionException {
+	CommandLineOptions commandLine = new CommandLineOptions(args);
+	StringBuffer table = new StringBuffer();
+	for (int threads = 1; threads <= maxThreads; threads *= 2) {
+	    Options options = new OptionsBuilder().parent(commandLine)
+		    .include(benchmark.getName() + ".").threads(threads)
+		    .build();
+	    Collection<RunResult> results = new Runner(options).run();
+	    for (RunResult result : results) {
+		Result score = result.getPrimaryResult();
+		table.append(String.format("%-32s %7d %12.3f %-8s %s%n",
+			result.getParams().getBenchmark().substring(
+				benchmark.getName().length() + 1), threads,
+			score.getScore(), score.getScoreUnit(), params(result)));
+	    }
+	}
+	System.out.println();
+	System.out.println(String.format("%-32s %7s %12s %-8s %s", "Benchmark",
+		"Threads", "Score", "Units", "Params"));
+	System.out.print(table);
+    }
+
+    private static String params(RunResult result) {
+	StringBuffer params = new StringBuffer();
+	for (String key : result.getParams().getParamsKeys()) {
+	    params.append(key).append('=').append(
+		    result.getParams().getParam(key)).append(' ');
+	}
+	return params.toString();
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * This file is part of the Tuning Fork Visualization Platform
+ *  (http://sourceforge.net/projects/tuningforkvp)
+ *
+ * Copyright (c) 2005 - 2008 IBM Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ */
+
+package com.ibm.tuningfork.tracegen.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ibm.tuningfork.tracegen.IFeedlet;
+import com.ibm.tuningfork.tracegen.impl.SharedFeedlet;
+
+/**
+ * The cost of adding events to one feedlet shared by all threads, for each
+ * kind of shared feedlet under the same logger: "monitor" is a SharedFeedlet,
+ * whose writers take turns on its monitor, and "lock-free" is the feedlet
+ * that makeSharedFeedlet returns, whose writers reserve space in its chunk
+ * without locking. Compact events are delta encoded, so there is no
+ * lock-free feedlet for them and that combination fails in set up. Four
+ * threads contend by default; run with -t to vary them, or run the class
+ * itself to measure how contention grows with 1, 2, 4 and so on up to 64
+ * threads:
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar \
+ *     com.ibm.tuningfork.tracegen.benchmarks.SharedFeedletBenchmark \
+ *     -p output=file
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class SharedFeedletBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class SharedState {
+	@Param( { "monitor", "lock-free" })
+	public String feedletKind;
+
+	public IFeedlet feedlet;
+
+	@Setup(Level.Trial)
+	public void setUp(LoggerState state) {
+	    if (feedletKind.equals("monitor")) {
+		feedlet = new SharedFeedlet(state.logger.makeFeedlet("Shared",
+			"Shared by the benchmark threads"));
+		return;
+	    }
+	    feedlet = state.logger.makeSharedFeedlet("Shared",
+		    "Shared by the benchmark threads");
+	    if (feedlet instanceof SharedFeedlet) {
+		throw new IllegalStateException("No lock-free shared feedlet for "
+			+ state.output + " output");
+	    }
+	}
+    }
+
+    @Benchmark
+    public void addEventLong(LoggerState state, SharedState shared) {
+	shared.feedlet.addEvent(state.longET, System.identityHashCode(shared));
+    }
+
+    @Benchmark
+    public void addEventString(LoggerState state, SharedState shared) {
+	shared.feedlet.addEvent(state.stringET, "benchmark");
+    }
+
+    public static void main(String[] args) throws Exception {
+	Scaling.run(SharedFeedletBenchmark.class, 64, args);
+    }
+}
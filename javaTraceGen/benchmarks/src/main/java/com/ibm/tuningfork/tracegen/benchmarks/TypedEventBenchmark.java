@@ -0,0 +1,93 @@
+/*
+ * This file is part of the Tuning Fork Visualization Platform
+ *  (http://sourceforge.net/projects/tuningforkvp)
+ *
+ * Copyright (c) 2005 - 2008 IBM Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ */
+
+package com.ibm.tuningfork.tracegen.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ibm.tuningfork.tracegen.IFeedlet;
+import com.ibm.tuningfork.tracegen.TypedEvent;
+import com.ibm.tuningfork.tracegen.types.EventType;
+
+/**
+ * Emitting a TypedEvent of five attributes, two ints, a long, a double and a
+ * String, against adding the same event type with arrays made for each
+ * event. Run with -prof gc to see the bytes allocated per event.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TypedEventBenchmark {
+
+    static class RequestEvent extends TypedEvent {
+	int status;
+	int code;
+	long bytes;
+	double millis;
+	String path;
+    }
+
+    @State(Scope.Thread)
+    public static class FeedletState {
+	public IFeedlet feedlet;
+	public RequestEvent event;
+	public EventType eventType;
+	public int value = 0;
+
+	@Setup(Level.Trial)
+	public void setUp(LoggerState state) {
+	    feedlet = state.logger.makeFeedlet(Thread.currentThread()
+		    .getName(), "Benchmark thread");
+	    feedlet.bindToCurrentThread();
+	    event = new RequestEvent();
+	    event.register(state.logger);
+	    eventType = event.getEventType();
+	}
+    }
+
+    @Benchmark
+    public void typed(FeedletState f) {
+	int v = f.value++;
+	RequestEvent event = f.event;
+	event.code = v;
+	event.status = 200;
+	event.bytes = v;
+	event.millis = 1.5;
+	event.path = "/index.html";
+	event.emit(f.feedlet);
+    }
+
+    /* The attributes in the order of the type: code, status, bytes, ... */
+    @Benchmark
+    public void arrays(FeedletState f) {
+	int v = f.value++;
+	f.feedlet.addEvent(f.eventType, new int[] { v, 200 },
+		new long[] { v }, new double[] { 1.5 },
+		new String[] { "/index.html" });
+    }
+}
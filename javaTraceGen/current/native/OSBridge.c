@@ -12,11 +12,16 @@
  *     IBM Corporation - initial API and implementation
  */
 
+#ifdef LINUX
+#define _GNU_SOURCE /* for sched_getcpu */
+#endif
+
 #include <unistd.h>
 #include <pthread.h>
 #include <sched.h>
 #include <sys/types.h>
 #include <sys/syscall.h>
+#include <time.h>
 
 #include "com_ibm_tuningfork_tracegen_impl_OSBridge.h"
 
@@ -46,11 +51,50 @@ Java_com_ibm_tuningfork_tracegen_impl_OSBridge_setProcessorAffinityViaNative
 {
 #ifdef LINUX
 	cpu_set_t cpumask;
-    __CPU_ZERO(&cpumask);
-    __CPU_SET(cpu, &cpumask);
+    CPU_ZERO(&cpumask);
+    CPU_SET(cpu, &cpumask);
     int rc = sched_setaffinity(0, sizeof(cpumask), &cpumask);
     return rc;
 #else
 	return -1;
 #endif
 }
+
+JNIEXPORT jint JNICALL 
+Java_com_ibm_tuningfork_tracegen_impl_OSBridge_getCurrentProcessorViaNative
+(JNIEnv *env, jclass ignore)
+{
+#ifdef LINUX
+	return (jint) sched_getcpu(); /* -1 where the kernel does not support it */
+#else
+	return -1;
+#endif
+}
+
+JNIEXPORT jlong JNICALL 
+Java_com_ibm_tuningfork_tracegen_impl_OSBridge_readCycleCounterViaNative
+(JNIEnv *env, jclass ignore)
+{
+#if defined(__i386__) || defined(__x86_64__)
+	unsigned int lo, hi;
+	__asm__ __volatile__ ("rdtsc" : "=a" (lo), "=d" (hi));
+	return (jlong) (((unsigned long long) hi << 32) | lo);
+#else
+	return 0; /* no cycle counter we know how to read */
+#endif
+}
+
+JNIEXPORT jlong JNICALL 
+Java_com_ibm_tuningfork_tracegen_impl_OSBridge_getCoarseTimeViaNative
+(JNIEnv *env, jclass ignore)
+{
+#if defined(LINUX) && defined(CLOCK_MONOTONIC_COARSE)
+	struct timespec ts;
+	if (clock_gettime(CLOCK_MONOTONIC_COARSE, &ts) != 0) {
+		return -1;
+	}
+	return (jlong) ts.tv_sec * 1000000000LL + ts.tv_nsec;
+#else
+	return -1;
+#endif
+}
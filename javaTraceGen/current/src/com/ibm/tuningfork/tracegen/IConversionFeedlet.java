@@ -133,4 +133,61 @@ public interface IConversionFeedlet {
     public void addEvent(long timestamp, EventType eventType, int[] idata,
 	    long[] ldata, double[] ddata, String[] sdata);
 
-}
\ No newline at end of file
+    /**
+     * Add a run of events that each have a single int value. The events are
+     * encoded a chunk at a time, which is much cheaper than adding them one
+     * by one.
+     * 
+     * @param timestamps
+     *                The event time stamps, which must not decrease.
+     * @param eventType
+     *                The type of the events.
+     * @param values
+     *                The event values, parallel to the time stamps.
+     * @param offset
+     *                The index of the first event in the arrays.
+     * @param length
+     *                The number of events.
+     */
+    public void addEvents(long[] timestamps, EventType eventType,
+	    int[] values, int offset, int length);
+
+    /**
+     * Add a run of events that each have a single long value. The events are
+     * encoded a chunk at a time, which is much cheaper than adding them one
+     * by one.
+     * 
+     * @param timestamps
+     *                The event time stamps, which must not decrease.
+     * @param eventType
+     *                The type of the events.
+     * @param values
+     *                The event values, parallel to the time stamps.
+     * @param offset
+     *                The index of the first event in the arrays.
+     * @param length
+     *                The number of events.
+     */
+    public void addEvents(long[] timestamps, EventType eventType,
+	    long[] values, int offset, int length);
+
+    /**
+     * Add a run of events that each have a single double value. The events
+     * are encoded a chunk at a time, which is much cheaper than adding them
+     * one by one.
+     * 
+     * @param timestamps
+     *                The event time stamps, which must not decrease.
+     * @param eventType
+     *                The type of the events.
+     * @param values
+     *                The event values, parallel to the time stamps.
+     * @param offset
+     *                The index of the first event in the arrays.
+     * @param length
+     *                The number of events.
+     */
+    public void addEvents(long[] timestamps, EventType eventType,
+	    double[] values, int offset, int length);
+
+}
@@ -14,6 +14,7 @@
 
 package com.ibm.tuningfork.tracegen;
 
+import com.ibm.tuningfork.tracegen.types.EventRecord;
 import com.ibm.tuningfork.tracegen.types.EventType;
 
 
@@ -28,6 +29,8 @@ import com.ibm.tuningfork.tracegen.types.EventType;
 public interface IFeedlet {
 
     public static final String TID_PROPERTY = "tid";
+    public static final String LOST_EVENTS_PROPERTY = "Lost Events";
+    public static final String LOST_CHUNKS_PROPERTY = "Lost Chunks";
 
     /**
      * Does this feedlet require manual maintenance of time via the setClock
@@ -43,7 +46,9 @@ public interface IFeedlet {
 
     /**
      * Bind this feedlet to the current thread, so that it is possible to
-     * trigger events without specifying the feedlet.
+     * trigger events without specifying the feedlet. Once the thread a
+     * feedlet was last bound to has ended, the logger flushes the feedlet and
+     * lets go of it, so it should no longer be used.
      */
     public void bindToCurrentThread();
 
@@ -112,6 +117,15 @@ public interface IFeedlet {
     public void addEvent(EventType eventType, int[] idata, long[] ldata,
 	    double[] ddata, String[] sdata);
 
+    /**
+     * Add an event to the feedlet without allocating, for event types with
+     * several attributes.
+     *
+     * @param record
+     *                The event type and values for the event.
+     */
+    public void addEvent(EventRecord record);
+
     /**
      * Set the thread ID property of this feedlet. This is useful for relating
      * the feedlet to the associated information in OS or JVM traces.
@@ -42,4 +42,18 @@ public interface ILogger extends IGenericLogger {
      * @return The new IFeedlet instance.
      */
     public IFeedlet makeFeedlet(String name, String description);
+
+    /**
+     * Create a new feedlet that any number of threads may add events to
+     * concurrently without further synchronization. Each event costs an atomic
+     * update, so a feedlet per thread remains the cheaper choice where it is
+     * practical.
+     * 
+     * @param name
+     *                The feedlet name.
+     * @param description
+     *                The feedlet description.
+     * @return The new IFeedlet instance.
+     */
+    public IFeedlet makeSharedFeedlet(String name, String description);
 }
\ No newline at end of file
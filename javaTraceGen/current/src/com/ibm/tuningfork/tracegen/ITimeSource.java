@@ -0,0 +1,50 @@
+/*
+ * This file is part of the Tuning Fork Visualization Platform
+ *  (http://sourceforge.net/projects/tuningforkvp)
+ *
+ * Copyright (c) 2005 - 2008 IBM Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ */
+
+package com.ibm.tuningfork.tracegen;
+
+/**
+ * A clock from which a logger takes the time stamps of events, unless the
+ * time is set manually. The time stamps of a logger are in ticks of its time
+ * source, whose frequency is recorded in the trace.
+ *
+ * getTime is called for every event, so it should be cheap, and it may be
+ * called by many threads at once. Successive calls must not go backwards.
+ *
+ * @see com.ibm.tuningfork.tracegen.LoggerFactory#makeNanoTimeSource()
+ * @see com.ibm.tuningfork.tracegen.LoggerOptions#setTimeSource(ITimeSource)
+ */
+public interface ITimeSource {
+
+    /**
+     * Read the clock.
+     *
+     * @return The current time in ticks.
+     */
+    public long getTime();
+
+    /**
+     * The number of ticks per second.
+     *
+     * @return The frequency of the clock.
+     */
+    public long getTickFrequency();
+
+    /**
+     * A name for the clock, recorded in the trace.
+     *
+     * @return The name of the clock.
+     */
+    public String getName();
+}
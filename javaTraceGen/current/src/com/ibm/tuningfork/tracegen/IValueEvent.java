@@ -14,6 +14,8 @@
 
 package com.ibm.tuningfork.tracegen;
 
+import com.ibm.tuningfork.tracegen.types.EventFilter;
+
 /**
  * A value event, which consists of a series of data points recorded over time.
  */
@@ -47,4 +49,14 @@ public interface IValueEvent extends IEvent {
     public void addValue(IConversionFeedlet feedlet, long timeStamp,
 	    double value);
 
+    /**
+     * Decide which values are logged by a filter, for values that are added
+     * too often to log them all.
+     *
+     * @param filter
+     *                The filter, or null to log every value.
+     * @see com.ibm.tuningfork.tracegen.types.EventFilter
+     */
+    public void setFilter(EventFilter filter);
+
 }
\ No newline at end of file
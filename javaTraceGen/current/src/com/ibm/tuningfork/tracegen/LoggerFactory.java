@@ -20,8 +20,11 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.Date;
 
+import com.ibm.tuningfork.tracegen.impl.CoarseTimeSource;
+import com.ibm.tuningfork.tracegen.impl.CycleCounterTimeSource;
 import com.ibm.tuningfork.tracegen.impl.Feedlet;
 import com.ibm.tuningfork.tracegen.impl.Logger;
+import com.ibm.tuningfork.tracegen.impl.NanoTimeSource;
 import com.ibm.tuningfork.tracegen.types.EventTypeSpaceVersion;
 
 /**
@@ -61,6 +64,43 @@ public final class LoggerFactory {
 	return makeFileLogger(new File(fileName));
     }
 
+    /**
+     * Create an ILogger whose output is a memory-mapped file of fixed size
+     * that only keeps the most recent events. Meta-data such as properties,
+     * event types and feedlets is kept for the whole run, while new event
+     * chunks overwrite the oldest ones. The file is a valid trace at all
+     * times, so it can be copied to capture the recent past on demand.
+     *
+     * @param file
+     *                The file to which the trace is written.
+     * @param capacityBytes
+     *                The size of the file in bytes.
+     * @return The ILogger instance.
+     */
+    public static ILogger makeRingFileLogger(File file, long capacityBytes)
+	    throws IOException {
+	return makeRingFileLogger(file, capacityBytes, new LoggerOptions());
+    }
+
+    /**
+     * Create an ILogger whose output is a memory-mapped file of fixed size
+     * that only keeps the most recent events.
+     *
+     * @param file The file to which the trace is written.
+     * @param capacityBytes The size of the file in bytes.
+     * @param options The options for the logger.
+     * @return The ILogger instance.
+     * @see #makeRingFileLogger(File, long)
+     */
+    public static ILogger makeRingFileLogger(File file, long capacityBytes,
+	    LoggerOptions options) throws IOException {
+	Logger logger = new Logger(file, capacityBytes,
+		augment(new EventTypeSpaceVersion[0]), Feedlet.TICK_FREQUENCY,
+		Logger.AUTO_CLOCK_MODE, options);
+	addDefaultProperties(logger);
+	return logger;
+    }
+
     /**
      * Create a logger which is live on a socket to which TuningFork can attach.
      *
@@ -90,9 +130,24 @@ public final class LoggerFactory {
     public static ILogger makeFileLogger(File file,
 	    EventTypeSpaceVersion[] eventTypeSpaces, boolean isAuto)
 	    throws IOException {
+	return makeFileLogger(file, eventTypeSpaces, isAuto,
+		new LoggerOptions());
+    }
+
+    /**
+     * Create an ILogger whose output is a file.
+     *
+     * @param file The file to use.
+     * @param eventTypeSpaces The event type spaces.
+     * @param options The options for the logger.
+     * @return The ILogger instance.
+     */
+    public static ILogger makeFileLogger(File file,
+	    EventTypeSpaceVersion[] eventTypeSpaces, boolean isAuto,
+	    LoggerOptions options) throws IOException {
 	Logger logger = new Logger(file, augment(eventTypeSpaces),
 		Feedlet.TICK_FREQUENCY, isAuto ? Logger.AUTO_CLOCK_MODE
-			: Logger.MANUAL_CLOCK_MODE);
+			: Logger.MANUAL_CLOCK_MODE, options);
 	addDefaultProperties(logger);
 	return logger;
     }
@@ -107,9 +162,24 @@ public final class LoggerFactory {
     public static ILogger makeServerLogger(int portNumber,
 	    EventTypeSpaceVersion[] eventTypeSpaces, boolean isAuto)
 	    throws IOException {
+	return makeServerLogger(portNumber, eventTypeSpaces, isAuto,
+		new LoggerOptions());
+    }
+
+    /**
+     * Create a logger which is live on a socket to which TuningFork can attach.
+     *
+     * @param portNumber The port to listen on.
+     * @param eventTypeSpaces The event type space.
+     * @param options The options for the logger.
+     * @return The ILogger instance.
+     */
+    public static ILogger makeServerLogger(int portNumber,
+	    EventTypeSpaceVersion[] eventTypeSpaces, boolean isAuto,
+	    LoggerOptions options) throws IOException {
 	Logger logger = new Logger(portNumber, augment(eventTypeSpaces),
 		Feedlet.TICK_FREQUENCY, isAuto ? Logger.AUTO_CLOCK_MODE
-			: Logger.MANUAL_CLOCK_MODE);
+			: Logger.MANUAL_CLOCK_MODE, options);
 	addDefaultProperties(logger);
 	return logger;
     }
@@ -167,8 +237,28 @@ public final class LoggerFactory {
     public static IConversionLogger makeConversionServerLogger(int port,
 	    EventTypeSpaceVersion[] eventTypeSpaces, long tickFrequency)
 	    throws IOException {
+	return makeConversionServerLogger(port, eventTypeSpaces, tickFrequency,
+		new LoggerOptions());
+    }
+
+    /**
+     * Create a logger to be used for converting other traces to TuningFork
+     * format. Several threads may convert at once, each adding events to
+     * feedlets of its own; threads that get ahead of the output wait for it
+     * to catch up (see LoggerOptions.setMaxEventChunks), and compression, if
+     * enabled, is done by the converting threads.
+     *
+     * @param port The port number over which the trace will be sent.
+     * @param eventTypeSpaces the event type spaces
+     * @param tickFrequency number of ticks per second.
+     * @param options The options for the logger.
+     * @return The ILogger instance.
+     */
+    public static IConversionLogger makeConversionServerLogger(int port,
+	    EventTypeSpaceVersion[] eventTypeSpaces, long tickFrequency,
+	    LoggerOptions options) throws IOException {
 	return new Logger(port, eventTypeSpaces, tickFrequency,
-		Logger.CONVERSION_MODE);
+		Logger.CONVERSION_MODE, options);
     }
 
     /**
@@ -198,8 +288,74 @@ public final class LoggerFactory {
     public static IConversionLogger makeConversionLogger(File file,
 	    EventTypeSpaceVersion[] eventTypeSpaces, long tickFrequency)
 	    throws IOException {
+	return makeConversionLogger(file, eventTypeSpaces, tickFrequency,
+		new LoggerOptions());
+    }
+
+    /**
+     * Create a logger to be used for converting other traces to TuningFork
+     * format.
+     *
+     * @param file The file to which the trace will be written.
+     * @param eventTypeSpaces the event type spaces
+     * @param tickFrequency number of ticks per second.
+     * @param options The options for the logger.
+     * @return The ILogger instance.
+     * @see #makeConversionServerLogger(int, EventTypeSpaceVersion[], long,
+     *      LoggerOptions)
+     */
+    public static IConversionLogger makeConversionLogger(File file,
+	    EventTypeSpaceVersion[] eventTypeSpaces, long tickFrequency,
+	    LoggerOptions options) throws IOException {
 	return new Logger(file, eventTypeSpaces, tickFrequency,
-		Logger.CONVERSION_MODE);
+		Logger.CONVERSION_MODE, options);
+    }
+
+    /**
+     * Create the default time source, which reads System.nanoTime().
+     *
+     * @return The ITimeSource instance.
+     */
+    public static ITimeSource makeNanoTimeSource() {
+	return NanoTimeSource.INSTANCE;
+    }
+
+    /**
+     * Create a time source that reads the processor's cycle counter, whose
+     * frequency is calibrated against System.nanoTime(), which takes about
+     * 50ms. Use it only on processors whose cycle counter ticks at a constant
+     * rate and is synchronized across processors. If the native support
+     * library can not read the cycle counter, System.nanoTime() is used
+     * instead.
+     *
+     * @return The ITimeSource instance.
+     */
+    public static ITimeSource makeCycleCounterTimeSource() {
+	ITimeSource timeSource = CycleCounterTimeSource.make();
+	if (timeSource == null) {
+	    System.err
+		    .println("WARNING: TuningFork Java Tracing unable to read the cycle counter, using System.nanoTime()");
+	    return makeNanoTimeSource();
+	}
+	return timeSource;
+    }
+
+    /**
+     * Create a time source that is only updated every few milliseconds but
+     * is cheap to read, for traces whose events do not need finer time
+     * stamps. If the native support library has no coarse clock,
+     * System.nanoTime() is used instead.
+     *
+     * @return The ITimeSource instance.
+     */
+    public static ITimeSource makeCoarseTimeSource() {
+	ITimeSource timeSource = CoarseTimeSource.make();
+	if (timeSource == null) {
+	    System.err
+		    .println("WARNING: TuningFork Java Tracing unable to read a coarse clock, using System.nanoTime()");
+	    return makeNanoTimeSource();
+	}
+	return timeSource;
     }
 
     private static void addDefaultProperties(ILogger logger) {
@@ -0,0 +1,476 @@
+/*
+ * This file is part of the Tuning Fork Visualization Platform
+ *  (http://sourceforge.net/projects/tuningforkvp)
+ *
+ * Copyright (c) 2005 - 2008 IBM Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ */
+
+package com.ibm.tuningfork.tracegen;
+
+import com.ibm.tuningfork.tracegen.chunk.EventChunk;
+
+/**
+ * Options that control how a logger buffers and emits its trace. The default
+ * options give the behaviour of the LoggerFactory methods that do not take
+ * options.
+ *
+ * The options are read when a logger is created, so changing them afterwards
+ * has no effect on existing loggers.
+ *
+ * @see com.ibm.tuningfork.tracegen.LoggerFactory
+ */
+public final class LoggerOptions {
+
+    /**
+     * The compression level that leaves the trace uncompressed.
+     */
+    public static final int NO_COMPRESSION = 0;
+
+    /**
+     * The number of Strings whose encoding is cached unless another size is
+     * chosen.
+     */
+    public static final int DEFAULT_STRING_CACHE_SIZE = 256;
+
+    /**
+     * When the logger runs out of event chunks, discard the oldest chunk of
+     * events that has not been written yet and reuse it. This is the
+     * default.
+     */
+    public static final int DROP_OLDEST = 0;
+
+    /**
+     * When the logger runs out of event chunks, discard new events until a
+     * chunk has been written.
+     */
+    public static final int DROP_NEWEST = 1;
+
+    /**
+     * When the logger runs out of event chunks, make the thread adding an
+     * event wait for a chunk to be written, for up to the block timeout,
+     * and then discard the event. Threads writing to striped feedlets do not
+     * wait, since they would hold up the other threads of their stripe and
+     * the logger itself, and discard new events instead.
+     */
+    public static final int BLOCK = 2;
+
+    /**
+     * When the logger runs out of event chunks, allocate more, up to the
+     * growth limit, and then discard the oldest unwritten events.
+     */
+    public static final int GROW = 3;
+
+    /**
+     * The time in milliseconds a thread waits for an event chunk under the
+     * BLOCK policy unless another is chosen.
+     */
+    public static final long DEFAULT_BLOCK_TIMEOUT_MS = 1000;
+
+    /**
+     * The number of bytes that may be queued for each subscriber of a server
+     * logger unless another size is chosen.
+     */
+    public static final int DEFAULT_SUBSCRIBER_QUEUE_SIZE = 4 * 1024 * 1024;
+
+    private boolean offHeapEventChunks = false;
+    private boolean stripedFeedlets = false;
+    private boolean processorFeedlets = false;
+    private boolean compactEvents = false;
+    private int compressionLevel = NO_COMPRESSION;
+    private int stringCacheSize = DEFAULT_STRING_CACHE_SIZE;
+    private int maxEventChunks = 0;
+    private int overflowPolicy = DROP_OLDEST;
+    private long blockTimeout = DEFAULT_BLOCK_TIMEOUT_MS;
+    private int growthLimit = 0;
+    private int subscriberQueueSize = DEFAULT_SUBSCRIBER_QUEUE_SIZE;
+    private long maxEventLatency = 0;
+    private ITimeSource timeSource = null;
+
+    /**
+     * Create a set of options with default values.
+     */
+    public LoggerOptions() {
+    }
+
+    /**
+     * Create a copy of a set of options.
+     *
+     * @param options
+     *                The options to copy.
+     */
+    public LoggerOptions(LoggerOptions options) {
+	this.offHeapEventChunks = options.offHeapEventChunks;
+	this.stripedFeedlets = options.stripedFeedlets;
+	this.processorFeedlets = options.processorFeedlets;
+	this.compactEvents = options.compactEvents;
+	this.compressionLevel = options.compressionLevel;
+	this.stringCacheSize = options.stringCacheSize;
+	this.maxEventChunks = options.maxEventChunks;
+	this.overflowPolicy = options.overflowPolicy;
+	this.blockTimeout = options.blockTimeout;
+	this.growthLimit = options.growthLimit;
+	this.subscriberQueueSize = options.subscriberQueueSize;
+	this.maxEventLatency = options.maxEventLatency;
+	this.timeSource = options.timeSource;
+    }
+
+    /**
+     * Are event chunks kept in direct buffers outside of the Java heap?
+     *
+     * @return True if event chunks are kept off the heap.
+     */
+    public boolean getOffHeapEventChunks() {
+	return offHeapEventChunks;
+    }
+
+    /**
+     * Keep event chunks in direct buffers outside of the Java heap. This
+     * reduces the heap occupied by trace buffers and the copying of them by
+     * the garbage collector. The buffers are allocated once and recycled by
+     * the logger for its whole lifetime.
+     *
+     * @param offHeap
+     *                True to keep event chunks off the heap.
+     */
+    public void setOffHeapEventChunks(boolean offHeap) {
+	this.offHeapEventChunks = offHeap;
+    }
+
+    /**
+     * Does Logger.getFeedlet hand out a striped feedlet to every thread?
+     *
+     * @return True if all threads share the striped feedlet.
+     */
+    public boolean getStripedFeedlets() {
+	return stripedFeedlets;
+    }
+
+    /**
+     * Make Logger.getFeedlet hand every thread the logger's striped feedlet
+     * rather than a feedlet of its own. The striped feedlet has one
+     * underlying feedlet per processor and records which thread wrote each
+     * event, so the number of feedlets and event chunks does not grow with
+     * the number of threads. Virtual threads are always given the striped
+     * feedlet.
+     *
+     * @param striped
+     *                True to share the striped feedlet among all threads.
+     */
+    public void setStripedFeedlets(boolean striped) {
+	this.stripedFeedlets = striped;
+    }
+
+    /**
+     * Does the striped feedlet pick the stripe of the processor that a
+     * thread runs on?
+     *
+     * @return True if events are collected per processor.
+     */
+    public boolean getProcessorFeedlets() {
+	return processorFeedlets;
+    }
+
+    /**
+     * Collect events in a feedlet per processor: hand every thread the
+     * striped feedlet, as setStripedFeedlets does, and have each event go to
+     * the stripe of the processor the thread is running on. Buffer memory is
+     * then bounded by the number of processors, and a stripe's chunk stays in
+     * its processor's cache. The thread that wrote each event is still
+     * recorded. This needs the native support library; without it the
+     * stripes are chosen by thread instead.
+     *
+     * @param perProcessor
+     *                True to collect events per processor.
+     */
+    public void setProcessorFeedlets(boolean perProcessor) {
+	this.processorFeedlets = perProcessor;
+    }
+
+    /**
+     * Are events written in the compact encoding?
+     *
+     * @return True if events are written in the compact encoding.
+     */
+    public boolean getCompactEvents() {
+	return compactEvents;
+    }
+
+    /**
+     * Write events in the compact encoding, where time stamps are stored as
+     * deltas from the previous event and type indices and integer attributes
+     * as variable length integers. This shrinks a typical trace several times
+     * at a small cost in encoding time. The trace can only be read by readers
+     * that understand compact event chunks.
+     *
+     * @param compact
+     *                True to write events in the compact encoding.
+     */
+    public void setCompactEvents(boolean compact) {
+	this.compactEvents = compact;
+    }
+
+    /**
+     * The level at which event chunks are compressed.
+     *
+     * @return The compression level, or NO_COMPRESSION.
+     */
+    public int getCompressionLevel() {
+	return compressionLevel;
+    }
+
+    /**
+     * Compress event chunks with Deflate before they are written to a file or
+     * socket. The compression is done by the thread that writes the trace,
+     * not by the threads that add events. Chunks that do not get smaller, and
+     * chunks that are still larger than 64KB once compressed, are written
+     * uncompressed. A socket logger compresses nothing while no client is
+     * connected. Ring files are never compressed.
+     *
+     * @param level
+     *                NO_COMPRESSION, or a Deflate level from 1 (fastest) to 9
+     *                (smallest).
+     */
+    public void setCompressionLevel(int level) {
+	if (level < NO_COMPRESSION || level > 9) {
+	    throw new IllegalArgumentException("Compression level " + level
+		    + " is not between 0 and 9");
+	}
+	this.compressionLevel = level;
+    }
+
+    /**
+     * The number of recently logged Strings whose encoding is cached.
+     *
+     * @return The size of the cache, or 0 if there is none.
+     */
+    public int getStringCacheSize() {
+	return stringCacheSize;
+    }
+
+    /**
+     * Cache the encoding of recently logged Strings, so that a String logged
+     * repeatedly is encoded once and copied into the trace thereafter. The
+     * cache keeps a fixed number of entries and only holds Strings of up to
+     * 256 characters, so its memory stays bounded.
+     *
+     * With compact events, a String that is logged again while it is cached
+     * is also entered in the feed's string table, and events refer to it by
+     * its index rather than repeating it. At most 16 Strings are entered for
+     * each entry of the cache; once that many have been, other Strings are
+     * written in full.
+     *
+     * @param size
+     *                The number of Strings to cache, rounded up to a power of
+     *                2, or 0 to encode every String afresh.
+     */
+    public void setStringCacheSize(int size) {
+	if (size < 0 || size > (1 << 20)) {
+	    throw new IllegalArgumentException("String cache size " + size
+		    + " is not between 0 and " + (1 << 20));
+	}
+	this.stringCacheSize = size;
+    }
+
+    /**
+     * The maximum number of event chunks the logger may allocate.
+     *
+     * @return The maximum, or 0 if the logger chooses it.
+     */
+    public int getMaxEventChunks() {
+	return maxEventChunks;
+    }
+
+    /**
+     * Bound the memory used for events waiting to be written. A logger that
+     * runs out of event chunks normally discards its oldest unwritten events,
+     * but a conversion logger makes the threads adding events wait until a
+     * chunk has been written instead, so that converters which outrun the
+     * output are held back rather than filling the heap. By default the
+     * logger allows a few chunks per feedlet. Event chunks vary in size with
+     * the rate at which each feedlet adds events, so the bound is on the
+     * memory that this many chunks of the default size (64KB) would take.
+     *
+     * @param max
+     *                The maximum number of event chunks, or 0 to let the
+     *                logger choose.
+     */
+    public void setMaxEventChunks(int max) {
+	if (max < 0) {
+	    throw new IllegalArgumentException("Maximum number of event chunks "
+		    + max + " is negative");
+	}
+	this.maxEventChunks = max;
+    }
+
+    /**
+     * What the logger does when it runs out of event chunks.
+     *
+     * @return DROP_OLDEST, DROP_NEWEST, BLOCK or GROW.
+     */
+    public int getOverflowPolicy() {
+	return overflowPolicy;
+    }
+
+    /**
+     * Choose what the logger does when events are added faster than they
+     * can be written and it runs out of event chunks. Whatever the policy,
+     * the events that are discarded are counted for each feedlet, and the
+     * counts are recorded in the trace as the feedlet properties "Lost
+     * Events" and "Lost Chunks". A conversion logger never discards events
+     * and ignores the policy (see setMaxEventChunks).
+     *
+     * @param policy
+     *                DROP_OLDEST, DROP_NEWEST, BLOCK or GROW.
+     */
+    public void setOverflowPolicy(int policy) {
+	if (policy < DROP_OLDEST || policy > GROW) {
+	    throw new IllegalArgumentException("Unknown overflow policy "
+		    + policy);
+	}
+	this.overflowPolicy = policy;
+    }
+
+    /**
+     * How long a thread waits for an event chunk under the BLOCK policy.
+     *
+     * @return The time in milliseconds.
+     */
+    public long getBlockTimeout() {
+	return blockTimeout;
+    }
+
+    /**
+     * Set how long a thread waits for an event chunk under the BLOCK policy
+     * before its event is discarded.
+     *
+     * @param millis
+     *                The time in milliseconds, or 0 to wait indefinitely.
+     */
+    public void setBlockTimeout(long millis) {
+	if (millis < 0) {
+	    throw new IllegalArgumentException("Block timeout " + millis
+		    + " is negative");
+	}
+	this.blockTimeout = millis;
+    }
+
+    /**
+     * The number of event chunks the logger may grow to under the GROW
+     * policy.
+     *
+     * @return The limit, or 0 if the logger chooses it.
+     */
+    public int getGrowthLimit() {
+	return growthLimit;
+    }
+
+    /**
+     * Set the number of event chunks the logger may grow to under the GROW
+     * policy. By default it may grow to four times its usual number.
+     *
+     * @param limit
+     *                The limit, or 0 to let the logger choose.
+     */
+    public void setGrowthLimit(int limit) {
+	if (limit < 0) {
+	    throw new IllegalArgumentException("Growth limit " + limit
+		    + " is negative");
+	}
+	this.growthLimit = limit;
+    }
+
+    /**
+     * The number of bytes that may be queued for each subscriber of a server
+     * logger.
+     *
+     * @return The size of the queue in bytes.
+     */
+    public int getSubscriberQueueSize() {
+	return subscriberQueueSize;
+    }
+
+    /**
+     * Bound the data queued for each client connected to a server logger.
+     * Any number of clients may connect, and each is sent the trace as fast
+     * as it reads it. Events that do not fit the queue of a client that has
+     * fallen behind are not sent to that client, without holding up the
+     * application or the other clients; a client that falls so far behind
+     * that meta-data does not fit either is disconnected.
+     *
+     * @param size
+     *                The size of the queue in bytes, at least the size of an
+     *                event chunk (64KB).
+     */
+    public void setSubscriberQueueSize(int size) {
+	if (size < EventChunk.DEFAULT_EVENT_CHUNK_SIZE) {
+	    throw new IllegalArgumentException("Subscriber queue size " + size
+		    + " is less than " + EventChunk.DEFAULT_EVENT_CHUNK_SIZE);
+	}
+	this.subscriberQueueSize = size;
+    }
+
+    /**
+     * How long an event may wait in a partly filled event chunk before it is
+     * written.
+     *
+     * @return The time in milliseconds, or 0 if there is no limit.
+     */
+    public long getMaxEventLatency() {
+	return maxEventLatency;
+    }
+
+    /**
+     * Bound the time from when an event is added to when it is written. By
+     * default the events of a feedlet are written once its event chunk is
+     * full or the feedlet is flushed, which for a feedlet that adds events
+     * rarely may be a long time. With a limit, the logger takes the events
+     * that have waited that long out of the chunks being filled, without
+     * holding up the threads that fill them, and writes them in chunks of
+     * their own. Compact events are each encoded relative to the one before,
+     * so they are not taken early. Nor are the events of a ring file logger,
+     * since a ring file keeps a whole slot for every chunk, however small,
+     * and so would hold far fewer events.
+     *
+     * @param millis
+     *                The time in milliseconds, or 0 for no limit.
+     */
+    public void setMaxEventLatency(long millis) {
+	if (millis < 0) {
+	    throw new IllegalArgumentException("Maximum event latency "
+		    + millis + " is negative");
+	}
+	this.maxEventLatency = millis;
+    }
+
+    /**
+     * The clock from which time stamps are taken, or null for
+     * System.nanoTime().
+     *
+     * @return The time source.
+     */
+    public ITimeSource getTimeSource() {
+	return timeSource;
+    }
+
+    /**
+     * Take the time stamps of events from another clock than
+     * System.nanoTime(), which is expensive on some virtualized hosts. The
+     * "Tick Frequency" property of the trace is that of the time source. It
+     * is not used when the time is set manually.
+     *
+     * @param timeSource
+     *                The time source, or null for System.nanoTime().
+     * @see com.ibm.tuningfork.tracegen.LoggerFactory#makeCycleCounterTimeSource()
+     * @see com.ibm.tuningfork.tracegen.LoggerFactory#makeCoarseTimeSource()
+     */
+    public void setTimeSource(ITimeSource timeSource) {
+	this.timeSource = timeSource;
+    }
+}
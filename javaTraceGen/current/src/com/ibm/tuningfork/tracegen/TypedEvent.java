@@ -0,0 +1,315 @@
+/*
+ * This file is part of the Tuning Fork Visualization Platform
+ *  (http://sourceforge.net/projects/tuningforkvp)
+ *
+ * Copyright (c) 2005 - 2008 IBM Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ */
+
+package com.ibm.tuningfork.tracegen;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import com.ibm.tuningfork.tracegen.impl.Feedlet;
+import com.ibm.tuningfork.tracegen.types.EventAttribute;
+import com.ibm.tuningfork.tracegen.types.EventRecord;
+import com.ibm.tuningfork.tracegen.types.EventType;
+import com.ibm.tuningfork.tracegen.types.ScalarType;
+
+/**
+ * An event defined by a class whose fields are its attributes. Subclass
+ * TypedEvent with a field of type int, long, double or String for each
+ * attribute, register an instance with the logger, and then set the fields
+ * and emit the event as often as needed:
+ *
+ * <pre>
+ * class RequestEvent extends TypedEvent {
+ *     int status;
+ *     long bytes;
+ *     String path;
+ * }
+ *
+ * RequestEvent event = new RequestEvent();
+ * event.register(logger);
+ * ...
+ * event.status = 200;
+ * event.bytes = n;
+ * event.path = path;
+ * event.emit(feedlet);
+ * </pre>
+ *
+ * The event type is derived from the class the first time it is needed, and
+ * shared by all its instances. The attributes are the instance fields of the
+ * class and its superclasses, in the int, long, double, String order that
+ * EventType requires and by name within each kind; transient fields are left
+ * out. Attributes are named after their fields, so a field may not hide a
+ * field of the same name in a superclass. Emitting copies the fields into a record held by the instance, so it
+ * allocates nothing and boxes nothing.
+ *
+ * An instance is not thread safe, so each thread should have its own.
+ *
+ * @see com.ibm.tuningfork.tracegen.types.EventRecord
+ */
+public abstract class TypedEvent {
+
+    /*
+     * The event type of a class and the loggers it has been added to. The
+     * fields that hold its attributes refer to the class, so they are only
+     * weakly reachable from here; otherwise the schemas map would keep every
+     * class that was ever emitted, and its class loader, alive. Instances of
+     * the class hold their fields strongly, and the fields are found again
+     * if they were collected while there were none.
+     */
+    private static final class Schema {
+	final EventType eventType;
+	// The loggers the event type has been added to
+	final Map/* <IGenericLogger, Object> */loggers = new WeakHashMap/* <IGenericLogger, Object> */();
+	WeakReference/* <Accessors> */accessors;
+
+	Schema(EventType eventType, Accessors accessors) {
+	    this.eventType = eventType;
+	    this.accessors = new WeakReference(accessors);
+	}
+    }
+
+    /*
+     * The fields that hold the attributes of a class, in attribute order
+     * within each kind.
+     */
+    private static final class Accessors {
+	final Field[] ints;
+	final Field[] longs;
+	final Field[] doubles;
+	final Field[] strings;
+
+	Accessors(Field[] ints, Field[] longs, Field[] doubles,
+		Field[] strings) {
+	    this.ints = ints;
+	    this.longs = longs;
+	    this.doubles = doubles;
+	    this.strings = strings;
+	}
+    }
+
+    private static final Map/* <Class, Schema> */schemas = new WeakHashMap/* <Class, Schema> */();
+
+    private Schema schema;
+    private Accessors accessors;
+    private EventRecord record;
+
+    protected TypedEvent() {
+    }
+
+    /**
+     * The name of the event type. By default, the name of the class without
+     * its package or enclosing class.
+     *
+     * @return The name of the event type.
+     */
+    protected String getEventName() {
+	String name = getClass().getName();
+	return name.substring(Math.max(name.lastIndexOf('.'), name
+		.lastIndexOf('$')) + 1);
+    }
+
+    /**
+     * The description of the event type. By default, the name of the class.
+     *
+     * @return The description of the event type.
+     */
+    protected String getEventDescription() {
+	return getClass().getName();
+    }
+
+    /**
+     * Return the event type of this class of event.
+     *
+     * @return The event type.
+     */
+    public final EventType getEventType() {
+	return getSchema().eventType;
+    }
+
+    /**
+     * Add the event type of this class of event to a logger, unless it has
+     * been added already. This must be done before events of the class are
+     * emitted to the logger's feedlets.
+     *
+     * @param logger
+     *                The logger.
+     */
+    public final void register(IGenericLogger logger) {
+	Schema s = getSchema();
+	synchronized (s) {
+	    if (s.loggers.containsKey(logger)) {
+		return;
+	    }
+	    s.loggers.put(logger, null);
+	}
+	logger.addEventType(s.eventType);
+    }
+
+    /**
+     * Add an event with the current values of the fields to a feedlet.
+     *
+     * @param feedlet
+     *                The feedlet.
+     */
+    public final void emit(IFeedlet feedlet) {
+	if (record == null) {
+	    record = new EventRecord(getSchema().eventType);
+	}
+	Accessors s = getAccessors();
+	try {
+	    for (int i = 0; i < s.ints.length; i++) {
+		record.setInt(i, s.ints[i].getInt(this));
+	    }
+	    for (int i = 0; i < s.longs.length; i++) {
+		record.setLong(i, s.longs[i].getLong(this));
+	    }
+	    for (int i = 0; i < s.doubles.length; i++) {
+		record.setDouble(i, s.doubles[i].getDouble(this));
+	    }
+	    for (int i = 0; i < s.strings.length; i++) {
+		String value = (String) s.strings[i].get(this);
+		record.setString(i, value == null ? "" : value);
+	    }
+	} catch (IllegalAccessException e) {
+	    // The fields were made accessible when the schema was built
+	    throw new IllegalStateException(e.toString());
+	}
+	feedlet.addEvent(record);
+    }
+
+    /**
+     * Add an event with the current values of the fields to the feedlet
+     * bound to the current thread.
+     */
+    public final void emit() {
+	emit(Feedlet.getBoundFeedlet());
+    }
+
+    private Schema getSchema() {
+	Schema s = schema;
+	if (s == null) {
+	    synchronized (schemas) {
+		s = (Schema) schemas.get(getClass());
+		if (s == null) {
+		    Accessors a = makeAccessors();
+		    s = new Schema(makeEventType(a), a);
+		    schemas.put(getClass(), s);
+		    accessors = a;
+		}
+	    }
+	    schema = s;
+	}
+	return s;
+    }
+
+    private Accessors getAccessors() {
+	Accessors a = accessors;
+	if (a == null) {
+	    Schema s = getSchema();
+	    synchronized (schemas) {
+		a = (Accessors) s.accessors.get();
+		if (a == null) {
+		    a = makeAccessors();
+		    s.accessors = new WeakReference(a);
+		}
+	    }
+	    accessors = a;
+	}
+	return a;
+    }
+
+    private Accessors makeAccessors() {
+	ArrayList/* <Field> */ints = new ArrayList/* <Field> */();
+	ArrayList/* <Field> */longs = new ArrayList/* <Field> */();
+	ArrayList/* <Field> */doubles = new ArrayList/* <Field> */();
+	ArrayList/* <Field> */strings = new ArrayList/* <Field> */();
+	// The field each name was taken by, to reject hidden fields
+	Map/* <String, Field> */names = new HashMap/* <String, Field> */();
+	for (Class c = getClass(); c != TypedEvent.class; c = c
+		.getSuperclass()) {
+	    Field[] fields = c.getDeclaredFields();
+	    for (int i = 0; i < fields.length; i++) {
+		Field field = fields[i];
+		int modifiers = field.getModifiers();
+		if (Modifier.isStatic(modifiers)
+			|| Modifier.isTransient(modifiers)
+			|| field.isSynthetic()) {
+		    continue;
+		}
+		Field hiding = (Field) names.put(field.getName(), field);
+		if (hiding != null) {
+		    throw new IllegalArgumentException("TypedEvent: field "
+			    + field.getName() + " of "
+			    + hiding.getDeclaringClass().getName()
+			    + " hides a field of the same name in "
+			    + c.getName());
+		}
+		Class type = field.getType();
+		if (type == Integer.TYPE) {
+		    ints.add(field);
+		} else if (type == Long.TYPE) {
+		    longs.add(field);
+		} else if (type == Double.TYPE) {
+		    doubles.add(field);
+		} else if (type == String.class) {
+		    strings.add(field);
+		} else {
+		    throw new IllegalArgumentException("TypedEvent: field "
+			    + field.getName() + " of " + getClass().getName()
+			    + " is not an int, long, double or String");
+		}
+		field.setAccessible(true);
+	    }
+	}
+	return new Accessors(sortByName(ints), sortByName(longs),
+		sortByName(doubles), sortByName(strings));
+    }
+
+    private EventType makeEventType(Accessors a) {
+	ArrayList/* <EventAttribute> */attributes = new ArrayList/* <EventAttribute> */();
+	addAttributes(attributes, a.ints, ScalarType.INT);
+	addAttributes(attributes, a.longs, ScalarType.LONG);
+	addAttributes(attributes, a.doubles, ScalarType.DOUBLE);
+	addAttributes(attributes, a.strings, ScalarType.STRING);
+	return new EventType(getEventName(), getEventDescription(),
+		(EventAttribute[]) attributes
+			.toArray(new EventAttribute[attributes.size()]));
+    }
+
+    /* Field order is not specified by reflection, so names decide it */
+    private static Field[] sortByName(ArrayList/* <Field> */list) {
+	Field[] fields = (Field[]) list.toArray(new Field[list.size()]);
+	Arrays.sort(fields, new Comparator() {
+	    public int compare(Object a, Object b) {
+		return ((Field) a).getName().compareTo(((Field) b).getName());
+	    }
+	});
+	return fields;
+    }
+
+    private static void addAttributes(ArrayList/* <EventAttribute> */attributes,
+	    Field[] fields, ScalarType type) {
+	for (int i = 0; i < fields.length; i++) {
+	    String name = fields[i].getName();
+	    attributes.add(new EventAttribute(name, name, type));
+	}
+    }
+}
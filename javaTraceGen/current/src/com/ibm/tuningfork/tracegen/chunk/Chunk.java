@@ -14,18 +14,19 @@
 
 package com.ibm.tuningfork.tracegen.chunk;
 
+import java.nio.ByteBuffer;
 
 public abstract class Chunk extends RawChunk {
 
-    private static final int MAGIC_WORD_1 = 0xdeadbeef;
-    private static final int MAGIC_WORD_2 = 0xcafebabe;
-    private static final int LENGTH_OFFSET = 8;
-    private static final int CHUNK_TYPE_OFFSET = 12;
+    protected static final int MAGIC_WORD_1 = 0xdeadbeef;
+    protected static final int MAGIC_WORD_2 = 0xcafebabe;
+    protected static final int LENGTH_OFFSET = 8;
+    protected static final int CHUNK_TYPE_OFFSET = 12;
     protected static final int DATA_OFFSET = 16;
 
     protected final static int DEFAULT_CHUNK_SIZE = 16 * 1024;
 
-    protected Chunk(int chunkType, byte[] buffer) {
+    protected Chunk(int chunkType, ByteBuffer buffer) {
 	super(buffer);
 	addInt(MAGIC_WORD_1);
 	addInt(MAGIC_WORD_2);
@@ -34,6 +35,10 @@ public abstract class Chunk extends RawChunk {
 	seek(DATA_OFFSET);
     }
 
+    protected Chunk(int chunkType, byte[] buffer) {
+	this(chunkType, ByteBuffer.wrap(buffer));
+    }
+
     protected Chunk(int chunkType, int capacity) {
 	this(chunkType, new byte[capacity]);
     }
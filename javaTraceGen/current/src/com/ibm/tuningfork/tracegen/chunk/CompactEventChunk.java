@@ -0,0 +1,242 @@
+/*
+ * This file is part of the Tuning Fork Visualization Platform
+ *  (http://sourceforge.net/projects/tuningforkvp)
+ *
+ * Copyright (c) 2005 - 2008 IBM Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ */
+
+package com.ibm.tuningfork.tracegen.chunk;
+
+import java.nio.ByteBuffer;
+
+import com.ibm.tuningfork.tracegen.types.EventRecord;
+import com.ibm.tuningfork.tracegen.types.EventType;
+
+/*
+ * An event chunk whose events are encoded compactly. The chunk header is that
+ * of an EventChunk, but each event is encoded as:
+ *
+ *   time stamp    delta from the previous event's time stamp in the chunk
+ *                 (from zero for the first event), zigzag varint
+ *   type index    varint
+ *   ints, longs   zigzag varints
+ *   doubles       8 bytes, as in EventChunk
+ *   strings       varint reference: 0 is followed by the String as in
+ *                 EventChunk, n refers to entry n - 1 of the string table
+ *
+ * A varint holds 7 bits per byte, least significant first, with the high bit
+ * set on every byte but the last. Zigzag encoding maps signed values of small
+ * magnitude to small unsigned values: (n << 1) ^ (n >> 63).
+ *
+ * Time stamps in a chunk are usually close together and type indices small,
+ * so a timer event takes 3 or 4 bytes rather than 12. The delta encoding
+ * means a compact chunk must be written by one thread at a time.
+ */
+public class CompactEventChunk extends EventChunk {
+
+    public static final int COMPACT_EVENT_TYPE_ID = 8;
+
+    /* Worst case size of the time stamp and type index */
+    private static final int MAX_HEADER_SPACE = MAX_ENCODING_SPACE_VARLONG
+	    + MAX_ENCODING_SPACE_VARINT;
+
+    /* The string reference that precedes a String written in full */
+    private static final int INLINE_STRING = 0;
+
+    private long lastTimeStamp = 0;
+
+    public CompactEventChunk(boolean autoFlush) {
+	this(autoFlush, ByteBuffer.allocate(DEFAULT_EVENT_CHUNK_SIZE));
+    }
+
+    public CompactEventChunk(boolean autoFlush, ByteBuffer buffer) {
+	super(COMPACT_EVENT_TYPE_ID, autoFlush, buffer);
+    }
+
+    public void reset(int feedletIndex, int sequenceNumber) {
+	super.reset(feedletIndex, sequenceNumber);
+	lastTimeStamp = 0;
+    }
+
+    private static long zigzag(long value) {
+	return (value << 1) ^ (value >> 63);
+    }
+
+    private void putHeader(long timeStamp, EventType et) {
+	putVarLong(zigzag(timeStamp - lastTimeStamp));
+	putVarInt(et.getIndex());
+	lastTimeStamp = timeStamp;
+    }
+
+    public boolean addEvent(long timeStamp, EventType et) {
+	if (!canAddEvent(timeStamp, MAX_HEADER_SPACE)) {
+	    return false;
+	}
+	putHeader(timeStamp, et);
+	countEvents(1);
+	return true;
+    }
+
+    public boolean addEvent(long timeStamp, EventType et, int v) {
+	int required = MAX_HEADER_SPACE + MAX_ENCODING_SPACE_VARINT;
+	if (!canAddEvent(timeStamp, required)) {
+	    return false;
+	}
+	putHeader(timeStamp, et);
+	putVarInt((v << 1) ^ (v >> 31));
+	countEvents(1);
+	return true;
+    }
+
+    public boolean addEvent(long timeStamp, EventType et, long v) {
+	int required = MAX_HEADER_SPACE + MAX_ENCODING_SPACE_VARLONG;
+	if (!canAddEvent(timeStamp, required)) {
+	    return false;
+	}
+	putHeader(timeStamp, et);
+	putVarLong(zigzag(v));
+	countEvents(1);
+	return true;
+    }
+
+    public boolean addEvent(long timeStamp, EventType et, double v) {
+	int required = MAX_HEADER_SPACE + ENCODING_SPACE_DOUBLE;
+	if (!canAddEvent(timeStamp, required)) {
+	    return false;
+	}
+	putHeader(timeStamp, et);
+	addDouble(v);
+	countEvents(1);
+	return true;
+    }
+
+    public boolean addEvent(long timeStamp, EventType et, String v) {
+	int guess = MAX_HEADER_SPACE + 1 + v.length();
+	if (!canAddEvent(timeStamp, guess)) {
+	    return false;
+	}
+	int savedCursor = getPosition();
+	long savedTimeStamp = lastTimeStamp;
+	putHeader(timeStamp, et);
+	putVarInt(INLINE_STRING);
+	if (!addString(v)) {
+	    seek(savedCursor);
+	    lastTimeStamp = savedTimeStamp;
+	    return false;
+	}
+	countEvents(1);
+	return true;
+    }
+
+    public boolean addEvent(long timeStamp, EventType et, EncodedString v) {
+	int id = v.getId();
+	int required = MAX_HEADER_SPACE + MAX_ENCODING_SPACE_VARINT;
+	if (id == EncodedString.NO_ID) {
+	    required += v.getEncodedSize();
+	}
+	if (!canAddEvent(timeStamp, required)) {
+	    return false;
+	}
+	putHeader(timeStamp, et);
+	if (id == EncodedString.NO_ID) {
+	    putVarInt(INLINE_STRING);
+	    addString(v);
+	} else {
+	    putVarInt(id + 1);
+	}
+	countEvents(1);
+	return true;
+    }
+
+    public int addEvents(long[] timeStamps, EventType et, int[] values,
+	    int offset, int length) {
+	int n = batchSize(timeStamps, offset, length, MAX_HEADER_SPACE
+		+ MAX_ENCODING_SPACE_VARINT);
+	for (int i = offset; i < offset + n; i++) {
+	    putHeader(timeStamps[i], et);
+	    putVarInt((values[i] << 1) ^ (values[i] >> 31));
+	}
+	countEvents(n);
+	return n;
+    }
+
+    public int addEvents(long[] timeStamps, EventType et, long[] values,
+	    int offset, int length) {
+	int n = batchSize(timeStamps, offset, length, MAX_HEADER_SPACE
+		+ MAX_ENCODING_SPACE_VARLONG);
+	for (int i = offset; i < offset + n; i++) {
+	    putHeader(timeStamps[i], et);
+	    putVarLong(zigzag(values[i]));
+	}
+	countEvents(n);
+	return n;
+    }
+
+    public int addEvents(long[] timeStamps, EventType et, double[] values,
+	    int offset, int length) {
+	int n = batchSize(timeStamps, offset, length, MAX_HEADER_SPACE
+		+ ENCODING_SPACE_DOUBLE);
+	for (int i = offset; i < offset + n; i++) {
+	    putHeader(timeStamps[i], et);
+	    addDouble(values[i]);
+	}
+	countEvents(n);
+	return n;
+    }
+
+    /* Every attribute is variable length, so there is no fixed size */
+    public boolean addEvent(long timeStamp, EventRecord record) {
+	return addEvent(timeStamp, record.getEventType(), record.getInts(),
+		record.getLongs(), record.getDoubles(), record.getStrings());
+    }
+
+    public boolean addEvent(long timeStamp, EventType et, int[] idata,
+	    long[] ldata, double[] ddata, String[] sdata) {
+	int ilen = (idata == null) ? 0 : idata.length;
+	int llen = (ldata == null) ? 0 : ldata.length;
+	int dlen = (ddata == null) ? 0 : ddata.length;
+	int slen = (sdata == null) ? 0 : sdata.length;
+	int guess = MAX_HEADER_SPACE + ilen * MAX_ENCODING_SPACE_VARINT + llen
+		* MAX_ENCODING_SPACE_VARLONG + dlen * ENCODING_SPACE_DOUBLE;
+	for (int i = 0; i < slen; i++) {
+	    guess += 1 + sdata[i].length();
+	}
+	if (!canAddEvent(timeStamp, guess)) {
+	    return false;
+	}
+	int savedPosition = getPosition();
+	long savedTimeStamp = lastTimeStamp;
+	putHeader(timeStamp, et);
+	for (int i = 0; i < ilen; i++) {
+	    putVarInt((idata[i] << 1) ^ (idata[i] >> 31));
+	}
+	for (int i = 0; i < llen; i++) {
+	    putVarLong(zigzag(ldata[i]));
+	}
+	for (int i = 0; i < dlen; i++) {
+	    addDouble(ddata[i]);
+	}
+	for (int i = 0; i < slen; i++) {
+	    if (!hasRoom(1)) {
+		seek(savedPosition);
+		lastTimeStamp = savedTimeStamp;
+		return false;
+	    }
+	    putVarInt(INLINE_STRING);
+	    if (!addString(sdata[i])) {
+		seek(savedPosition);
+		lastTimeStamp = savedTimeStamp;
+		return false;
+	    }
+	}
+	countEvents(1);
+	return true;
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * This file is part of the Tuning Fork Visualization Platform
+ *  (http://sourceforge.net/projects/tuningforkvp)
+ *
+ * Copyright (c) 2005 - 2008 IBM Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ */
+
+package com.ibm.tuningfork.tracegen.chunk;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/*
+ * A container holding another closed chunk compressed with Deflate. The body
+ * is the length of the original chunk (header included) followed by the
+ * Deflate stream of the original chunk. A reader inflates the stream and
+ * parses the result as it would any other chunk.
+ */
+public final class CompressedChunk extends Chunk {
+
+    public static final int COMPRESSED_TYPE_ID = 9;
+    public static final int UNCOMPRESSED_LENGTH_OFFSET = Chunk.DATA_OFFSET;
+    public static final int COMPRESSED_DATA_OFFSET = Chunk.DATA_OFFSET + 4;
+
+    private final byte[] buffer;
+
+    public CompressedChunk(int capacity) {
+	this(new byte[capacity]);
+    }
+
+    private CompressedChunk(byte[] buffer) {
+	super(COMPRESSED_TYPE_ID, buffer);
+	this.buffer = buffer;
+    }
+
+    public void reset() {
+	resetImpl();
+	seek(DATA_OFFSET);
+    }
+
+    /*
+     * Compress a closed chunk into this one, which is left closed. Returns
+     * false, leaving this chunk to be reset, if the compressed chunk would be
+     * no smaller than the original or would not fit in this one. Scratch must be large enough to hold the
+     * original if it is not backed by an array.
+     */
+    public boolean compress(RawChunk chunk, Deflater deflater, byte[] scratch) {
+	ByteBuffer view = chunk.getByteBuffer();
+	int length = view.remaining();
+	deflater.reset();
+	if (view.hasArray()) {
+	    deflater.setInput(view.array(), view.arrayOffset(), length);
+	} else {
+	    view.get(scratch, 0, length);
+	    deflater.setInput(scratch, 0, length);
+	}
+	deflater.finish();
+	int limit = Math.min(buffer.length, length);
+	int pos = COMPRESSED_DATA_OFFSET;
+	while (!deflater.finished() && pos < limit) {
+	    pos += deflater.deflate(buffer, pos, limit - pos);
+	}
+	if (!deflater.finished() || pos >= length) {
+	    return false;
+	}
+	seek(UNCOMPRESSED_LENGTH_OFFSET);
+	addInt(length);
+	seek(pos);
+	close();
+	return true;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * This file is part of the Tuning Fork Visualization Platform
+ *  (http://sourceforge.net/projects/tuningforkvp)
+ *
+ * Copyright (c) 2005 - 2008 IBM Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ */
+
+package com.ibm.tuningfork.tracegen.chunk;
+
+/*
+ * A String together with its encoding as written by RawChunk.addString, so
+ * that a String logged repeatedly is only encoded once. Once the String has
+ * been entered in the feed's string table it also carries its index there,
+ * which compact event chunks write in place of the String.
+ *
+ * Instances are immutable, so they may be shared between threads without
+ * synchronization.
+ */
+public final class EncodedString {
+
+    public static final int NO_ID = -1;
+
+    private final String string;
+    private final byte[] bytes;
+    private final int id;
+
+    public EncodedString(String string) {
+	this(string, encode(string), NO_ID);
+    }
+
+    private EncodedString(String string, byte[] bytes, int id) {
+	this.string = string;
+	this.bytes = bytes;
+	this.id = id;
+    }
+
+    /* A copy of this String that refers to the given string table entry */
+    public EncodedString withId(int id) {
+	return new EncodedString(string, bytes, id);
+    }
+
+    public String getString() {
+	return string;
+    }
+
+    public int getId() {
+	return id;
+    }
+
+    /* The number of bytes addString writes, including the length prefix */
+    public int getEncodedSize() {
+	return RawChunk.ENCODING_SPACE_INT + bytes.length;
+    }
+
+    byte[] getBytes() {
+	return bytes;
+    }
+
+    private static byte[] encode(String str) {
+	int strLen = str.length();
+	byte[] result = new byte[RawChunk.encodedSize(str)
+		- RawChunk.ENCODING_SPACE_INT];
+	int pos = 0;
+	for (int i = 0; i < strLen; i++) {
+	    char c = str.charAt(i);
+	    if (c <= 0x7f) {
+		result[pos++] = (byte) (c);
+	    } else if (c <= 0x7ff) {
+		result[pos++] = (byte) (0xc0 | (c >> 6));
+		result[pos++] = (byte) (0x80 | (c & 0x3f));
+	    } else {
+		result[pos++] = (byte) (0xe0 | (c >> 12));
+		result[pos++] = (byte) (0x80 | ((c & 0xfc0) >> 6));
+		result[pos++] = (byte) (0x80 | (c & 0x3f));
+	    }
+	}
+	return result;
+    }
+}
@@ -14,6 +14,11 @@
 
 package com.ibm.tuningfork.tracegen.chunk;
 
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.ibm.tuningfork.tracegen.types.EventRecord;
 import com.ibm.tuningfork.tracegen.types.EventType;
 
 public class EventChunk extends Chunk {
@@ -22,28 +27,342 @@ public class EventChunk extends Chunk {
     public static final int FEEDLET_ID_OFFSET = Chunk.DATA_OFFSET;
     public static final int SEQUENCE_NUMBER_OFFSET = Chunk.DATA_OFFSET + 4;
     public static final int EVENT_DATA_OFFSET = Chunk.DATA_OFFSET + 8;
-    protected final static int DEFAULT_EVENT_CHUNK_SIZE = 64 * 1024;
+    public final static int DEFAULT_EVENT_CHUNK_SIZE = 64 * 1024;
+    /*
+     * The bounds of the sizes of event chunks, which are powers of two so
+     * that each feedlet can use chunks suited to its rate of events.
+     */
+    public final static int MIN_EVENT_CHUNK_SIZE = 8 * 1024;
+    public final static int MAX_EVENT_CHUNK_SIZE = 256 * 1024;
    /* 1 second, assuming ticks are ns */
     public static final long TIMESTAMP_FLUSH_DELTA = 1000000000;
 
     protected final boolean autoFlush;
+    private int feedletIndex = 0;
+    private int sequenceNumber = 0;
     private int numberOfEvents = 0;
     private long firstTimeStamp = 0;
 
+    /*
+     * A harvestable chunk can have its events taken while it is still being
+     * filled, in pieces that become chunks of their own (see
+     * takePublishedEvents). After each event the owner publishes the number
+     * of events and the position that follows them, with an ordered store
+     * that never stalls it. The pieces taken so far are described by an
+     * immutable Cut, replaced with a compare-and-set so that the harvester
+     * and the owner, which seals the chunk before handing it over, agree on
+     * what each writes. A chunk that is reset gets a new Cut, so a harvester
+     * still holding the old one cannot mistake the chunk for the one it was
+     * copying from.
+     *
+     * The rest of the chunk is numbered after the pieces, so it must never
+     * be written before the last of them. The harvester hands a piece over
+     * before it installs the Cut that takes its events, and takes it back if
+     * the owner sealed the chunk first, so the owner never waits for it.
+     *
+     * Each piece after the first, and the rest of the chunk once pieces have
+     * been taken, starts with the leading event that was in force where it
+     * begins (see setLeadingEvent), so that it can be understood on its own
+     * like any other chunk.
+     */
+    private static final class Cut {
+	final int position;
+	final int events;
+	final int sequenceNumber;
+	// The leading entry in force at position (see setLeadingEvent)
+	final int leading;
+
+	Cut(int position, int events, int sequenceNumber, int leading) {
+	    this.position = position;
+	    this.events = events;
+	    this.sequenceNumber = sequenceNumber;
+	    this.leading = leading;
+	}
+    }
+
+    private static final int LEADING_EVENT_SIZE = ENCODING_SPACE_LONG
+	    + ENCODING_SPACE_INT + ENCODING_SPACE_LONG;
+    /* No leading event from the start of the chunk */
+    private static final int NO_LEADING = 0;
+    /* A leading entry whose position is not known to the harvester */
+    private static final int UNKNOWN_LEADING = -1;
+    private static final Cut SEALED = new Cut(0, 0, 0, NO_LEADING);
+
+    private boolean harvestable = false;
+    private final AtomicLong published = new AtomicLong(0);
+    private final AtomicReference/* <Cut> */cut = new AtomicReference/* <Cut> */();
+    /*
+     * The last two leading entries the owner set, the latest in the low
+     * half. An entry is the position at which it was set, shifted left by
+     * one, with the low bit set if the event at that position leads the
+     * events after it and clear if no event does.
+     */
+    private final AtomicLong leading = new AtomicLong(NO_LEADING);
+    // Used only by the harvester: what was published at its previous visit
+    private Cut seenCut;
+    private long seenPublished;
+    private int seenLeading;
+    // Used only by the harvester: the Cut the piece it last took installs
+    private Cut takenCut;
+
     public EventChunk(boolean autoFlush) {
 	super(EVENT_TYPE_ID, DEFAULT_EVENT_CHUNK_SIZE);
 	seek(EVENT_DATA_OFFSET);
 	this.autoFlush = autoFlush;
     }
 
+    /*
+     * Create an event chunk over the supplied storage, typically a direct
+     * buffer that is kept off the Java heap.
+     */
+    public EventChunk(boolean autoFlush, ByteBuffer buffer) {
+	super(EVENT_TYPE_ID, buffer);
+	seek(EVENT_DATA_OFFSET);
+	this.autoFlush = autoFlush;
+    }
+
+    /*
+     * For subclasses that encode events differently and so have a chunk
+     * type of their own.
+     */
+    protected EventChunk(int chunkType, boolean autoFlush, ByteBuffer buffer) {
+	super(chunkType, buffer);
+	seek(EVENT_DATA_OFFSET);
+	this.autoFlush = autoFlush;
+    }
+
+    public final boolean isAutoFlush() {
+	return autoFlush;
+    }
+
+    public final int getFeedletIndex() {
+	return feedletIndex;
+    }
+
+    /*
+     * The number of events added through addEvent and addEvents; events
+     * stored at reserved positions are not counted.
+     */
+    public final int getNumberOfEvents() {
+	return numberOfEvents;
+    }
+
+    /* The number of bytes written so far, the chunk header included */
+    public final int getSize() {
+	return getPosition();
+    }
+
+    /* For subclasses that add events with their own encoding */
+    protected final void countEvents(int n) {
+	numberOfEvents += n;
+	if (harvestable) {
+	    published.lazySet(((long) numberOfEvents << 32) | getPosition());
+	}
+    }
+
+    /*
+     * Let the events of this chunk be taken while it is being filled. Not
+     * for subclasses whose events depend on the events before them in the
+     * chunk.
+     */
+    public final void setHarvestable() {
+	harvestable = true;
+    }
+
+    /*
+     * Called by the owner of a harvestable chunk just before it adds an
+     * event, of type et with the single long attribute v, that is to be
+     * repeated at the start of every piece taken after it, or with a null
+     * event type to stop the repetition. The event itself is read back from
+     * the chunk, so only its position needs to be kept.
+     */
+    public final void setLeadingEvent(EventType et, long v) {
+	if (harvestable) {
+	    int entry = (getPosition() << 1) | (et != null ? 1 : 0);
+	    leading.lazySet((leading.get() << 32) | (entry & 0xffffffffL));
+	}
+    }
+
     public void reset(int feedletIndex, int sequenceNumber) {
 	super.resetImpl();
 	seek(FEEDLET_ID_OFFSET);
 	addInt(feedletIndex);
 	addInt(sequenceNumber);
 	seek(EVENT_DATA_OFFSET);
+	this.feedletIndex = feedletIndex;
+	this.sequenceNumber = sequenceNumber;
 	numberOfEvents = 0;
 	firstTimeStamp = 0;
+	if (harvestable) {
+	    published.set(EVENT_DATA_OFFSET);
+	    leading.set(NO_LEADING);
+	    cut.set(new Cut(EVENT_DATA_OFFSET, 0, sequenceNumber, NO_LEADING));
+	}
+    }
+
+    /*
+     * Called by the harvester at intervals. Returns the number of bytes of
+     * events there are to take if some of those published by the previous
+     * call have still not been taken, and 0 otherwise, so that events are
+     * only taken once they have waited for at least one interval.
+     */
+    public final int getHarvestableSize() {
+	Cut current = (Cut) cut.get();
+	if (current == null || current == SEALED) {
+	    return 0;
+	}
+	long latest = published.get();
+	int leadingAtLatest = leadingAt((int) latest, leading.get());
+	boolean due = current == seenCut && (int) seenPublished > current.position;
+	if (leadingAtLatest == UNKNOWN_LEADING) {
+	    // Try again next time
+	    seenCut = null;
+	    return 0;
+	}
+	seenCut = current;
+	seenPublished = latest;
+	seenLeading = leadingAtLatest;
+	if (!due) {
+	    return 0;
+	}
+	int size = (int) latest - current.position;
+	return hasLeadingEvent(current) ? size + LEADING_EVENT_SIZE : size;
+    }
+
+    private static boolean hasLeadingEvent(Cut cut) {
+	return (cut.leading & 1) != 0;
+    }
+
+    /*
+     * The leading entry in force at end, a position the owner had published
+     * before it set the entries in entries. An entry set at end or later was
+     * set after end was published, for the events that follow it. Returns
+     * UNKNOWN_LEADING if both entries were.
+     */
+    private static int leadingAt(int end, long entries) {
+	int latest = (int) entries;
+	if (latest >>> 1 < end) {
+	    return latest;
+	}
+	int previous = (int) (entries >>> 32);
+	return previous >>> 1 < end ? previous : UNKNOWN_LEADING;
+    }
+
+    /*
+     * Write the leading event of cut, stamped with the time of the first
+     * event that follows it in this chunk, at position in chunk. The event is
+     * read before it is written, since it may be overwritten. Returns the
+     * position that follows it.
+     */
+    private int putLeadingEvent(EventChunk chunk, int position, Cut cut) {
+	int at = cut.leading >>> 1;
+	long timeStamp = getLongAt(cut.position);
+	int type = getIntAt(at + ENCODING_SPACE_LONG);
+	long value = getLongAt(at + ENCODING_SPACE_LONG + ENCODING_SPACE_INT);
+	position = chunk.putLongAt(position, timeStamp);
+	position = chunk.putIntAt(position, type);
+	return chunk.putLongAt(position, value);
+    }
+
+    /*
+     * Called by the harvester after getHarvestableSize: copy the events it
+     * found into piece, which is reset to hold them as the next chunk of the
+     * feedlet. Returns false, leaving piece to be reused, if there is nothing
+     * to take or piece is too small. Events below the published position are
+     * never changed by the owner, so they can be copied while it adds more.
+     * On success the caller must hand piece over and then call commitPiece.
+     */
+    public final boolean takePublishedEvents(EventChunk piece) {
+	Cut current = seenCut;
+	int end = (int) seenPublished;
+	if (current == null || end <= current.position) {
+	    return false;
+	}
+	int size = end - current.position;
+	int events = (int) (seenPublished >>> 32) - current.events;
+	boolean withLeading = hasLeadingEvent(current);
+	if (withLeading) {
+	    size += LEADING_EVENT_SIZE;
+	    events++;
+	}
+	if (piece.getCapacity() < EVENT_DATA_OFFSET + size) {
+	    return false;
+	}
+	piece.reset(feedletIndex, current.sequenceNumber);
+	if (withLeading) {
+	    piece.seek(putLeadingEvent(piece, EVENT_DATA_OFFSET, current));
+	}
+	piece.addBytes(this, current.position, end);
+	piece.countEvents(events);
+	takenCut = new Cut(end, (int) (seenPublished >>> 32),
+		current.sequenceNumber + 1, seenLeading);
+	return true;
+    }
+
+    /*
+     * Called by the harvester once it has handed over the piece that the
+     * last successful takePublishedEvents filled, to take its events out of
+     * this chunk. Returns false if the owner sealed or reset this chunk in
+     * the meantime, in which case the copy may be garbage and the owner
+     * hands the events over itself, so the caller must take the piece back
+     * before it is written. The piece is handed over first so that whatever
+     * the owner hands over once it has sealed follows it.
+     */
+    public final boolean commitPiece() {
+	Cut next = takenCut;
+	takenCut = null;
+	return cut.compareAndSet(seenCut, next);
+    }
+
+    /*
+     * Called by the owner before handing the chunk over: stop the harvester
+     * from taking any more events, and leave the chunk holding only the
+     * events not yet taken, numbered after the pieces that were. Never waits
+     * for the harvester. Returns the number of pieces taken.
+     */
+    public final int seal() {
+	if (!harvestable) {
+	    return 0;
+	}
+	Cut last = (Cut) cut.getAndSet(SEALED);
+	if (last == null || last == SEALED) {
+	    return 0;
+	}
+	int taken = last.sequenceNumber - sequenceNumber;
+	if (taken != 0) {
+	    int end = getPosition();
+	    int position = EVENT_DATA_OFFSET;
+	    numberOfEvents -= last.events;
+	    // The events taken include the leading event, so it fits in front
+	    // of the rest without overwriting any of it
+	    if (end > last.position && hasLeadingEvent(last)) {
+		position = putLeadingEvent(this, position, last);
+		numberOfEvents++;
+	    }
+	    seek(position);
+	    addBytes(this, last.position, end);
+	    putIntAt(SEQUENCE_NUMBER_OFFSET, last.sequenceNumber);
+	    sequenceNumber = last.sequenceNumber;
+	}
+	return taken;
+    }
+
+    /*
+     * Store the time stamp and type that start an event at a position
+     * reserved by the caller (see RawChunk.putIntAt) and return the position
+     * of the event's attributes.
+     */
+    public final int putEventAt(int position, long timeStamp, EventType et) {
+	position = putLongAt(position, timeStamp);
+	return putIntAt(position, et.getIndex());
+    }
+
+    /*
+     * Mark the end of the events stored at reserved positions, once every
+     * writer has finished storing.
+     */
+    public final void commit(int end) {
+	seek(end);
     }
 
     protected final boolean canAddEvent(long timeStamp, int requiredSpace) {
@@ -66,7 +385,7 @@ public class EventChunk extends Chunk {
 	}
 	addLong(timeStamp);
 	addInt(et.getIndex());
-	numberOfEvents++;
+	countEvents(1);
 	return true;
     }
 
@@ -79,7 +398,7 @@ public class EventChunk extends Chunk {
 	addLong(timeStamp);
 	addInt(et.getIndex());
 	addInt(v);
-	numberOfEvents++;
+	countEvents(1);
 	return true;
     }
 
@@ -92,7 +411,7 @@ public class EventChunk extends Chunk {
 	addLong(timeStamp);
 	addInt(et.getIndex());
 	addLong(v);
-	numberOfEvents++;
+	countEvents(1);
 	return true;
     }
 
@@ -105,7 +424,7 @@ public class EventChunk extends Chunk {
 	addLong(timeStamp);
 	addInt(et.getIndex());
 	addDouble(v);
-	numberOfEvents++;
+	countEvents(1);
 	return true;
     }
 
@@ -121,7 +440,130 @@ public class EventChunk extends Chunk {
 	    seek(savedCursor);
 	    return false;
 	}
-	numberOfEvents++;
+	countEvents(1);
+	return true;
+    }
+
+    public boolean addEvent(long timeStamp, EventType et, EncodedString v) {
+	int required = ENCODING_SPACE_LONG + ENCODING_SPACE_INT
+		+ v.getEncodedSize();
+	if (!canAddEvent(timeStamp, required)) {
+	    return false;
+	}
+	addLong(timeStamp);
+	addInt(et.getIndex());
+	addString(v);
+	countEvents(1);
+	return true;
+    }
+
+    /*
+     * Batch additions: add as many of the length events starting at offset as
+     * fit, returning how many were added. Room is checked once per call. Time
+     * stamps must not decrease.
+     */
+    public int addEvents(long[] timeStamps, EventType et, int[] values,
+	    int offset, int length) {
+	int eventSize = ENCODING_SPACE_LONG + ENCODING_SPACE_INT
+		+ ENCODING_SPACE_INT;
+	int n = batchSize(timeStamps, offset, length, eventSize);
+	int position = getPosition();
+	int typeIndex = et.getIndex();
+	for (int i = offset; i < offset + n; i++) {
+	    position = putLongAt(position, timeStamps[i]);
+	    position = putIntAt(position, typeIndex);
+	    position = putIntAt(position, values[i]);
+	}
+	seek(position);
+	countEvents(n);
+	return n;
+    }
+
+    public int addEvents(long[] timeStamps, EventType et, long[] values,
+	    int offset, int length) {
+	int eventSize = ENCODING_SPACE_LONG + ENCODING_SPACE_INT
+		+ ENCODING_SPACE_LONG;
+	int n = batchSize(timeStamps, offset, length, eventSize);
+	int position = getPosition();
+	int typeIndex = et.getIndex();
+	for (int i = offset; i < offset + n; i++) {
+	    position = putLongAt(position, timeStamps[i]);
+	    position = putIntAt(position, typeIndex);
+	    position = putLongAt(position, values[i]);
+	}
+	seek(position);
+	countEvents(n);
+	return n;
+    }
+
+    public int addEvents(long[] timeStamps, EventType et, double[] values,
+	    int offset, int length) {
+	int eventSize = ENCODING_SPACE_LONG + ENCODING_SPACE_INT
+		+ ENCODING_SPACE_DOUBLE;
+	int n = batchSize(timeStamps, offset, length, eventSize);
+	int position = getPosition();
+	int typeIndex = et.getIndex();
+	for (int i = offset; i < offset + n; i++) {
+	    position = putLongAt(position, timeStamps[i]);
+	    position = putIntAt(position, typeIndex);
+	    position = putDoubleAt(position, values[i]);
+	}
+	seek(position);
+	countEvents(n);
+	return n;
+    }
+
+    /*
+     * How many of the events starting at offset can be added to this chunk,
+     * given the most space any one of them may take.
+     */
+    protected final int batchSize(long[] timeStamps, int offset, int length,
+	    int maxEventSize) {
+	int n = Math.min(length, getRemaining() / maxEventSize);
+	if (!autoFlush || n == 0) {
+	    return n;
+	}
+	if (firstTimeStamp == 0) {
+	    firstTimeStamp = timeStamps[offset];
+	}
+	int fit = 0;
+	while (fit < n
+		&& timeStamps[offset + fit] - firstTimeStamp < TIMESTAMP_FLUSH_DELTA) {
+	    fit++;
+	}
+	return fit;
+    }
+
+    /*
+     * As addEvent with arrays, but the space needed by an event of a type
+     * without String attributes is known from the type.
+     */
+    public boolean addEvent(long timeStamp, EventRecord record) {
+	EventType et = record.getEventType();
+	if (et.getNumberOfStrings() != 0) {
+	    return addEvent(timeStamp, et, record.getInts(), record.getLongs(),
+		    record.getDoubles(), record.getStrings());
+	}
+	int required = ENCODING_SPACE_LONG + ENCODING_SPACE_INT
+		+ et.getFixedAttributeSize();
+	if (!canAddEvent(timeStamp, required)) {
+	    return false;
+	}
+	addLong(timeStamp);
+	addInt(et.getIndex());
+	int[] idata = record.getInts();
+	for (int i = 0; i < idata.length; i++) {
+	    addInt(idata[i]);
+	}
+	long[] ldata = record.getLongs();
+	for (int i = 0; i < ldata.length; i++) {
+	    addLong(ldata[i]);
+	}
+	double[] ddata = record.getDoubles();
+	for (int i = 0; i < ddata.length; i++) {
+	    addDouble(ddata[i]);
+	}
+	countEvents(1);
 	return true;
     }
 
@@ -158,7 +600,7 @@ public class EventChunk extends Chunk {
 		return false;
 	    }
 	}
-	numberOfEvents++;
+	countEvents(1);
 	return true;
     }
 
@@ -36,19 +36,19 @@ public class FeedletChunk extends Chunk {
 	return feedletOperations > 0;
     }
 
-    public void add(int feedletIndex, String name, String description) {
+    public boolean add(int feedletIndex, String name, String description) {
 	if (!hasRoom(ENCODING_SPACE_INT * 6
 		+ NAME_PROPERTY.length()
 		+ DECSRIPTION_PROPERTY.length()
 		+ name.length() + description.length())) {
-	    System.err.println("FeedletChunk.add ran out of room");
-	    return;
+	    return false;
 	}
 	addInt(FEEDLET_ADD_OPERATION);
 	addInt(feedletIndex);
 	feedletOperations++;
 	addProperty(feedletIndex, NAME_PROPERTY, name);
 	addProperty(feedletIndex, DECSRIPTION_PROPERTY, description);
+	return true;
     }
 
     public boolean addProperty(int feedletIndex, String key, String val) {
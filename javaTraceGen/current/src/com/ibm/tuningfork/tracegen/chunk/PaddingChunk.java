@@ -0,0 +1,44 @@
+/*
+ * This file is part of the Tuning Fork Visualization Platform
+ *  (http://sourceforge.net/projects/tuningforkvp)
+ *
+ * Copyright (c) 2005 - 2008 IBM Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ */
+
+package com.ibm.tuningfork.tracegen.chunk;
+
+import java.nio.ByteBuffer;
+
+/*
+ * A padding chunk carries no data and only exists to fill space in outputs
+ * that are laid out in fixed-size regions, such as a ring file. Readers skip
+ * it like any other chunk whose type they do not interpret. Since a padding
+ * chunk has no body of interest, only its header is ever written and it is
+ * written directly into the destination buffer.
+ */
+public final class PaddingChunk {
+
+    public static final int PADDING_TYPE_ID = 7;
+    public static final int HEADER_SIZE = Chunk.DATA_OFFSET;
+
+    private PaddingChunk() {
+    }
+
+    /*
+     * Write the header of a padding chunk that occupies length bytes
+     * (including the header itself) starting at position.
+     */
+    public static void putHeader(ByteBuffer buffer, int position, int length) {
+	buffer.putInt(position, Chunk.MAGIC_WORD_1);
+	buffer.putInt(position + 4, Chunk.MAGIC_WORD_2);
+	buffer.putInt(position + Chunk.LENGTH_OFFSET, length - HEADER_SIZE);
+	buffer.putInt(position + Chunk.CHUNK_TYPE_OFFSET, PADDING_TYPE_ID);
+    }
+}
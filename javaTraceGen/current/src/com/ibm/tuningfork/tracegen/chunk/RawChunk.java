@@ -16,6 +16,9 @@ package com.ibm.tuningfork.tracegen.chunk;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 
 /*
  * There are 3 basic operations: (1) Closing a chunk which involves fixing up
@@ -28,21 +31,31 @@ import java.io.OutputStream;
  * written out and the position is undefined on return. (3) Reset which allows
  * the buffer object to be reused. Subclasses that can actually be reset should
  * define a reset method and use the resetImpl method here.
+ *
+ * The data is kept in a big-endian ByteBuffer which is either a wrapped byte
+ * array on the Java heap or a direct buffer outside of it.
  */
 public abstract class RawChunk {
 
     public final static int ENCODING_SPACE_INT = 4;
     public final static int ENCODING_SPACE_LONG = 8;
     public final static int ENCODING_SPACE_DOUBLE = 8;
+    public final static int MAX_ENCODING_SPACE_VARINT = 5;
+    public final static int MAX_ENCODING_SPACE_VARLONG = 10;
 
-    private final byte[] data;
+    private final ByteBuffer data;
     private int cursor = 0;
     private boolean open = true;
+    private long readyTime = 0;
 
-    protected RawChunk(byte[] buffer) {
+    protected RawChunk(ByteBuffer buffer) {
 	data = buffer;
     }
 
+    protected RawChunk(byte[] buffer) {
+	this(ByteBuffer.wrap(buffer));
+    }
+
     protected RawChunk(int capacity) {
 	this(new byte[capacity]);
     }
@@ -54,9 +67,45 @@ public abstract class RawChunk {
 	open = false;
     }
 
+    public final boolean isOpen() {
+	return open;
+    }
+
+    /*
+     * When the chunk was handed over to be written, in System.nanoTime()
+     * terms, so that the logger can measure how long writing takes.
+     */
+    public final long getReadyTime() {
+	return readyTime;
+    }
+
+    public final void setReadyTime(long time) {
+	readyTime = time;
+    }
+
     /* Synchronous */
     public final void write(OutputStream outputStream) throws IOException {
-	outputStream.write(data, 0, cursor);
+	if (data.hasArray()) {
+	    outputStream.write(data.array(), data.arrayOffset(), cursor);
+	} else {
+	    ByteBuffer view = getByteBuffer();
+	    WritableByteChannel channel = Channels.newChannel(outputStream);
+	    while (view.hasRemaining()) {
+		channel.write(view);
+	    }
+	}
+    }
+
+    /*
+     * A view of the written portion of the chunk suitable for channel writes.
+     * The view shares the chunk's storage, so the chunk must not be reset
+     * until the returned buffer has been drained.
+     */
+    public final ByteBuffer getByteBuffer() {
+	ByteBuffer view = data.duplicate();
+	view.position(0);
+	view.limit(cursor);
+	return view;
     }
 
     protected void resetImpl() {
@@ -73,10 +122,14 @@ public abstract class RawChunk {
     }
 
     protected final boolean hasRoom(int bytes) {
-	int remaining = data.length - cursor;
+	int remaining = data.capacity() - cursor;
 	return remaining >= bytes;
     }
 
+    protected final int getRemaining() {
+	return data.capacity() - cursor;
+    }
+
     protected final boolean addLong(long l) {
 	if (!hasRoom(ENCODING_SPACE_LONG)) {
 	    return false;
@@ -105,7 +158,7 @@ public abstract class RawChunk {
 	if (!hasRoom(1)) {
 	    return false;
 	}
-	data[cursor++] = b;
+	data.put(cursor++, b);
 	return true;
     }
 
@@ -133,22 +186,22 @@ public abstract class RawChunk {
 	for (int i=0; i<strLen; i++) {
 	    char c = str.charAt(i);
 	    if (c <= 0x7f) {
-		data[cursor++] = (byte)(c);
+		data.put(cursor++, (byte)(c));
 	    } else if (c <= 0x7ff) {
 		if (!hasRoom(1 + (strLen-i))) {
 		    cursor = startCursor;
 		    return false;
 		}
-		data[cursor++] = (byte)(0xc0 | (c >> 6));
-		data[cursor++] = (byte)(0x80 | (c & 0x3f));
+		data.put(cursor++, (byte)(0xc0 | (c >> 6)));
+		data.put(cursor++, (byte)(0x80 | (c & 0x3f)));
 	    } else {
 		if (!hasRoom(2 + (strLen-i))) {
 		    cursor = startCursor;
 		    return false;
 		}
-		data[cursor++] = (byte)(0xe0 | (c >> 12));
-		data[cursor++] = (byte)(0x80 | ((c & 0xfc0) >> 6));
-		data[cursor++] = (byte)(0x80 | (c & 0x3f));
+		data.put(cursor++, (byte)(0xe0 | (c >> 12)));
+		data.put(cursor++, (byte)(0x80 | ((c & 0xfc0) >> 6)));
+		data.put(cursor++, (byte)(0x80 | (c & 0x3f)));
 	    }
 	}
 	int endCursor = cursor;
@@ -159,23 +212,137 @@ public abstract class RawChunk {
 	return true;
     }
 
+    /*
+     * Write a String whose encoding was computed beforehand, as a block copy.
+     */
+    protected final boolean addString(EncodedString str) {
+	byte[] bytes = str.getBytes();
+	if (!hasRoom(ENCODING_SPACE_INT + bytes.length)) {
+	    return false;
+	}
+	putInt(bytes.length);
+	data.position(cursor);
+	data.put(bytes);
+	cursor += bytes.length;
+	return true;
+    }
+
+    /*
+     * Append the bytes from up to end of chunk, which may be this chunk as
+     * long as from is not before the cursor. The caller must have checked
+     * that there is room.
+     */
+    protected final void addBytes(RawChunk chunk, int from, int end) {
+	ByteBuffer source = chunk.data;
+	while (from + ENCODING_SPACE_LONG <= end) {
+	    data.putLong(cursor, source.getLong(from));
+	    cursor += ENCODING_SPACE_LONG;
+	    from += ENCODING_SPACE_LONG;
+	}
+	while (from < end) {
+	    data.put(cursor++, source.get(from++));
+	}
+    }
+
+    /* Read back a long stored earlier, such as the time stamp of an event */
+    protected final long getLongAt(int position) {
+	return data.getLong(position);
+    }
+
+    /* Read back an int stored earlier, such as the type of an event */
+    protected final int getIntAt(int position) {
+	return data.getInt(position);
+    }
+
+    /*
+     * The number of bytes that addString uses to encode str, including the
+     * length prefix.
+     */
+    public static int encodedSize(String str) {
+	int strLen = str.length();
+	int size = ENCODING_SPACE_INT + strLen;
+	for (int i = 0; i < strLen; i++) {
+	    char c = str.charAt(i);
+	    if (c > 0x7ff) {
+		size += 2;
+	    } else if (c > 0x7f) {
+		size += 1;
+	    }
+	}
+	return size;
+    }
+
+    public final int getCapacity() {
+	return data.capacity();
+    }
+
+    /*
+     * Positional stores for writers that reserve space in the chunk
+     * themselves. They neither check bounds nor move the cursor, so several
+     * threads may store into disjoint regions of one chunk at the same time.
+     * Each returns the position that follows the stored value.
+     */
+    public final int putIntAt(int position, int value) {
+	data.putInt(position, value);
+	return position + ENCODING_SPACE_INT;
+    }
+
+    public final int putLongAt(int position, long value) {
+	data.putLong(position, value);
+	return position + ENCODING_SPACE_LONG;
+    }
+
+    public final int putDoubleAt(int position, double value) {
+	data.putLong(position, Double.doubleToLongBits(value));
+	return position + ENCODING_SPACE_DOUBLE;
+    }
+
+    /* The caller must have reserved encodedSize(str) bytes */
+    public final int putStringAt(int position, String str) {
+	int strLen = str.length();
+	int pos = position + ENCODING_SPACE_INT;
+	for (int i = 0; i < strLen; i++) {
+	    char c = str.charAt(i);
+	    if (c <= 0x7f) {
+		data.put(pos++, (byte) (c));
+	    } else if (c <= 0x7ff) {
+		data.put(pos++, (byte) (0xc0 | (c >> 6)));
+		data.put(pos++, (byte) (0x80 | (c & 0x3f)));
+	    } else {
+		data.put(pos++, (byte) (0xe0 | (c >> 12)));
+		data.put(pos++, (byte) (0x80 | ((c & 0xfc0) >> 6)));
+		data.put(pos++, (byte) (0x80 | (c & 0x3f)));
+	    }
+	}
+	data.putInt(position, pos - position - ENCODING_SPACE_INT);
+	return pos;
+    }
+
+    /*
+     * Write an unsigned variable length integer, 7 bits to a byte with the
+     * high bit set on all but the last byte. The caller must have checked
+     * that there is room for MAX_ENCODING_SPACE_VARLONG bytes.
+     */
+    protected final void putVarLong(long value) {
+	while ((value & ~0x7fL) != 0) {
+	    data.put(cursor++, (byte) ((value & 0x7f) | 0x80));
+	    value >>>= 7;
+	}
+	data.put(cursor++, (byte) value);
+    }
+
+    /* As putVarLong, treating value as unsigned */
+    protected final void putVarInt(int value) {
+	putVarLong(value & 0xffffffffL);
+    }
+
     private void putLong(long value) {
-	data[cursor + 0] = (byte) ((value >> 56) & 0xff);
-	data[cursor + 1] = (byte) ((value >> 48) & 0xff);
-	data[cursor + 2] = (byte) ((value >> 40) & 0xff);
-	data[cursor + 3] = (byte) ((value >> 32) & 0xff);
-	data[cursor + 4] = (byte) ((value >> 24) & 0xff);
-	data[cursor + 5] = (byte) ((value >> 16) & 0xff);
-	data[cursor + 6] = (byte) ((value >> 8) & 0xff);
-	data[cursor + 7] = (byte) ((value >> 0) & 0xff);
+	data.putLong(cursor, value);
 	cursor += 8;
     }
 
     private void putInt(int value) {
-	data[cursor + 0] = (byte) ((value >> 24) & 0xff);
-	data[cursor + 1] = (byte) ((value >> 16) & 0xff);
-	data[cursor + 2] = (byte) ((value >> 8) & 0xff);
-	data[cursor + 3] = (byte) ((value >> 0) & 0xff);
+	data.putInt(cursor, value);
 	cursor += 4;
     }
 }
@@ -14,8 +14,13 @@
 
 package com.ibm.tuningfork.tracegen.impl;
 
+import java.lang.ref.WeakReference;
+
 import com.ibm.tuningfork.tracegen.IFeedlet;
+import com.ibm.tuningfork.tracegen.chunk.EncodedString;
 import com.ibm.tuningfork.tracegen.chunk.EventChunk;
+import com.ibm.tuningfork.tracegen.types.EventFilter;
+import com.ibm.tuningfork.tracegen.types.EventRecord;
 import com.ibm.tuningfork.tracegen.types.EventType;
 
 /**
@@ -31,7 +36,25 @@ public abstract class AbstractFeedlet {
     protected final String desc;
     private int sequenceNumber = 0;
     protected EventChunk eventChunk;
+    // The chunk being filled, for the logger to harvest (see Logger.harvest)
+    private volatile EventChunk liveChunk;
     protected final Logger logger;
+    private EventType leadingEventType;
+    private long leadingEventValue;
+    // Events discarded for want of an event chunk and not yet reported
+    private int lostEvents = 0;
+    // False where the events were filtered before being handed over
+    boolean applyFilters = true;
+    // False where the writer must not wait for an event chunk under the
+    // BLOCK policy, since it holds up others while it waits
+    boolean mayBlock = true;
+    // The size class of the next event chunk, and when the current one was
+    // acquired (see Logger.adaptSizeClass)
+    private int sizeClass = 0;
+    private long chunkAcquired;
+    // The thread the feedlet was last bound to, if any, held weakly so that
+    // the logger can let go of the feedlet once the thread has ended
+    private volatile WeakReference/* <Thread> */owner;
 
     public abstract long getTime();
 
@@ -69,11 +92,29 @@ public abstract class AbstractFeedlet {
 
     public void bindToCurrentThread() {
 	Logger.threadLocalFeedlets.add(this);
+	setOwner(Thread.currentThread());
 	recordThreadId();
     }
 
-    public static Feedlet getBoundFeedlet() {
-	return (Feedlet) Logger.threadLocalFeedlets.get();
+    final void setOwner(Thread thread) {
+	owner = new WeakReference(thread);
+    }
+
+    /*
+     * Has the thread the feedlet was last bound to ended? A feedlet that was
+     * never bound has no owner and is kept.
+     */
+    final boolean isOwnerDead() {
+	WeakReference/* <Thread> */ref = owner;
+	if (ref == null) {
+	    return false;
+	}
+	Thread thread = (Thread) ref.get();
+	return thread == null || !thread.isAlive();
+    }
+
+    public static IFeedlet getBoundFeedlet() {
+	return (IFeedlet) Logger.threadLocalFeedlets.get();
     }
 
     /*
@@ -85,6 +126,9 @@ public abstract class AbstractFeedlet {
 	if (logger.feedletMode == Logger.NULL_MODE) {
 	    return;
 	}
+	if (applyFilters && !admits(et)) {
+	    return;
+	}
 	addEventInternal(getTime(), et);
     }
 
@@ -98,6 +142,9 @@ public abstract class AbstractFeedlet {
 	if (logger.feedletMode == Logger.NULL_MODE) {
 	    return;
 	}
+	if (applyFilters && !admits(et)) {
+	    return;
+	}
 	addEventInternal(getTime(), et, v);
     }
 
@@ -111,6 +158,9 @@ public abstract class AbstractFeedlet {
 	if (logger.feedletMode == Logger.NULL_MODE) {
 	    return;
 	}
+	if (applyFilters && !admits(et)) {
+	    return;
+	}
 	addEventInternal(getTime(), et, v);
     }
 
@@ -124,6 +174,9 @@ public abstract class AbstractFeedlet {
 	if (logger.feedletMode == Logger.NULL_MODE) {
 	    return;
 	}
+	if (applyFilters && !admits(et)) {
+	    return;
+	}
 	addEventInternal(getTime(), et, v);
     }
 
@@ -137,6 +190,9 @@ public abstract class AbstractFeedlet {
 	if (logger.feedletMode == Logger.NULL_MODE) {
 	    return;
 	}
+	if (applyFilters && !admits(et)) {
+	    return;
+	}
 	addEventInternal(getTime(), et, v);
     }
 
@@ -151,23 +207,116 @@ public abstract class AbstractFeedlet {
 	if (logger.feedletMode == Logger.NULL_MODE) {
 	    return;
 	}
+	if (applyFilters && !admits(et)) {
+	    return;
+	}
 	addEventInternal(getTime(), et, idata, ldata, ddata, sdata);
     }
 
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.ibm.tuningfork.tracegen.IFeedlet#addEvent(com.ibm.tuningfork.tracegen.types.EventRecord)
+     */
+    public final void addEvent(EventRecord record) {
+	if (logger.feedletMode == Logger.NULL_MODE) {
+	    return;
+	}
+	EventType et = record.getEventType();
+	if (applyFilters && !admits(et)) {
+	    return;
+	}
+	long timeStamp = getTime();
+	while (true) {
+	    if (!ensureEventChunk(timeStamp, 1)) {
+		return;
+	    }
+	    if (eventChunk.addEvent(timeStamp, record)) {
+		return;
+	    }
+	    flush();
+	}
+    }
+
     public void flush() {
-	logger.returnFullEventChunk(eventChunk);
+	EventChunk ec = eventChunk;
 	eventChunk = null;
+	liveChunk = null;
+	if (ec != null) {
+	    long held = System.nanoTime() - chunkAcquired;
+	    sizeClass = logger.adaptSizeClass(sizeClass, ec, held);
+	    // The pieces the logger harvested took sequence numbers of their
+	    // own, so the rest of the chunk now follows them.
+	    int taken = ec.seal();
+	    if (taken != 0 && ec.getSize() == EventChunk.EVENT_DATA_OFFSET) {
+		sequenceNumber += taken - 1;
+		logger.returnUnusedEventChunk(ec);
+	    } else {
+		sequenceNumber += taken;
+		logger.returnFullEventChunk(ec);
+	    }
+	}
+	if (lostEvents != 0) {
+	    reportLostEvents();
+	}
+    }
+
+    /* The chunk being filled, or null */
+    final EventChunk getLiveChunk() {
+	return liveChunk;
     }
 
-    protected final void ensureEventChunk() {
+    /*
+     * Does the filter of the event type, if any, let an event through? Kept
+     * to a null check for event types without a filter.
+     */
+    static boolean admits(EventType et) {
+	EventFilter filter = et.getFilter();
+	return filter == null || filter.admit();
+    }
+
+    /*
+     * Repeat an event at the start of every new chunk, and of every piece
+     * the logger harvests after it, so that each chunk can be understood on
+     * its own. The caller adds the event itself next. A null event type
+     * stops the repetition.
+     */
+    final void setLeadingEvent(EventType et, long v) {
+	leadingEventType = et;
+	leadingEventValue = v;
+	if (eventChunk != null) {
+	    eventChunk.setLeadingEvent(et, v);
+	}
+    }
+
+    /*
+     * Returns false, and counts the events as lost, if there is no event
+     * chunk to add numEvents events to.
+     */
+    protected final boolean ensureEventChunk(long timeStamp, int numEvents) {
 	if (eventChunk == null) {
-	    eventChunk = logger.getEmptyEventChunk();
+	    eventChunk = logger.getEmptyEventChunk(sizeClass, mayBlock);
 	    if (eventChunk == null) {
-		System.out.println("Feedlet.addEvent failed because there are no event chunks available");
-		return;
+		lostEvents += numEvents;
+		return false;
+	    }
+	    chunkAcquired = System.nanoTime();
+	    if (lostEvents != 0) {
+		reportLostEvents();
 	    }
 	    eventChunk.reset(getIndex(), getNextSequenceNumber());
+	    if (leadingEventType != null) {
+		eventChunk.setLeadingEvent(leadingEventType, leadingEventValue);
+		eventChunk.addEvent(timeStamp, leadingEventType, leadingEventValue);
+	    }
+	    liveChunk = eventChunk;
 	}
+	return true;
+    }
+
+    private void reportLostEvents() {
+	logger.recordLoss(getIndex(), 0, lostEvents);
+	lostEvents = 0;
     }
 
     protected final boolean checkType(EventType et, int numInt, int numLong,
@@ -185,7 +334,9 @@ public abstract class AbstractFeedlet {
 	    return;
 	}
 	while (true) {
-	    ensureEventChunk();
+	    if (!ensureEventChunk(timeStamp, 1)) {
+		return;
+	    }
 	    if (eventChunk.addEvent(timeStamp, et)) {
 		return;
 	    }
@@ -198,7 +349,9 @@ public abstract class AbstractFeedlet {
 	    return;
 	}
 	while (true) {
-	    ensureEventChunk();
+	    if (!ensureEventChunk(timeStamp, 1)) {
+		return;
+	    }
 	    if (eventChunk.addEvent(timeStamp, et, v)) {
 		return;
 	    }
@@ -211,7 +364,9 @@ public abstract class AbstractFeedlet {
 	    return;
 	}
 	while (true) {
-	    ensureEventChunk();
+	    if (!ensureEventChunk(timeStamp, 1)) {
+		return;
+	    }
 	    if (eventChunk.addEvent(timeStamp, et, v)) {
 		return;
 	    }
@@ -224,7 +379,9 @@ public abstract class AbstractFeedlet {
 	    return;
 	}
 	while (true) {
-	    ensureEventChunk();
+	    if (!ensureEventChunk(timeStamp, 1)) {
+		return;
+	    }
 	    if (eventChunk.addEvent(timeStamp, et, v)) {
 		return;
 	    }
@@ -236,8 +393,28 @@ public abstract class AbstractFeedlet {
 	if (doCheckType && !checkType(et, 0, 0, 0, 1)) {
 	    return;
 	}
+	EncodedString encoded = logger.getEncodedString(v);
+	if (encoded != null) {
+	    addEventInternal(timeStamp, et, encoded);
+	    return;
+	}
 	while (true) {
-	    ensureEventChunk();
+	    if (!ensureEventChunk(timeStamp, 1)) {
+		return;
+	    }
+	    if (eventChunk.addEvent(timeStamp, et, v)) {
+		return;
+	    }
+	    flush();
+	}
+    }
+
+    private void addEventInternal(long timeStamp, EventType et,
+	    EncodedString v) {
+	while (true) {
+	    if (!ensureEventChunk(timeStamp, 1)) {
+		return;
+	    }
 	    if (eventChunk.addEvent(timeStamp, et, v)) {
 		return;
 	    }
@@ -255,7 +432,9 @@ public abstract class AbstractFeedlet {
 	    return;
 	}
 	while (true) {
-	    ensureEventChunk();
+	    if (!ensureEventChunk(timeStamp, 1)) {
+		return;
+	    }
 	    if (eventChunk.addEvent(timeStamp, et, idata, ldata, ddata, sdata)) {
 		return;
 	    }
@@ -263,6 +442,79 @@ public abstract class AbstractFeedlet {
 	}
     }
 
+    /*
+     * Batch additions, a chunk at a time. The time stamps are the caller's,
+     * so these are only used by conversion feedlets.
+     */
+    protected final void addEventsInternal(long[] timeStamps, EventType et,
+	    int[] values, int offset, int length) {
+	if (!checkBatch(et, 1, 0, 0, timeStamps, values.length, offset, length)) {
+	    return;
+	}
+	while (length > 0) {
+	    if (!ensureEventChunk(timeStamps[offset], length)) {
+		return;
+	    }
+	    int n = eventChunk.addEvents(timeStamps, et, values, offset, length);
+	    offset += n;
+	    length -= n;
+	    if (length > 0) {
+		flush();
+	    }
+	}
+    }
+
+    protected final void addEventsInternal(long[] timeStamps, EventType et,
+	    long[] values, int offset, int length) {
+	if (!checkBatch(et, 0, 1, 0, timeStamps, values.length, offset, length)) {
+	    return;
+	}
+	while (length > 0) {
+	    if (!ensureEventChunk(timeStamps[offset], length)) {
+		return;
+	    }
+	    int n = eventChunk.addEvents(timeStamps, et, values, offset, length);
+	    offset += n;
+	    length -= n;
+	    if (length > 0) {
+		flush();
+	    }
+	}
+    }
+
+    protected final void addEventsInternal(long[] timeStamps, EventType et,
+	    double[] values, int offset, int length) {
+	if (!checkBatch(et, 0, 0, 1, timeStamps, values.length, offset, length)) {
+	    return;
+	}
+	while (length > 0) {
+	    if (!ensureEventChunk(timeStamps[offset], length)) {
+		return;
+	    }
+	    int n = eventChunk.addEvents(timeStamps, et, values, offset, length);
+	    offset += n;
+	    length -= n;
+	    if (length > 0) {
+		flush();
+	    }
+	}
+    }
+
+    private boolean checkBatch(EventType et, int numInt, int numLong,
+	    int numDouble, long[] timeStamps, int numValues, int offset,
+	    int length) {
+	if (offset < 0 || length < 0 || offset + length > timeStamps.length
+		|| offset + length > numValues) {
+	    throw new IndexOutOfBoundsException("Feedlet.addEvents(" + et.getName()
+		    + ",...) offset " + offset + " and length " + length
+		    + " do not fit the arrays");
+	}
+	if (doCheckType && !checkType(et, numInt, numLong, numDouble, 0)) {
+	    return false;
+	}
+	return length > 0;
+    }
+
     public boolean recordThreadId() {
 	int tid = OSBridge.getThreadId();
 	if (tid != OSBridge.NO_PID) {
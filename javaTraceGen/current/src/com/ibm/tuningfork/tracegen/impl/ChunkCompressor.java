@@ -0,0 +1,131 @@
+/*
+ * This file is part of the Tuning Fork Visualization Platform
+ *  (http://sourceforge.net/projects/tuningforkvp)
+ *
+ * Copyright (c) 2005 - 2008 IBM Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ */
+
+package com.ibm.tuningfork.tracegen.impl;
+
+import java.util.ArrayList;
+import java.util.zip.Deflater;
+
+import com.ibm.tuningfork.tracegen.chunk.CompressedChunk;
+import com.ibm.tuningfork.tracegen.chunk.EventChunk;
+
+/*
+ * Replaces closed event chunks by compressed containers on their way to the
+ * output. Meta-chunks are left alone since they are small and are replayed to
+ * late socket clients.
+ *
+ * A compressor is only ever used by one thread. The one used by the thread
+ * writing the trace, under the Logger's write lock, keeps its own containers
+ * and reuses them once the write that used them has completed. In conversion
+ * mode each converter thread has its own compressor and compresses the chunks
+ * it fills into containers taken from the Logger. The Logger ends every
+ * compressor when it shuts down, possibly while a converter is using it, so
+ * compressing and ending are synchronized.
+ */
+final class ChunkCompressor {
+
+    private final Deflater deflater;
+    private final byte[] scratch = new byte[EventChunk.MAX_EVENT_CHUNK_SIZE];
+    private final ArrayList/* <CompressedChunk> */containers = new ArrayList/* <CompressedChunk> */();
+    private int containersInUse = 0;
+
+    private long bytesIn = 0;
+    private long bytesOut = 0;
+    private long nanos = 0;
+    private boolean ended = false;
+
+    ChunkCompressor(int level) {
+	deflater = new Deflater(level);
+    }
+
+    /*
+     * Replace, in place, each event chunk in chunks that compresses well.
+     */
+    void compress(ArrayList/* <RawChunk> */chunks) {
+	for (int i = 0; i < chunks.size(); i++) {
+	    if (!(chunks.get(i) instanceof EventChunk)) {
+		continue;
+	    }
+	    CompressedChunk container = getContainer();
+	    if (compress((EventChunk) chunks.get(i), container)) {
+		chunks.set(i, container);
+		containersInUse++;
+	    }
+	}
+    }
+
+    /*
+     * Compress a closed event chunk into a reset container, returning false if
+     * it does not get smaller or the compressor has been ended.
+     */
+    synchronized boolean compress(EventChunk chunk, CompressedChunk container) {
+	if (ended) {
+	    return false;
+	}
+	long start = System.nanoTime();
+	int length = chunk.getByteBuffer().remaining();
+	boolean compressed = container.compress(chunk, deflater, scratch);
+	bytesIn += length;
+	bytesOut += compressed ? container.getByteBuffer().remaining() : length;
+	nanos += System.nanoTime() - start;
+	return compressed;
+    }
+
+    /* Make the containers available again once they have been written */
+    void recycle() {
+	containersInUse = 0;
+    }
+
+    private CompressedChunk getContainer() {
+	CompressedChunk container;
+	if (containersInUse < containers.size()) {
+	    container = (CompressedChunk) containers.get(containersInUse);
+	} else {
+	    container = new CompressedChunk(EventChunk.DEFAULT_EVENT_CHUNK_SIZE);
+	    containers.add(container);
+	}
+	container.reset();
+	return container;
+    }
+
+    /*
+     * Record the combined statistics of the compressors as properties of the
+     * trace. Compressors used by other threads may be slightly behind.
+     */
+    static void addStatistics(Logger logger, ArrayList/* <ChunkCompressor> */compressors) {
+	long in = 0;
+	long out = 0;
+	long time = 0;
+	for (int i = 0; i < compressors.size(); i++) {
+	    ChunkCompressor compressor = (ChunkCompressor) compressors.get(i);
+	    in += compressor.bytesIn;
+	    out += compressor.bytesOut;
+	    time += compressor.nanos;
+	}
+	if (in == 0) {
+	    return;
+	}
+	logger.addProperty("Compression Ratio", "" + ((double) in / out));
+	logger.addProperty("Compression CPU ns per MB", ""
+		+ (time * (1024 * 1024) / in));
+    }
+
+    /* Release the native memory of the deflater */
+    synchronized void end() {
+	if (!ended) {
+	    ended = true;
+	    deflater.end();
+	}
+    }
+}
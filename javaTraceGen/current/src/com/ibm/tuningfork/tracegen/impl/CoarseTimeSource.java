@@ -0,0 +1,52 @@
+/*
+ * This file is part of the Tuning Fork Visualization Platform
+ *  (http://sourceforge.net/projects/tuningforkvp)
+ *
+ * Copyright (c) 2005 - 2008 IBM Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ */
+
+package com.ibm.tuningfork.tracegen.impl;
+
+import com.ibm.tuningfork.tracegen.ITimeSource;
+
+/**
+ * A time source in nanoseconds that is only updated every few milliseconds,
+ * for traces whose events do not need finer time stamps. It reads the
+ * operating system's coarse monotonic clock (CLOCK_MONOTONIC_COARSE on
+ * Linux), which is a plain memory read, through the native support library.
+ */
+public final class CoarseTimeSource implements ITimeSource {
+
+    private CoarseTimeSource() {
+    }
+
+    /*
+     * Make a coarse time source, or return null if the operating system has
+     * no coarse clock.
+     */
+    public static CoarseTimeSource make() {
+	if (!OSBridge.initialize() || OSBridge.getCoarseTime() < 0) {
+	    return null;
+	}
+	return new CoarseTimeSource();
+    }
+
+    public long getTime() {
+	return OSBridge.getCoarseTime();
+    }
+
+    public long getTickFrequency() {
+	return Feedlet.TICK_FREQUENCY;
+    }
+
+    public String getName() {
+	return "Coarse Monotonic Clock";
+    }
+}
@@ -0,0 +1,361 @@
+/*
+ * This file is part of the Tuning Fork Visualization Platform
+ *  (http://sourceforge.net/projects/tuningforkvp)
+ *
+ * Copyright (c) 2005 - 2008 IBM Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ */
+
+package com.ibm.tuningfork.tracegen.impl;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.ibm.tuningfork.tracegen.IFeedlet;
+import com.ibm.tuningfork.tracegen.chunk.EventChunk;
+import com.ibm.tuningfork.tracegen.chunk.RawChunk;
+import com.ibm.tuningfork.tracegen.types.EventRecord;
+import com.ibm.tuningfork.tracegen.types.EventType;
+
+/**
+ * A feedlet that can be shared between multiple threads without locking.
+ *
+ * Rather than serializing writers on a monitor as SharedFeedlet does, each
+ * writer reserves the exact space its event needs in the current event chunk
+ * by bumping the chunk's cursor with a compare-and-set, and then encodes the
+ * event into its reserved region while other writers encode theirs. The time
+ * stamp is read after the cursor and before the compare-and-set, so events are
+ * time-ordered by position within and across chunks.
+ *
+ * A writer whose event does not fit seals the chunk at the current cursor.
+ * Writers count the bytes they have finished storing, and whichever of them
+ * completes the sealed extent hands the chunk to the logger. Any writer that
+ * finds the current chunk sealed may install the next one.
+ */
+final class ConcurrentSharedFeedlet implements IFeedlet {
+
+    private static final int SEALED = -1;
+    private static final int HEADER_SIZE = RawChunk.ENCODING_SPACE_LONG
+	    + RawChunk.ENCODING_SPACE_INT;
+
+    // Kinds of event, see add()
+    private static final int NONE = 0;
+    private static final int INT = 1;
+    private static final int LONG = 2;
+    private static final int DOUBLE = 3;
+    private static final int STRING = 4;
+    private static final int ARRAYS = 5;
+
+    /*
+     * The chunk being filled together with the state shared by its writers.
+     */
+    private static final class Segment {
+	final EventChunk chunk;
+	final long firstTimeStamp;
+	final AtomicInteger reserved = new AtomicInteger(
+		EventChunk.EVENT_DATA_OFFSET);
+	final AtomicInteger committed = new AtomicInteger(
+		EventChunk.EVENT_DATA_OFFSET);
+	final AtomicBoolean handedOff = new AtomicBoolean(false);
+	final long acquired = System.nanoTime();
+	volatile int sealedEnd = SEALED;
+
+	Segment(EventChunk chunk, long firstTimeStamp) {
+	    this.chunk = chunk;
+	    this.firstTimeStamp = firstTimeStamp;
+	}
+    }
+
+    private final Logger logger;
+    private final int index;
+    private final AtomicInteger sequenceNumber = new AtomicInteger(0);
+    // Events discarded for want of an event chunk and not yet reported
+    private final AtomicInteger lostEvents = new AtomicInteger(0);
+    private final AtomicReference/* <Segment> */current = new AtomicReference/* <Segment> */();
+    private volatile long timeStamp;
+    // The size class of the next event chunk (see Logger.adaptSizeClass)
+    private volatile int sizeClass = 0;
+
+    ConcurrentSharedFeedlet(Logger logger, int index) {
+	this.logger = logger;
+	this.index = index;
+    }
+
+    private long getTime() {
+	if (logger.feedletMode == Logger.MANUAL_CLOCK_MODE) {
+	    return timeStamp;
+	}
+	return logger.timeSource.getTime();
+    }
+
+    /*
+     * Add an event of the given kind, which needs size bytes. Only the
+     * arguments used by that kind of event are looked at.
+     */
+    private void add(int kind, int size, EventType et, int iv, long lv,
+	    double dv, String sv, int[] idata, long[] ldata, double[] ddata,
+	    String[] sdata) {
+	while (true) {
+	    Segment segment = (Segment) current.get();
+	    if (segment == null || segment.reserved.get() == SEALED) {
+		if (!installSegment(segment)) {
+		    lostEvents.incrementAndGet();
+		    return;
+		}
+		continue;
+	    }
+	    EventChunk chunk = segment.chunk;
+	    if (size > chunk.getCapacity() - EventChunk.EVENT_DATA_OFFSET) {
+		System.err.println("ConcurrentSharedFeedlet.addEvent(" + et.getName()
+			+ ",...) event can never fit in an event chunk");
+		return;
+	    }
+	    int position = segment.reserved.get();
+	    if (position == SEALED) {
+		continue;
+	    }
+	    long time = getTime();
+	    if (position + size > chunk.getCapacity()
+		    || (chunk.isAutoFlush() && time - segment.firstTimeStamp >= EventChunk.TIMESTAMP_FLUSH_DELTA)) {
+		seal(segment, position);
+		continue;
+	    }
+	    if (segment.reserved.compareAndSet(position, position + size)) {
+		store(chunk, position, time, kind, et, iv, lv, dv, sv, idata,
+			ldata, ddata, sdata);
+		commit(segment, size);
+		return;
+	    }
+	}
+    }
+
+    private static void store(EventChunk chunk, int position, long time,
+	    int kind, EventType et, int iv, long lv, double dv, String sv,
+	    int[] idata, long[] ldata, double[] ddata, String[] sdata) {
+	position = chunk.putEventAt(position, time, et);
+	switch (kind) {
+	case NONE:
+	    break;
+	case INT:
+	    chunk.putIntAt(position, iv);
+	    break;
+	case LONG:
+	    chunk.putLongAt(position, lv);
+	    break;
+	case DOUBLE:
+	    chunk.putDoubleAt(position, dv);
+	    break;
+	case STRING:
+	    chunk.putStringAt(position, sv);
+	    break;
+	case ARRAYS:
+	    for (int i = 0; idata != null && i < idata.length; i++) {
+		position = chunk.putIntAt(position, idata[i]);
+	    }
+	    for (int i = 0; ldata != null && i < ldata.length; i++) {
+		position = chunk.putLongAt(position, ldata[i]);
+	    }
+	    for (int i = 0; ddata != null && i < ddata.length; i++) {
+		position = chunk.putDoubleAt(position, ddata[i]);
+	    }
+	    for (int i = 0; sdata != null && i < sdata.length; i++) {
+		position = chunk.putStringAt(position, sdata[i]);
+	    }
+	    break;
+	}
+    }
+
+    private void seal(Segment segment, int position) {
+	if (segment.reserved.compareAndSet(position, SEALED)) {
+	    segment.sealedEnd = position;
+	    commit(segment, 0);
+	}
+    }
+
+    /*
+     * Replace a sealed (or missing) segment by a segment over a fresh chunk.
+     * Returns false if no chunk is available.
+     */
+    private boolean installSegment(Segment sealed) {
+	EventChunk chunk = logger.getEmptyEventChunk(sizeClass);
+	if (chunk == null) {
+	    return false;
+	}
+	reportLostEvents();
+	synchronized (this) {
+	    // Sequence numbers must follow the order in which chunks are
+	    // installed; installs are rare so a lock is fine here.
+	    if (current.get() != sealed) {
+		logger.returnUnusedEventChunk(chunk);
+		return true;
+	    }
+	    chunk.reset(index, sequenceNumber.getAndIncrement());
+	    current.set(new Segment(chunk, getTime()));
+	}
+	return true;
+    }
+
+    private void reportLostEvents() {
+	if (lostEvents.get() != 0) {
+	    int lost = lostEvents.getAndSet(0);
+	    if (lost != 0) {
+		logger.recordLoss(index, 0, lost);
+	    }
+	}
+    }
+
+    /*
+     * Record that bytes have been stored and hand the chunk to the logger if
+     * that completes a sealed segment.
+     */
+    private void commit(Segment segment, int bytes) {
+	int done = segment.committed.addAndGet(bytes);
+	int end = segment.sealedEnd;
+	if (end != SEALED && done == end
+		&& segment.handedOff.compareAndSet(false, true)) {
+	    segment.chunk.commit(end);
+	    long held = System.nanoTime() - segment.acquired;
+	    sizeClass = logger.adaptSizeClass(sizeClass, segment.chunk, held);
+	    logger.returnFullEventChunk(segment.chunk);
+	}
+    }
+
+    public void addEvent(EventType et) {
+	if (logger.feedletMode == Logger.NULL_MODE
+		|| !AbstractFeedlet.admits(et)) {
+	    return;
+	}
+	add(NONE, HEADER_SIZE, et, 0, 0, 0, null, null, null, null, null);
+    }
+
+    public void addEvent(EventType et, int v) {
+	if (logger.feedletMode == Logger.NULL_MODE
+		|| !AbstractFeedlet.admits(et)) {
+	    return;
+	}
+	add(INT, HEADER_SIZE + RawChunk.ENCODING_SPACE_INT, et, v, 0, 0, null,
+		null, null, null, null);
+    }
+
+    public void addEvent(EventType et, long v) {
+	if (logger.feedletMode == Logger.NULL_MODE
+		|| !AbstractFeedlet.admits(et)) {
+	    return;
+	}
+	add(LONG, HEADER_SIZE + RawChunk.ENCODING_SPACE_LONG, et, 0, v, 0,
+		null, null, null, null, null);
+    }
+
+    public void addEvent(EventType et, double v) {
+	if (logger.feedletMode == Logger.NULL_MODE
+		|| !AbstractFeedlet.admits(et)) {
+	    return;
+	}
+	add(DOUBLE, HEADER_SIZE + RawChunk.ENCODING_SPACE_DOUBLE, et, 0, 0, v,
+		null, null, null, null, null);
+    }
+
+    public void addEvent(EventType et, String v) {
+	if (logger.feedletMode == Logger.NULL_MODE
+		|| !AbstractFeedlet.admits(et)) {
+	    return;
+	}
+	add(STRING, HEADER_SIZE + RawChunk.encodedSize(v), et, 0, 0, 0, v,
+		null, null, null, null);
+    }
+
+    public void addEvent(EventType et, int[] idata, long[] ldata,
+	    double[] ddata, String[] sdata) {
+	if (logger.feedletMode == Logger.NULL_MODE
+		|| !AbstractFeedlet.admits(et)) {
+	    return;
+	}
+	int size = HEADER_SIZE;
+	size += (idata == null) ? 0 : idata.length * RawChunk.ENCODING_SPACE_INT;
+	size += (ldata == null) ? 0 : ldata.length * RawChunk.ENCODING_SPACE_LONG;
+	size += (ddata == null) ? 0 : ddata.length * RawChunk.ENCODING_SPACE_DOUBLE;
+	for (int i = 0; sdata != null && i < sdata.length; i++) {
+	    size += RawChunk.encodedSize(sdata[i]);
+	}
+	add(ARRAYS, size, et, 0, 0, 0, null, idata, ldata, ddata, sdata);
+    }
+
+    public void addEvent(EventRecord record) {
+	EventType et = record.getEventType();
+	if (logger.feedletMode == Logger.NULL_MODE
+		|| !AbstractFeedlet.admits(et)) {
+	    return;
+	}
+	int size = HEADER_SIZE + et.getFixedAttributeSize();
+	String[] sdata = record.getStrings();
+	for (int i = 0; i < sdata.length; i++) {
+	    size += RawChunk.encodedSize(sdata[i]);
+	}
+	add(ARRAYS, size, et, 0, 0, 0, null, record.getInts(), record
+		.getLongs(), record.getDoubles(), sdata);
+    }
+
+    /*
+     * Seal the current chunk so that it is handed to the logger as soon as
+     * the writers that are still storing into it have finished.
+     */
+    public void flush() {
+	reportLostEvents();
+	Segment segment = (Segment) current.get();
+	if (segment == null) {
+	    return;
+	}
+	int position;
+	while ((position = segment.reserved.get()) != SEALED) {
+	    seal(segment, position);
+	}
+	current.compareAndSet(segment, null);
+    }
+
+    /*
+     * Called by the logger to bound the time events wait to be written: the
+     * current chunk is handed over once it has held events for longer than
+     * maxAgeNanos. Writers do not publish how far they have stored, so the
+     * chunk is sealed rather than harvested.
+     */
+    void harvest(long maxAgeNanos) {
+	Segment segment = (Segment) current.get();
+	if (segment != null
+		&& segment.reserved.get() > EventChunk.EVENT_DATA_OFFSET
+		&& System.nanoTime() - segment.acquired > maxAgeNanos) {
+	    flush();
+	}
+    }
+
+    public void bindToCurrentThread() {
+	Logger.threadLocalFeedlets.add(this);
+    }
+
+    public boolean isManual() {
+	return logger.feedletMode == Logger.MANUAL_CLOCK_MODE;
+    }
+
+    public boolean setTime(long timeStamp) {
+	if (logger.feedletMode != Logger.MANUAL_CLOCK_MODE) {
+	    return false;
+	}
+	this.timeStamp = timeStamp;
+	return true;
+    }
+
+    public boolean recordThreadId() {
+	// A shared feedlet does not belong to any one thread.
+	return false;
+    }
+
+    public void setThreadId(int tid) {
+	// A shared feedlet does not belong to any one thread.
+    }
+}
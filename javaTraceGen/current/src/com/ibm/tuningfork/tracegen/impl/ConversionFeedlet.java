@@ -116,6 +116,51 @@ final class ConversionFeedlet extends AbstractFeedlet implements
 	addEvent(et, idata, ldata, ddata, sdata);
     }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.ibm.tuningfork.tracegen.IConversionFeedlet#addEvents(long[],
+     *      com.ibm.tuningfork.tracegen.EventType, int[], int, int)
+     */
+    public void addEvents(long[] timestamps, EventType et, int[] values,
+	    int offset, int length) {
+	if (logger.feedletMode == Logger.NULL_MODE || length == 0) {
+	    return;
+	}
+	addEventsInternal(timestamps, et, values, offset, length);
+	setTime(timestamps[offset + length - 1]);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.ibm.tuningfork.tracegen.IConversionFeedlet#addEvents(long[],
+     *      com.ibm.tuningfork.tracegen.EventType, long[], int, int)
+     */
+    public void addEvents(long[] timestamps, EventType et, long[] values,
+	    int offset, int length) {
+	if (logger.feedletMode == Logger.NULL_MODE || length == 0) {
+	    return;
+	}
+	addEventsInternal(timestamps, et, values, offset, length);
+	setTime(timestamps[offset + length - 1]);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.ibm.tuningfork.tracegen.IConversionFeedlet#addEvents(long[],
+     *      com.ibm.tuningfork.tracegen.EventType, double[], int, int)
+     */
+    public void addEvents(long[] timestamps, EventType et, double[] values,
+	    int offset, int length) {
+	if (logger.feedletMode == Logger.NULL_MODE || length == 0) {
+	    return;
+	}
+	addEventsInternal(timestamps, et, values, offset, length);
+	setTime(timestamps[offset + length - 1]);
+    }
+
     public void addValue(long timestamp, IValueEvent event, double value) {
 	setTime(timestamp);
 	event.addValue(this, timestamp, value);
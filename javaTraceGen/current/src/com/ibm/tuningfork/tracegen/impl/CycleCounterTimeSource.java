@@ -0,0 +1,79 @@
+/*
+ * This file is part of the Tuning Fork Visualization Platform
+ *  (http://sourceforge.net/projects/tuningforkvp)
+ *
+ * Copyright (c) 2005 - 2008 IBM Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ */
+
+package com.ibm.tuningfork.tracegen.impl;
+
+import com.ibm.tuningfork.tracegen.ITimeSource;
+
+/**
+ * A time source that reads the processor's cycle counter (rdtsc on x86)
+ * through the native support library, which is cheaper than
+ * System.nanoTime() where the latter traps to the hypervisor or the kernel.
+ * The frequency of the counter is calibrated against System.nanoTime() when
+ * the time source is made.
+ *
+ * The counter is only a usable clock on processors whose counter ticks at a
+ * constant rate whatever the power state, and is synchronized across
+ * processors; this is not checked.
+ */
+public final class CycleCounterTimeSource implements ITimeSource {
+
+    // How long to calibrate for; longer gives a more accurate frequency
+    private static final long CALIBRATION_TIME_NS = 50000000L;
+
+    private final long tickFrequency;
+
+    private CycleCounterTimeSource(long tickFrequency) {
+	this.tickFrequency = tickFrequency;
+    }
+
+    /*
+     * Make a cycle counter time source, or return null if the cycle counter
+     * can not be read.
+     */
+    public static CycleCounterTimeSource make() {
+	if (!OSBridge.initialize() || OSBridge.readCycleCounter() == 0) {
+	    return null;
+	}
+	long startTime = System.nanoTime();
+	long startCycles = OSBridge.readCycleCounter();
+	long endTime;
+	do {
+	    try {
+		Thread.sleep(CALIBRATION_TIME_NS / 1000000);
+	    } catch (InterruptedException e) {
+	    }
+	    endTime = System.nanoTime();
+	} while (endTime - startTime < CALIBRATION_TIME_NS);
+	long endCycles = OSBridge.readCycleCounter();
+	double frequency = (double) (endCycles - startCycles)
+		* Feedlet.TICK_FREQUENCY / (endTime - startTime);
+	if (frequency <= 0) {
+	    return null;
+	}
+	return new CycleCounterTimeSource(Math.round(frequency));
+    }
+
+    public long getTime() {
+	return OSBridge.readCycleCounter();
+    }
+
+    public long getTickFrequency() {
+	return tickFrequency;
+    }
+
+    public String getName() {
+	return "Cycle Counter";
+    }
+}
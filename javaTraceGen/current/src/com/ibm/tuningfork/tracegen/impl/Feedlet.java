@@ -37,9 +37,7 @@ public final class Feedlet extends AbstractFeedlet implements IFeedlet {
 	if (logger.feedletMode == Logger.MANUAL_CLOCK_MODE) {
 	    return timeStamp;
 	}
-	// FIXME: For 1.4: return System.currentTimeMillis() * (TICK_FREQUENCY /
-	// 1000);
-	return System.nanoTime();
+	return logger.timeSource.getTime();
     }
 
     public Feedlet(Logger logger, int index, String name, String description) {
@@ -18,15 +18,20 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.ListIterator;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import com.ibm.tuningfork.tracegen.IBookmarkEvent;
 import com.ibm.tuningfork.tracegen.IConversionFeedlet;
@@ -34,8 +39,13 @@ import com.ibm.tuningfork.tracegen.IConversionLogger;
 import com.ibm.tuningfork.tracegen.IEvent;
 import com.ibm.tuningfork.tracegen.IFeedlet;
 import com.ibm.tuningfork.tracegen.ILogger;
+import com.ibm.tuningfork.tracegen.ITimeSource;
 import com.ibm.tuningfork.tracegen.ITimerEvent;
 import com.ibm.tuningfork.tracegen.IValueEvent;
+import com.ibm.tuningfork.tracegen.LoggerOptions;
+import com.ibm.tuningfork.tracegen.chunk.CompactEventChunk;
+import com.ibm.tuningfork.tracegen.chunk.CompressedChunk;
+import com.ibm.tuningfork.tracegen.chunk.EncodedString;
 import com.ibm.tuningfork.tracegen.chunk.EventChunk;
 import com.ibm.tuningfork.tracegen.chunk.EventTypeChunk;
 import com.ibm.tuningfork.tracegen.chunk.EventTypeSpaceChunk;
@@ -44,6 +54,7 @@ import com.ibm.tuningfork.tracegen.chunk.FeedletChunk;
 import com.ibm.tuningfork.tracegen.chunk.PropertyTableChunk;
 import com.ibm.tuningfork.tracegen.chunk.RawChunk;
 import com.ibm.tuningfork.tracegen.chunk.StringTableChunk;
+import com.ibm.tuningfork.tracegen.types.EventFilter;
 import com.ibm.tuningfork.tracegen.types.EventType;
 import com.ibm.tuningfork.tracegen.types.EventTypeSpaceVersion;
 
@@ -52,10 +63,25 @@ public class Logger implements ILogger, IConversionLogger {
     private static final int INITIAL_NUMBER_OF_EVENT_CHUNKS = 20;
     private static int ADDITIONAL_NUMBER_OF_EVENT_CHUNKS_PER_FEEDLET = 4;
     private static final int INTER_FLUSH_TIME_MS = 200;
+    // The emitter flushes at least every INTER_FLUSH_TIME_MS while there is
+    // output, and backs off to this when idle.
+    private static final int MAX_IDLE_FLUSH_TIME_MS = 3200;
+    // Upper bound on the event chunks gathered into one write, so that the
+    // feedlets are not starved of chunks while the write is in progress.
+    // Chunks are counted by size, as chunks of the default size.
+    private static final int MAX_EVENT_CHUNKS_PER_WRITE = 16;
+    // Event chunks come in size classes, the powers of two from
+    // EventChunk.MIN_EVENT_CHUNK_SIZE to EventChunk.MAX_EVENT_CHUNK_SIZE.
+    static final int NUMBER_OF_SIZE_CLASSES = sizeClassOf(
+	    EventChunk.MAX_EVENT_CHUNK_SIZE) + 1;
+    static final int DEFAULT_SIZE_CLASS = sizeClassOf(
+	    EventChunk.DEFAULT_EVENT_CHUNK_SIZE);
     private final boolean DEBUG_SOCKET = true;
 
-    // We are either in file mode or socket mode.
+    // We are either in file mode (possibly writing to a ring file) or socket
+    // mode.
     private File file;
+    private RingFile ringFile;
     private int portNumber;
 
     // Loggers either create a new trace or convert from a pre-existing one
@@ -65,15 +91,78 @@ public class Logger implements ILogger, IConversionLogger {
     public final static int CONVERSION_MODE = 3;
     public int feedletMode = AUTO_CLOCK_MODE;
 
-    // Logging is sent to an outputStream which links to either a file or a
-    // socket.
-    private OutputStream outputStream;
-
-    // Thread-id indexed feedlets - need to make weak
-    static HashMap/* <String, Feedlet> */feedletsByThread = new HashMap/*
-									 * <String,
-									 * Feedlet>
-									 */();
+    // Logging is sent to an outputChannel which links to a file, or to the
+    // subscribers of a server. Writes to them are serialized by writeLock
+    // rather than by the Logger monitor so that metadata registration never
+    // waits on I/O.
+    private volatile WritableByteChannel outputChannel;
+    private SocketServer server;
+    private final Object writeLock = new Object();
+
+    // Recently logged Strings, see getEncodedString
+    private final EncodedString[] stringCache;
+    // The Strings entered in the string table for compact events, by id.
+    // Entries are only added, under the map's monitor, up to a limit of
+    // INTERNED_STRINGS_PER_CACHE_ENTRY for each entry of the cache.
+    private final ConcurrentHashMap/* <String, Integer> */internedStrings = new ConcurrentHashMap/* <String, Integer> */();
+    private volatile int internedStringCount = 0;
+    private static final int INTERNED_STRINGS_PER_CACHE_ENTRY = 16;
+    // Where time stamps come from in AUTO_CLOCK_MODE
+    final ITimeSource timeSource;
+    private static final int MAX_CACHED_STRING_LENGTH = 256;
+
+    // Compresses event chunks on their way out, if enabled; guarded by
+    // writeLock
+    private ChunkCompressor compressor;
+
+    // In conversion mode with compression, each converter thread compresses
+    // the chunks it fills with a compressor of its own (all of which are
+    // listed for their statistics and to be ended on shut down) into
+    // containers from this pool.
+    private boolean parallelCompression = false;
+    private boolean compressorsEnded = false; // guarded by compressors
+    private final TFThreadLocal threadCompressors = new TFThreadLocal();
+    private final ArrayList/* <ChunkCompressor> */compressors = new ArrayList/* <ChunkCompressor> */();
+    private final ConcurrentLinkedQueue/* <CompressedChunk> */readyContainers = new ConcurrentLinkedQueue/* <CompressedChunk> */();
+    private final AtomicInteger containerCount = new AtomicInteger(0);
+
+    // In conversion mode, threads that need an event chunk when none may be
+    // allocated wait on chunkLock until the emitter recycles one.
+    private final Object chunkLock = new Object();
+    private final AtomicInteger chunkWaiters = new AtomicInteger(0);
+
+    // Events and chunks discarded for want of event chunks, by feedlet
+    // index, and whether the totals have changed since they were last
+    // recorded in the trace; guarded by lossLock
+    private final Object lossLock = new Object();
+    private long[] lostEvents = new long[0];
+    private long[] lostChunks = new long[0];
+    private boolean[] lossChanged = new boolean[0];
+    private boolean anyLossChanged = false;
+
+    // The emitter parks between flushes, and is unparked early when
+    // pendingFullChunks reaches the high-water mark or a thread is waiting
+    // for a chunk to be recycled.
+    private volatile Thread emitterThread;
+    private volatile boolean emitterWoken = false;
+    private final AtomicInteger pendingFullChunks = new AtomicInteger(0);
+
+    // The time from an event chunk being handed over until it has been
+    // output; guarded by writeLock
+    private long chunksOutput = 0;
+    private long totalOutputLatency = 0;
+    private long maxOutputLatency = 0;
+
+    // With a maximum event latency, the emitter flushes at least every
+    // harvestInterval milliseconds and each time takes the events that have
+    // waited since the previous flush out of the chunks the feedlets are
+    // filling (see harvest).
+    private boolean harvestEvents = false;
+    private long harvestInterval = MAX_IDLE_FLUSH_TIME_MS;
+    private int harvestedChunks = 0; // guarded by writeLock
+
+    // Per-thread feedlets handed out by getFeedlet
+    private final TFThreadLocal feedletsByThread = new TFThreadLocal();
 
     // The integrity of these data structures is guarded by method-level
     // synchronization
@@ -86,25 +175,78 @@ public class Logger implements ILogger, IConversionLogger {
     private EventTypeChunk eventTypeChunk = new EventTypeChunk();
     private int feedletId = 0;
     private final ArrayList/* <AbstractFeedlet> */feedlets = new ArrayList/* <AbstractFeedlet> */();
-    private int stringIndex = 0;
+    // The event types added so far, and for each the filter settings last
+    // recorded in the trace (sample interval, bits of the rate limit and, on
+    // shut down, offered events)
+    private final ArrayList/* <EventType> */eventTypes = new ArrayList/* <EventType> */();
+    private final ArrayList/* <long[]> */reportedFilterSettings = new ArrayList/* <long[]> */();
+    private final ArrayList/* <ConcurrentSharedFeedlet> */sharedFeedlets = new ArrayList/* <ConcurrentSharedFeedlet> */();
+    private volatile StripedFeedlet stripedFeedlet;
 
-    private int eventChunkCount = 0;
+    /*
+     * Event types, strings and properties are registered by queueing them,
+     * without taking a lock, and the emitter adds them to the meta-chunks
+     * when it flushes. A thread queues the meta-data before it adds any
+     * event that refers to it, and the emitter drains the queue after taking
+     * the event chunks to write, so meta-data is still written before the
+     * events that use it.
+     */
+    private static final class PendingMeta {
+	static final int EVENT_TYPE = 0;
+	static final int STRING = 1;
+	static final int PROPERTY = 2;
+	static final int END = 3;
+
+	final int kind;
+	final EventType eventType;
+	final int id;
+	final String key;
+	final String value;
+
+	PendingMeta(int kind, EventType eventType, int id, String key,
+		String value) {
+	    this.kind = kind;
+	    this.eventType = eventType;
+	    this.id = id;
+	    this.key = key;
+	    this.value = value;
+	}
+    }
+
+    private final ConcurrentLinkedQueue/* <PendingMeta> */pendingMeta = new ConcurrentLinkedQueue/* <PendingMeta> */();
+    private final AtomicInteger nextStringId = new AtomicInteger(0);
+
+    // Bytes of the event chunks there are, and of those feedlets are filling
+    private final AtomicLong eventChunkBytes = new AtomicLong(0);
+    private final AtomicLong filledEventChunkBytes = new AtomicLong(0);
+    // The size classes that suit the output (see init)
+    private int minSizeClass = 0;
+    private int maxSizeClass = DEFAULT_SIZE_CLASS;
+    // The event chunks made of each size class, and the capacity and bytes
+    // used of the event chunks that the feedlets have handed over
+    private final AtomicIntegerArray eventChunksMade = new AtomicIntegerArray(
+	    NUMBER_OF_SIZE_CLASSES);
+    private final AtomicLong capacityHandedOver = new AtomicLong(0);
+    private final AtomicLong bytesHandedOver = new AtomicLong(0);
     private int feedletCount = 0;
 
     private final static int UNSTARTED = 0;
     private final static int RUNNING = 1;
     private final static int SHUTTING_DOWN = 2;
     private final static int SHUT_DOWN = 3;
-    private int loggerMode = UNSTARTED;
+    private volatile int loggerMode = UNSTARTED;
+    // Guards the transitions of loggerMode, and is notified on shut down
+    private final Object shutdownLock = new Object();
 
-    // These two structures are not guarded using method synchronization but
-    // by a separate lock to reduce contention while the logger thread is
-    // running.
-    private final Object eventChunkLock = new Object();
-    private final ArrayList/* <EventChunk> */readyEventChunks = new ArrayList/* <EventChunk> */();
-    private final ArrayList/* <EventChunk> */fullEventChunks = new ArrayList/* <EventChunk> */();
+    // These structures are not guarded using method synchronization.
+    // They are lock-free queues so that feedlets can exchange event chunks
+    // with the logger thread in constant time without contending on a lock.
+    // There is a queue of ready event chunks for each size class.
+    private final ConcurrentLinkedQueue/* <EventChunk> */[] readyEventChunks = makeEventChunkPools();
+    private final ConcurrentLinkedQueue/* <RawChunk> */fullEventChunks = new ConcurrentLinkedQueue/* <RawChunk> */();
 
     private final int processorAffinity;
+    private final LoggerOptions options;
     public static final int NO_PROCESSOR_AFFINITY = -1;
     public static final int DEFAULT_PROCESSOR_AFFINITY = 0; // FIXME: should
 							    // default to none;
@@ -116,89 +258,144 @@ public class Logger implements ILogger, IConversionLogger {
     public Logger() {
 	feedletMode = NULL_MODE;
 	this.processorAffinity = NO_PROCESSOR_AFFINITY;
+	this.options = new LoggerOptions();
+	this.stringCache = makeStringCache(this.options);
+	this.timeSource = makeTimeSource(this.options);
     }
 
     Logger(File file, EventTypeSpaceVersion[] eventTypeSpaces,
-	    long tickFrequency, int feedletMode, int processorAffinity)
-	    throws FileNotFoundException, IOException {
+	    long tickFrequency, int feedletMode, int processorAffinity,
+	    LoggerOptions options) throws FileNotFoundException, IOException {
 	this.file = file;
 	this.feedletMode = feedletMode;
-	outputStream = new FileOutputStream(this.file);
+	outputChannel = new FileOutputStream(this.file).getChannel();
 	this.eventTypeSpaces = eventTypeSpaces;
 	this.processorAffinity = processorAffinity;
+	this.options = new LoggerOptions(options);
+	this.stringCache = makeStringCache(this.options);
+	this.timeSource = makeTimeSource(this.options);
 	init(tickFrequency);
-	writeOldMetaChunks(outputStream);
+	writeOldMetaChunks(outputChannel);
+    }
+
+    public Logger(File file, EventTypeSpaceVersion[] eventTypeSpaces,
+	    long tickFrequency, int feedletMode, LoggerOptions options)
+	    throws FileNotFoundException, IOException {
+	this(file, eventTypeSpaces, tickFrequency, feedletMode,
+		DEFAULT_PROCESSOR_AFFINITY, options);
     }
 
     public Logger(File file, EventTypeSpaceVersion[] eventTypeSpaces,
 	    long tickFrequency, int feedletMode) throws FileNotFoundException,
 	    IOException {
 	this(file, eventTypeSpaces, tickFrequency, feedletMode,
-		DEFAULT_PROCESSOR_AFFINITY);
+		new LoggerOptions());
+    }
+
+    Logger(File file, long ringCapacity,
+	    EventTypeSpaceVersion[] eventTypeSpaces, long tickFrequency,
+	    int feedletMode, int processorAffinity, LoggerOptions options)
+	    throws IOException {
+	this.file = file;
+	this.feedletMode = feedletMode;
+	ringFile = new RingFile(file, ringCapacity);
+	this.eventTypeSpaces = eventTypeSpaces;
+	this.processorAffinity = processorAffinity;
+	this.options = new LoggerOptions(options);
+	this.stringCache = makeStringCache(this.options);
+	this.timeSource = makeTimeSource(this.options);
+	init(tickFrequency);
+	synchronized (writeLock) {
+	    ringFile.write(oldMetaChunks);
+	}
+    }
+
+    public Logger(File file, long ringCapacity,
+	    EventTypeSpaceVersion[] eventTypeSpaces, long tickFrequency,
+	    int feedletMode, LoggerOptions options) throws IOException {
+	this(file, ringCapacity, eventTypeSpaces, tickFrequency, feedletMode,
+		DEFAULT_PROCESSOR_AFFINITY, options);
+    }
+
+    public Logger(File file, long ringCapacity,
+	    EventTypeSpaceVersion[] eventTypeSpaces, long tickFrequency,
+	    int feedletMode) throws IOException {
+	this(file, ringCapacity, eventTypeSpaces, tickFrequency, feedletMode,
+		new LoggerOptions());
     }
 
     Logger(int portNum, EventTypeSpaceVersion[] eventTypeSpaces,
-	    long tickFrequency, int feedletMode, int processorAffinity)
-	    throws FileNotFoundException, IOException {
+	    long tickFrequency, int feedletMode, int processorAffinity,
+	    LoggerOptions options) throws FileNotFoundException, IOException {
 	this.portNumber = portNum;
 	this.feedletMode = feedletMode;
 	this.eventTypeSpaces = eventTypeSpaces;
 	this.processorAffinity = processorAffinity;
+	this.options = new LoggerOptions(options);
+	this.stringCache = makeStringCache(this.options);
+	this.timeSource = makeTimeSource(this.options);
+	server = new SocketServer(this, portNum, this.options
+		.getSubscriberQueueSize());
 	init(tickFrequency);
 	Thread serverThread = new JavaTracingServerThread(this);
 	serverThread.start();
     }
 
+    public Logger(int portNum, EventTypeSpaceVersion[] eventTypeSpaces,
+	    long tickFrequency, int feedletMode, LoggerOptions options)
+	    throws FileNotFoundException, IOException {
+	this(portNum, eventTypeSpaces, tickFrequency, feedletMode,
+		DEFAULT_PROCESSOR_AFFINITY, options);
+    }
+
     public Logger(int portNum, EventTypeSpaceVersion[] eventTypeSpaces,
 	    long tickFrequency, int feedletMode) throws FileNotFoundException,
 	    IOException {
 	this(portNum, eventTypeSpaces, tickFrequency, feedletMode,
-		DEFAULT_PROCESSOR_AFFINITY);
+		new LoggerOptions());
     }
 
-    private void socketDebugMsg(String str) {
+    void socketDebugMsg(String str) {
 	if (DEBUG_SOCKET) {
 	    System.err.println("Info: " + str);
 	}
     }
 
     public void serverRun() {
-	ServerSocket serverSocket;
-	try {
-	    serverSocket = new ServerSocket(portNumber);
-	} catch (IOException e) {
-	    socketDebugMsg("Unable to create ServerSocket on port "
-		    + portNumber);
-	    socketDebugMsg("\t" + e.getMessage());
-	    socketDebugMsg("Server exiting");
-	    return;
-	}
-	while (true) {
-	    try {
-		socketDebugMsg("Waiting for connections...");
-		Socket clientSocket = serverSocket.accept();
-		socketDebugMsg("Accepted connection to " + clientSocket);
-		OutputStream os = clientSocket.getOutputStream();
-		writeOldMetaChunks(os);
-		outputStream = os;
-	    } catch (IOException e) {
-		socketDebugMsg("Problem establishing socket communation.");
-		socketDebugMsg(e.getMessage());
-		e.printStackTrace();
-		socketDebugMsg("...restarting wait loop.");
-	    }
-	    while (outputStream != null) {
-		try {
-		    Thread.sleep(5 * INTER_FLUSH_TIME_MS);
-		} catch (InterruptedException ie) {
-		}
-	    }
+	server.run();
+    }
+
+    private static ConcurrentLinkedQueue/* <EventChunk> */[] makeEventChunkPools() {
+	ConcurrentLinkedQueue/* <EventChunk> */[] pools = new ConcurrentLinkedQueue[NUMBER_OF_SIZE_CLASSES];
+	for (int i = 0; i < pools.length; i++) {
+	    pools[i] = new ConcurrentLinkedQueue/* <EventChunk> */();
 	}
+	return pools;
+    }
+
+    static int sizeClassOf(int chunkSize) {
+	return Integer.numberOfTrailingZeros(chunkSize
+		/ EventChunk.MIN_EVENT_CHUNK_SIZE);
+    }
+
+    private static int sizeOfClass(int sizeClass) {
+	return EventChunk.MIN_EVENT_CHUNK_SIZE << sizeClass;
     }
 
-    private EventChunk makeNewEventChunk() {
-	return new EventChunk((feedletMode == AUTO_CLOCK_MODE)
-		&& (file == null));
+    private EventChunk makeNewEventChunk(int sizeClass) {
+	boolean autoFlush = (feedletMode == AUTO_CLOCK_MODE) && (file == null);
+	int size = sizeOfClass(sizeClass);
+	ByteBuffer buffer = options.getOffHeapEventChunks() ? ByteBuffer
+		.allocateDirect(size) : ByteBuffer.allocate(size);
+	eventChunksMade.incrementAndGet(sizeClass);
+	if (options.getCompactEvents()) {
+	    return new CompactEventChunk(autoFlush, buffer);
+	}
+	EventChunk ec = new EventChunk(autoFlush, buffer);
+	if (harvestEvents) {
+	    ec.setHarvestable();
+	}
+	return ec;
     }
 
     /*
@@ -218,13 +415,53 @@ public class Logger implements ILogger, IConversionLogger {
 	    oldMetaChunks.add(eventTypeSpaceChunk);
 	}
 
+	// A ring file has a slot of the default size for every event chunk,
+	// however full, and a chunk larger than that could be more than a slow
+	// subscriber's queue can take.
+	if (ringFile != null) {
+	    minSizeClass = DEFAULT_SIZE_CLASS;
+	} else if (server == null) {
+	    maxSizeClass = NUMBER_OF_SIZE_CLASSES - 1;
+	}
+	// Converters are never left holding events, compact events can not
+	// be taken out of the middle of a chunk, and each small piece taken
+	// would use up a whole slot of a ring file.
+	if (options.getMaxEventLatency() != 0 && !options.getCompactEvents()
+		&& ringFile == null && feedletMode != CONVERSION_MODE
+		&& feedletMode != NULL_MODE) {
+	    harvestEvents = true;
+	    // Events are taken once they have waited a whole interval
+	    harvestInterval = Math.max(1, options.getMaxEventLatency() / 2);
+	    addProperty("Maximum Event Latency ms", ""
+		    + options.getMaxEventLatency());
+	}
+	// Feedlets start with the smallest chunks, and move up only if they
+	// fill them quickly.
 	for (int i = 0; i < INITIAL_NUMBER_OF_EVENT_CHUNKS; i++) {
-	    readyEventChunks.add(makeNewEventChunk());
+	    eventChunkBytes.addAndGet(sizeOfClass(minSizeClass));
+	    readyEventChunks[minSizeClass].add(makeNewEventChunk(minSizeClass));
+	}
+	// A ring file keeps event chunks in fixed slots, so there is nothing
+	// to gain from compressing them.
+	if (options.getCompressionLevel() != LoggerOptions.NO_COMPRESSION
+		&& ringFile == null) {
+	    if (feedletMode == CONVERSION_MODE) {
+		parallelCompression = true;
+	    } else {
+		compressor = new ChunkCompressor(options.getCompressionLevel());
+		compressors.add(compressor);
+	    }
 	}
 	Runtime.getRuntime().addShutdownHook(
 		new JavaTracingShutdownThread(this));
 	Thread loggingThread = new JavaTracingThread(this);
 	loggingThread.start();
+	// Time stamps that the logger makes itself are in ticks of its time
+	// source, whatever the caller thought they would be.
+	if (feedletMode == AUTO_CLOCK_MODE) {
+	    tickFrequency = timeSource.getTickFrequency();
+	    addProperty("Time Source", timeSource.getName());
+	}
 	addProperty("Tick Frequency", "" + tickFrequency);
 	addProperty("Trace Thread CPU Affinity", processorAffinity >= 0 ? ""
 		+ processorAffinity : "None");
@@ -236,40 +473,103 @@ public class Logger implements ILogger, IConversionLogger {
     }
 
     public void emitterRun() {
-	loggerMode = RUNNING;
-	while (true) {
-	    try {
-		Thread.sleep(INTER_FLUSH_TIME_MS);
-	    } catch (InterruptedException ie) {
+	emitterThread = Thread.currentThread();
+	synchronized (shutdownLock) {
+	    if (loggerMode == UNSTARTED) {
+		loggerMode = RUNNING;
 	    }
+	}
+	long interval = INTER_FLUSH_TIME_MS;
+	while (true) {
+	    awaitFlush(interval);
 	    boolean shuttingDown = loggerMode == SHUTTING_DOWN;
-	    flush(shuttingDown);
+	    if (flush(shuttingDown) == 0) {
+		interval = Math.min(2 * interval, MAX_IDLE_FLUSH_TIME_MS);
+	    } else {
+		interval = INTER_FLUSH_TIME_MS;
+	    }
+	    interval = Math.min(interval, harvestInterval);
 	    if (shuttingDown) {
-		loggerMode = SHUT_DOWN;
+		synchronized (shutdownLock) {
+		    loggerMode = SHUT_DOWN;
+		    shutdownLock.notifyAll();
+		}
+		break;
+	    }
+	}
+    }
+
+    /*
+     * Park the emitter until it is woken or interval milliseconds have
+     * passed.
+     */
+    private void awaitFlush(long interval) {
+	long deadline = System.nanoTime() + interval * 1000000;
+	while (!emitterWoken) {
+	    long left = deadline - System.nanoTime();
+	    if (left <= 0) {
 		break;
 	    }
+	    LockSupport.parkNanos(this, left);
 	}
+	emitterWoken = false;
     }
 
+    /* Have the emitter flush now rather than at its next scheduled time */
+    void wakeEmitter() {
+	if (!emitterWoken) {
+	    emitterWoken = true;
+	    Thread emitter = emitterThread;
+	    if (emitter != null) {
+		LockSupport.unpark(emitter);
+	    }
+	}
+    }
+
+    /*
+     * Wake the emitter once a quarter of the event chunk memory is waiting to
+     * be written, so that bursts are written before the feedlets run out.
+     * The chunks waiting are taken to be the size of the one just handed
+     * over, since the feedlets that fill chunks fastest also have the
+     * largest ones.
+     */
+    private boolean reachedHighWaterMark(int pending, int chunkSize) {
+	long limit = (long) allowableNumberOfEventChunk()
+		* EventChunk.DEFAULT_EVENT_CHUNK_SIZE;
+	return (long) pending * chunkSize >= Math.max(chunkSize, limit / 4);
+    }
+
+    /*
+     * Returns once the emitter has written everything, straight away if the
+     * logger has already been closed or has no emitter.
+     */
     public void close() {
-	loggerMode = SHUTTING_DOWN;
-	while (loggerMode == SHUTTING_DOWN) {
-	    try {
-		Thread.sleep(INTER_FLUSH_TIME_MS);
-	    } catch (InterruptedException ie) {
+	synchronized (shutdownLock) {
+	    if (feedletMode == NULL_MODE || loggerMode == SHUT_DOWN) {
+		return;
+	    }
+	    loggerMode = SHUTTING_DOWN;
+	}
+	wakeEmitter();
+	synchronized (shutdownLock) {
+	    while (loggerMode != SHUT_DOWN) {
+		try {
+		    shutdownLock.wait();
+		} catch (InterruptedException ie) {
+		}
 	    }
 	}
     }
 
     public int allowableNumberOfEventChunk() {
-	if (feedletMode == CONVERSION_MODE) {
-	    // In conversion mode, never lose data!
-	    return Integer.MAX_VALUE;
-	} else {
-	    return INITIAL_NUMBER_OF_EVENT_CHUNKS
-		    + ADDITIONAL_NUMBER_OF_EVENT_CHUNKS_PER_FEEDLET
-		    * feedletCount;
+	// In conversion mode, data is never lost: converters wait for chunks
+	// instead (see waitForEventChunk).
+	if (options.getMaxEventChunks() != 0) {
+	    // Every feedlet may be holding a partly filled chunk
+	    return Math.max(options.getMaxEventChunks(), feedletCount + 1);
 	}
+	return INITIAL_NUMBER_OF_EVENT_CHUNKS
+		+ ADDITIONAL_NUMBER_OF_EVENT_CHUNKS_PER_FEEDLET * feedletCount;
     }
 
     /*
@@ -278,61 +578,446 @@ public class Logger implements ILogger, IConversionLogger {
      * @see com.ibm.tuningfork.tracegen.ILogger#getEmptyEventChunk()
      */
     public EventChunk getEmptyEventChunk() {
-	synchronized (eventChunkLock) {
-	    ListIterator/* <EventChunk> */readyIter = readyEventChunks
-		    .listIterator();
-	    while (readyIter.hasNext()) {
-		EventChunk ec = (EventChunk) readyIter.next();
-		if (ec != null) {
-		    readyEventChunks.remove(ec);
-		    return ec;
-		}
-	    }
+	return getEmptyEventChunk(DEFAULT_SIZE_CLASS);
+    }
+
+    /*
+     * Get an event chunk of the given size class if possible. Rather than
+     * lose events, a chunk of another size class is taken when the budget
+     * does not allow for a new chunk of this one.
+     */
+    EventChunk getEmptyEventChunk(int sizeClass) {
+	return getEmptyEventChunk(sizeClass, true);
+    }
+
+    /*
+     * As getEmptyEventChunk(int), discarding the event instead of waiting
+     * under the BLOCK policy unless mayBlock is true.
+     */
+    EventChunk getEmptyEventChunk(int sizeClass, boolean mayBlock) {
+	EventChunk ec = takeEmptyEventChunk(sizeClass, mayBlock);
+	if (ec != null) {
+	    filledEventChunkBytes.addAndGet(ec.getCapacity());
 	}
-	if (eventChunkCount < allowableNumberOfEventChunk()) {
-	    eventChunkCount++;
-	    EventChunk ec = makeNewEventChunk();
+	return ec;
+    }
+
+    private EventChunk takeEmptyEventChunk(int sizeClass, boolean mayBlock) {
+	sizeClass = Math.max(minSizeClass, Math.min(sizeClass, maxSizeClass));
+	EventChunk ec = pollEmptyEventChunk(sizeClass);
+	if (ec != null) {
 	    return ec;
 	}
+	if (feedletMode == CONVERSION_MODE) {
+	    return waitForEventChunk(sizeClass, 0);
+	}
+	// A null result makes the feedlet discard its event
+	switch (options.getOverflowPolicy()) {
+	case LoggerOptions.DROP_NEWEST:
+	    return null;
+	case LoggerOptions.BLOCK:
+	    if (!mayBlock || Thread.holdsLock(this)
+		    || Thread.holdsLock(writeLock)) {
+		// The emitter could not recycle a chunk while we wait
+		return null;
+	    }
+	    return waitForEventChunk(sizeClass, options.getBlockTimeout());
+	case LoggerOptions.GROW:
+	    if (reserveNewEventChunk(sizeClass, growthLimit())) {
+		return makeNewEventChunk(sizeClass);
+	    }
+	    break;
+	}
 	// Throw away some old full event chunks
-	EventChunk ec = getFullEventChunk();
+	ec = getFullEventChunk();
 	if (ec != null) {
+	    pendingFullChunks.decrementAndGet();
+	    recordLoss(ec.getFeedletIndex(), 1, ec.getNumberOfEvents());
 	    ec.close();
 	    return ec;
 	}
 	return null;
     }
 
+    /*
+     * Get an event chunk of the given size class, or failing that of another,
+     * if there is one ready or room in the budget for a new one. Returns null
+     * rather than wait or discard anything.
+     */
+    private EventChunk pollEmptyEventChunk(int sizeClass) {
+	sizeClass = Math.max(minSizeClass, Math.min(sizeClass, maxSizeClass));
+	EventChunk ec = (EventChunk) readyEventChunks[sizeClass].poll();
+	if (ec != null) {
+	    return ec;
+	}
+	if (reserveNewEventChunk(sizeClass, allowableNumberOfEventChunk())) {
+	    return makeNewEventChunk(sizeClass);
+	}
+	// Rather than make do with a smaller chunk, drop it so that its memory
+	// goes towards one of the size wanted
+	ec = pollReadyEventChunk(sizeClass);
+	while (ec != null && ec.getCapacity() < sizeOfClass(sizeClass)) {
+	    eventChunkBytes.addAndGet(-ec.getCapacity());
+	    if (reserveNewEventChunk(sizeClass, allowableNumberOfEventChunk())) {
+		return makeNewEventChunk(sizeClass);
+	    }
+	    ec = pollReadyEventChunk(sizeClass);
+	}
+	if (ec != null) {
+	    return ec;
+	}
+	for (int c = sizeClass - 1; c >= minSizeClass; c--) {
+	    if (reserveNewEventChunk(c, allowableNumberOfEventChunk())) {
+		return makeNewEventChunk(c);
+	    }
+	}
+	return null;
+    }
+
+    private int growthLimit() {
+	int usual = allowableNumberOfEventChunk();
+	if (options.getGrowthLimit() != 0) {
+	    return Math.max(options.getGrowthLimit(), usual);
+	}
+	return 4 * usual;
+    }
+
+    /*
+     * Block the calling thread until the emitter has written and recycled
+     * an event chunk, so that converters that outrun the output are held back
+     * rather than filling the heap. Returns null if none is recycled within
+     * timeout milliseconds, unless timeout is 0.
+     */
+    private EventChunk waitForEventChunk(int sizeClass, long timeout) {
+	return (EventChunk) waitForChunk(false, sizeClass, timeout);
+    }
+
+    /*
+     * Wait for an event chunk of any size class, preferring sizeClass, or
+     * for a container if container is true.
+     */
+    private RawChunk waitForChunk(boolean container, int sizeClass,
+	    long timeout) {
+	long deadline = System.currentTimeMillis() + timeout;
+	chunkWaiters.incrementAndGet();
+	try {
+	    while (true) {
+		synchronized (chunkLock) {
+		    RawChunk chunk = container ? (RawChunk) readyContainers
+			    .poll() : pollReadyEventChunk(sizeClass);
+		    if (chunk != null) {
+			return chunk;
+		    }
+		    if (container) {
+			if (reserve(containerCount,
+				allowableNumberOfEventChunk())) {
+			    return new CompressedChunk(
+				    EventChunk.DEFAULT_EVENT_CHUNK_SIZE);
+			}
+		    } else if (reserveNewEventChunk(sizeClass,
+			    allowableNumberOfEventChunk())) {
+			return makeNewEventChunk(sizeClass);
+		    }
+		    long wait = INTER_FLUSH_TIME_MS;
+		    if (timeout != 0) {
+			long left = deadline - System.currentTimeMillis();
+			if (left <= 0) {
+			    return null;
+			}
+			wait = Math.min(wait, left);
+		    }
+		    wakeEmitter();
+		    try {
+			chunkLock.wait(wait);
+		    } catch (InterruptedException ie) {
+		    }
+		}
+	    }
+	} finally {
+	    chunkWaiters.decrementAndGet();
+	}
+    }
+
+    /*
+     * The bytes that event chunks may take, which is what the initial chunks
+     * and limit more would take if they were all of the default size.
+     */
+    private static long eventChunkBudget(int limit) {
+	return (long) (INITIAL_NUMBER_OF_EVENT_CHUNKS + limit)
+		* EventChunk.DEFAULT_EVENT_CHUNK_SIZE;
+    }
+
+    /*
+     * Account for a new event chunk of the given size class without
+     * exceeding the budget for limit chunks. Several feedlets may race to
+     * allocate, so the count is bumped with a compare-and-set rather than
+     * under a lock.
+     */
+    private boolean reserveNewEventChunk(int sizeClass, int limit) {
+	long size = sizeOfClass(sizeClass);
+	long budget = eventChunkBudget(limit);
+	while (true) {
+	    long bytes = eventChunkBytes.get();
+	    if (bytes + size > budget) {
+		return false;
+	    }
+	    if (eventChunkBytes.compareAndSet(bytes, bytes + size)) {
+		return true;
+	    }
+	}
+    }
+
+    /*
+     * Take a ready event chunk of the size class nearest to sizeClass,
+     * larger ones first.
+     */
+    private EventChunk pollReadyEventChunk(int sizeClass) {
+	for (int d = 0; d < NUMBER_OF_SIZE_CLASSES; d++) {
+	    int larger = sizeClass + d;
+	    if (larger < NUMBER_OF_SIZE_CLASSES) {
+		EventChunk ec = (EventChunk) readyEventChunks[larger].poll();
+		if (ec != null) {
+		    return ec;
+		}
+	    }
+	    int smaller = sizeClass - d;
+	    if (d > 0 && smaller >= 0) {
+		EventChunk ec = (EventChunk) readyEventChunks[smaller].poll();
+		if (ec != null) {
+		    return ec;
+		}
+	    }
+	}
+	return null;
+    }
+
+    private boolean reserve(AtomicInteger chunkCount, int limit) {
+	while (true) {
+	    int count = chunkCount.get();
+	    if (count >= limit) {
+		return false;
+	    }
+	    if (chunkCount.compareAndSet(count, count + 1)) {
+		return true;
+	    }
+	}
+    }
+
     /*
      * (non-Javadoc)
      *
      * @see com.ibm.tuningfork.tracegen.ILogger#returnFullEventChunk(com.ibm.tuningfork.tracegen.EventChunk)
      */
     public void returnFullEventChunk(EventChunk ec) {
-	synchronized (eventChunkLock) {
-	    fullEventChunks.add(ec);
+	if (ec == null) {
+	    return;
+	}
+	ec.setReadyTime(System.nanoTime());
+	filledEventChunkBytes.addAndGet(-ec.getCapacity());
+	capacityHandedOver.addAndGet(ec.getCapacity());
+	bytesHandedOver.addAndGet(ec.getSize());
+	if (parallelCompression) {
+	    fullEventChunks.offer(compressFullEventChunk(ec));
+	} else {
+	    fullEventChunks.offer(ec);
+	}
+	if (reachedHighWaterMark(pendingFullChunks.incrementAndGet(), ec
+		.getCapacity())) {
+	    wakeEmitter();
 	}
     }
 
+    /*
+     * Compress a full event chunk on the converter thread that filled it,
+     * returning the compressed container, or the chunk itself (closed) if
+     * it does not compress. Containers are limited in number like event
+     * chunks, and are waited for in the same way, except while flushing the
+     * feedlets since the writer then holds locks that it needs to recycle
+     * them.
+     */
+    private RawChunk compressFullEventChunk(EventChunk ec) {
+	CompressedChunk container = (CompressedChunk) readyContainers.poll();
+	if (container == null) {
+	    if (Thread.holdsLock(writeLock) || Thread.holdsLock(this)) {
+		ec.close();
+		return ec;
+	    }
+	    container = (CompressedChunk) waitForChunk(true, 0, 0);
+	}
+	container.reset();
+	ChunkCompressor threadCompressor = (ChunkCompressor) threadCompressors
+		.get();
+	if (threadCompressor == null) {
+	    threadCompressor = new ChunkCompressor(options
+		    .getCompressionLevel());
+	    threadCompressors.add(threadCompressor);
+	    synchronized (compressors) {
+		if (compressorsEnded) {
+		    // The logger has shut down; the chunk is left as it is
+		    threadCompressor.end();
+		} else {
+		    compressors.add(threadCompressor);
+		}
+	    }
+	}
+	ec.close();
+	if (threadCompressor.compress(ec, container)) {
+	    container.setReadyTime(ec.getReadyTime());
+	    returnReadyEventChunk(ec);
+	    return container;
+	}
+	readyContainers.offer(container);
+	return ec;
+    }
+
     private void returnReadyEventChunk(EventChunk ec) {
-	synchronized (eventChunkLock) {
-	    readyEventChunks.add(ec);
+	readyEventChunks[sizeClassOf(ec.getCapacity())].offer(ec);
+	notifyChunkWaiters();
+    }
+
+    private void notifyChunkWaiters() {
+	if (chunkWaiters.get() > 0) {
+	    synchronized (chunkLock) {
+		chunkLock.notifyAll();
+	    }
 	}
     }
 
-    private EventChunk getFullEventChunk() {
-	synchronized (eventChunkLock) {
-	    ListIterator/* <EventChunk> */readyIter = fullEventChunks
-		    .listIterator();
-	    while (readyIter.hasNext()) {
-		EventChunk ec = (EventChunk) readyIter.next();
-		if (ec != null) {
-		    fullEventChunks.remove(ec);
-		    return ec;
-		}
+    /*
+     * The size class for the next event chunk of a feedlet, given how it used
+     * the chunk it is handing over, which it held for heldNanos. A feedlet
+     * that fills chunks faster than the emitter usually flushes moves up a
+     * class so that it hands over fewer of them, and one that hands them
+     * over mostly empty, or takes a long time to fill them, moves down a
+     * class so that it holds on to less memory.
+     *
+     * The chunks being filled must also leave room in the budget for the
+     * chunks waiting to be written, so feedlets only move up while the
+     * chunks being filled take less than an eighth of the budget, and move
+     * down once they take more than a quarter.
+     */
+    int adaptSizeClass(int sizeClass, EventChunk ec, long heldNanos) {
+	int size = ec.getSize();
+	int capacity = ec.getCapacity();
+	long budget = eventChunkBudget(allowableNumberOfEventChunk());
+	long filled = filledEventChunkBytes.get();
+	if (size >= capacity / 2
+		&& heldNanos < INTER_FLUSH_TIME_MS * 1000000L
+		&& sizeClass < maxSizeClass
+		&& 8 * (filled + sizeOfClass(sizeClass)) <= budget) {
+	    return sizeClass + 1;
+	}
+	if (size < capacity / 4
+		|| heldNanos > MAX_IDLE_FLUSH_TIME_MS * 1000000L
+		|| 4 * filled > budget) {
+	    return Math.max(sizeClass - 1, minSizeClass);
+	}
+	return sizeClass;
+    }
+
+    /*
+     * Take back a harvested piece that was handed over but is not to be
+     * written after all. Only the thread writing the trace harvests, so the
+     * piece is still queued unless a thread took it to make room, in which
+     * case its events were counted as lost although its feedlet writes them.
+     */
+    private void withdrawFullEventChunk(EventChunk ec) {
+	if (fullEventChunks.remove(ec)) {
+	    pendingFullChunks.decrementAndGet();
+	    capacityHandedOver.addAndGet(-ec.getCapacity());
+	    bytesHandedOver.addAndGet(-ec.getSize());
+	    returnReadyEventChunk(ec);
+	}
+    }
+
+    /* For a chunk obtained from getEmptyEventChunk that was never used */
+    void returnUnusedEventChunk(EventChunk ec) {
+	filledEventChunkBytes.addAndGet(-ec.getCapacity());
+	returnReadyEventChunk(ec);
+    }
+
+    /*
+     * The smallest size class of event chunk that holds bytes, the header
+     * included.
+     */
+    private static int sizeClassFor(int bytes) {
+	int sizeClass = 0;
+	while (sizeOfClass(sizeClass) < bytes) {
+	    sizeClass++;
+	}
+	return sizeClass;
+    }
+
+    /*
+     * Take the events that have waited since the previous flush out of the
+     * chunk that feedlet is filling, as the next chunk of the feedlet. Only
+     * an event chunk there is room for is used, so a harvest never waits,
+     * loses events or makes room by dropping events.
+     */
+    void harvest(AbstractFeedlet feedlet) {
+	EventChunk chunk = feedlet.getLiveChunk();
+	if (chunk == null) {
+	    return;
+	}
+	int size = chunk.getHarvestableSize();
+	if (size == 0) {
+	    return;
+	}
+	EventChunk piece = pollEmptyEventChunk(sizeClassFor(size
+		+ EventChunk.EVENT_DATA_OFFSET));
+	if (piece == null) {
+	    return;
+	}
+	filledEventChunkBytes.addAndGet(piece.getCapacity());
+	if (chunk.takePublishedEvents(piece)) {
+	    returnFullEventChunk(piece);
+	    if (chunk.commitPiece()) {
+		harvestedChunks++;
+	    } else {
+		withdrawFullEventChunk(piece);
 	    }
+	} else {
+	    returnUnusedEventChunk(piece);
 	}
-	return null;
+    }
+
+    /*
+     * Flush the feedlets whose threads have ended and forget them, so that a
+     * program that keeps starting threads does not keep a feedlet and a
+     * partly filled event chunk for each. Nothing writes to such a feedlet
+     * any more, so the emitter may flush it.
+     */
+    private synchronized void releaseEndedFeedlets() {
+	int kept = 0;
+	for (int i = 0; i < feedlets.size(); i++) {
+	    AbstractFeedlet feedlet = (AbstractFeedlet) feedlets.get(i);
+	    if (feedlet.isOwnerDead()) {
+		feedlet.flush();
+	    } else {
+		feedlets.set(kept++, feedlet);
+	    }
+	}
+	while (feedlets.size() > kept) {
+	    feedlets.remove(feedlets.size() - 1);
+	}
+    }
+
+    private synchronized void harvestFeedlets() {
+	for (int i = 0; i < feedlets.size(); i++) {
+	    harvest((AbstractFeedlet) feedlets.get(i));
+	}
+	for (int i = 0; i < sharedFeedlets.size(); i++) {
+	    ((ConcurrentSharedFeedlet) sharedFeedlets.get(i))
+		    .harvest(harvestInterval * 1000000);
+	}
+	if (stripedFeedlet != null) {
+	    stripedFeedlet.harvest();
+	}
+    }
+
+    /* Only called outside conversion mode, where no chunk is compressed early */
+    private EventChunk getFullEventChunk() {
+	return (EventChunk) fullEventChunks.poll();
     }
 
     /*
@@ -341,15 +1026,16 @@ public class Logger implements ILogger, IConversionLogger {
      * @see com.ibm.tuningfork.tracegen.ILogger#getFeedlet(java.lang.String,
      *      java.lang.String)
      */
-    public synchronized IFeedlet getFeedlet(String name, String desc) {
-	Thread thread = Thread.currentThread();
-	// FIXME: Thread.getId() is not 1.4 -- how to solve?
-	long id = thread.getId();
-	String key = Long.toString(id).intern();
-	IFeedlet feedlet = (Feedlet) feedletsByThread.get(key);
+    public IFeedlet getFeedlet(String name, String desc) {
+	if (options.getStripedFeedlets() || options.getProcessorFeedlets()
+		|| StripedFeedlet.isCurrentThreadVirtual()) {
+	    return getStripedFeedlet();
+	}
+	IFeedlet feedlet = (IFeedlet) feedletsByThread.get();
 	if (feedlet == null) {
 	    feedlet = makeFeedlet(name, desc);
-	    feedletsByThread.put(key, feedlet);
+	    ((AbstractFeedlet) feedlet).setOwner(Thread.currentThread());
+	    feedletsByThread.add(feedlet);
 	}
 	return feedlet;
     }
@@ -377,6 +1063,68 @@ public class Logger implements ILogger, IConversionLogger {
 	return (IConversionFeedlet) makeFeedletInternal(name, desc);
     }
 
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.ibm.tuningfork.tracegen.ILogger#makeSharedFeedlet(java.lang.String,
+     *      java.lang.String)
+     */
+    public synchronized IFeedlet makeSharedFeedlet(String name, String desc) {
+	if (feedletMode == CONVERSION_MODE) {
+	    throw new IllegalArgumentException(
+		    "Can not make a non-conversion feedlet for a conversion logger");
+	}
+	if (options.getCompactEvents()) {
+	    // Compact events are delta encoded, so writers must take turns.
+	    return new SharedFeedlet((IFeedlet) makeFeedletInternal(name, desc));
+	}
+	ConcurrentSharedFeedlet feedlet = new ConcurrentSharedFeedlet(this,
+		feedletId);
+	sharedFeedlets.add(feedlet);
+	registerFeedlet(name, desc);
+	return feedlet;
+    }
+
+    /*
+     * The striped feedlet is made on first use, with a stripe per processor.
+     */
+    private IFeedlet getStripedFeedlet() {
+	StripedFeedlet feedlet = stripedFeedlet;
+	if (feedlet != null) {
+	    return feedlet;
+	}
+	synchronized (this) {
+	    if (feedletMode == CONVERSION_MODE) {
+		throw new IllegalArgumentException(
+			"Can not make a non-conversion feedlet for a conversion logger");
+	    }
+	    if (stripedFeedlet == null) {
+		/* Stripes are only per processor if the OS can tell us which */
+		boolean byProcessor = options.getProcessorFeedlets()
+			&& OSBridge.getCurrentProcessor() != OSBridge.NO_CPU;
+		Feedlet[] stripes = new Feedlet[Runtime.getRuntime()
+			.availableProcessors()];
+		for (int i = 0; i < stripes.length; i++) {
+		    String name;
+		    String desc;
+		    if (byProcessor) {
+			name = "Processor " + i;
+			desc = "Events of the threads that ran on processor " + i;
+		    } else {
+			name = "Stripe " + i;
+			desc = "Events of the threads that wrote to stripe " + i;
+		    }
+		    stripes[i] = new Feedlet(this, feedletId, name, desc);
+		    registerFeedlet(name, stripes[i].getDescription());
+		}
+		addProperty("Striped Feedlets", byProcessor ? "By Processor"
+			: "By Thread");
+		stripedFeedlet = new StripedFeedlet(this, stripes, byProcessor);
+	    }
+	    return stripedFeedlet;
+	}
+    }
+
     private AbstractFeedlet makeFeedletInternal(String name, String desc) {
 	// assert Thread.currentThread().holdsLock(this);
 	AbstractFeedlet feedlet = null;
@@ -396,14 +1144,157 @@ public class Logger implements ILogger, IConversionLogger {
 	}
 
 	feedlets.add(feedlet);
-	feedletChunk.add(feedlet.getIndex(), feedlet.getName(), feedlet.getDescription());
+	registerFeedlet(feedlet.getName(), feedlet.getDescription());
+	return feedlet;
+    }
+
+    private void registerFeedlet(String name, String desc) {
+	// assert Thread.currentThread().holdsLock(this);
+	while (!feedletChunk.add(feedletId, name, desc)) {
+	    closeFeedletChunk();
+	}
 	feedletId++;
 	feedletCount++;
-	return feedlet;
+    }
+
+    private static ITimeSource makeTimeSource(LoggerOptions options) {
+	ITimeSource timeSource = options.getTimeSource();
+	return timeSource != null ? timeSource : NanoTimeSource.INSTANCE;
+    }
+
+    /* The size of the cache is rounded up to a power of 2 */
+    private static EncodedString[] makeStringCache(LoggerOptions options) {
+	int requested = options.getStringCacheSize();
+	if (requested == 0) {
+	    return null;
+	}
+	int size = 1;
+	while (size < requested) {
+	    size <<= 1;
+	}
+	return new EncodedString[size];
+    }
+
+    /*
+     * Look a String up in the cache of recently logged Strings, returning its
+     * encoding or null if it is not to be cached. The cache is direct-mapped
+     * by hash code, so a String simply replaces whichever String had its
+     * slot; its entries are immutable, so the races between threads are
+     * benign.
+     *
+     * Only compact events refer to Strings by id, so only with compact
+     * events is a String seen for the second time entered in the string
+     * table. It keeps its id if it is evicted from the cache and comes back.
+     */
+    EncodedString getEncodedString(String s) {
+	if (stringCache == null || s.length() > MAX_CACHED_STRING_LENGTH) {
+	    return null;
+	}
+	int slot = s.hashCode() & (stringCache.length - 1);
+	EncodedString cached = stringCache[slot];
+	if (cached == null || !cached.getString().equals(s)) {
+	    cached = new EncodedString(s);
+	    if (options.getCompactEvents()) {
+		Integer id = (Integer) internedStrings.get(s);
+		if (id != null) {
+		    cached = cached.withId(id.intValue());
+		}
+	    }
+	    stringCache[slot] = cached;
+	} else if (cached.getId() == EncodedString.NO_ID
+		&& options.getCompactEvents()
+		&& internedStringCount < INTERNED_STRINGS_PER_CACHE_ENTRY
+			* stringCache.length) {
+	    int id = internString(s);
+	    if (id != EncodedString.NO_ID) {
+		cached = cached.withId(id);
+		stringCache[slot] = cached;
+	    }
+	}
+	return cached;
+    }
+
+    /*
+     * The id of s in the string table, entering it if need be, or NO_ID if
+     * the limit on the number of Strings entered has been reached. Two
+     * threads interning the same String get the same id.
+     */
+    private int internString(String s) {
+	synchronized (internedStrings) {
+	    Integer id = (Integer) internedStrings.get(s);
+	    if (id == null) {
+		if (internedStringCount >= INTERNED_STRINGS_PER_CACHE_ENTRY
+			* stringCache.length) {
+		    return EncodedString.NO_ID;
+		}
+		id = Integer.valueOf(addString(s));
+		internedStrings.put(s, id);
+		internedStringCount++;
+	    }
+	    return id.intValue();
+	}
     }
 
     public synchronized void addFeedletProperty(AbstractFeedlet f, String key, String value) {
-	feedletChunk.addProperty(f.getIndex(), key, value);
+	addFeedletProperty(f.getIndex(), key, value);
+    }
+
+    private synchronized void addFeedletProperty(int feedletIndex, String key,
+	    String value) {
+	while (!feedletChunk.addProperty(feedletIndex, key, value)) {
+	    closeFeedletChunk();
+	}
+    }
+
+    /*
+     * Account for events that were discarded for want of an event chunk.
+     * Feedlets report the events they discard themselves in batches, so
+     * this is called once per gap rather than once per event.
+     */
+    void recordLoss(int feedletIndex, int chunks, int events) {
+	synchronized (lossLock) {
+	    if (feedletIndex >= lossChanged.length) {
+		int length = Math.max(feedletIndex + 1, 2 * lossChanged.length);
+		long[] newLostEvents = new long[length];
+		long[] newLostChunks = new long[length];
+		boolean[] newLossChanged = new boolean[length];
+		System.arraycopy(lostEvents, 0, newLostEvents, 0,
+			lostEvents.length);
+		System.arraycopy(lostChunks, 0, newLostChunks, 0,
+			lostChunks.length);
+		System.arraycopy(lossChanged, 0, newLossChanged, 0,
+			lossChanged.length);
+		lostEvents = newLostEvents;
+		lostChunks = newLostChunks;
+		lossChanged = newLossChanged;
+	    }
+	    lostEvents[feedletIndex] += events;
+	    lostChunks[feedletIndex] += chunks;
+	    lossChanged[feedletIndex] = true;
+	    anyLossChanged = true;
+	}
+    }
+
+    /*
+     * Record the loss totals that have changed as feedlet properties, each
+     * superseding the feedlet's previous totals. Called on shut down.
+     */
+    private synchronized void addLossProperties() {
+	synchronized (lossLock) {
+	    if (!anyLossChanged) {
+		return;
+	    }
+	    for (int i = 0; i < lossChanged.length; i++) {
+		if (lossChanged[i]) {
+		    addFeedletProperty(i, IFeedlet.LOST_EVENTS_PROPERTY, ""
+			    + lostEvents[i]);
+		    addFeedletProperty(i, IFeedlet.LOST_CHUNKS_PROPERTY, ""
+			    + lostChunks[i]);
+		    lossChanged[i] = false;
+		}
+	    }
+	    anyLossChanged = false;
+	}
     }
 
     /*
@@ -411,9 +1302,42 @@ public class Logger implements ILogger, IConversionLogger {
      *
      * @see com.ibm.tuningfork.tracegen.ILogger#addEventType(com.ibm.tuningfork.tracegen.EventType)
      */
-    public synchronized void addEventType(EventType et) {
-	while (!eventTypeChunk.add(et)) {
-	    flush();
+    public void addEventType(EventType et) {
+	queueMeta(new PendingMeta(PendingMeta.EVENT_TYPE, et, 0, null, null));
+    }
+
+    /*
+     * Record the settings of the event filters that have changed since they
+     * were last recorded and, on shut down, the number of events each filter
+     * was offered and admitted, so that an analysis can tell how many events
+     * of each type there really were. The counts are recorded only once so
+     * that the meta-data does not grow with the length of the trace.
+     */
+    private synchronized void addFilterProperties(boolean shutdown) {
+	for (int i = 0; i < eventTypes.size(); i++) {
+	    EventType et = (EventType) eventTypes.get(i);
+	    EventFilter filter = et.getFilter();
+	    if (filter == null) {
+		continue;
+	    }
+	    String name = et.getName();
+	    long[] reported = (long[]) reportedFilterSettings.get(i);
+	    int interval = filter.getSampleInterval();
+	    double rateLimit = filter.getRateLimit();
+	    long rateLimitBits = Double.doubleToLongBits(rateLimit);
+	    if (interval != reported[0] || rateLimitBits != reported[1]) {
+		addProperty(name + " Sample Interval", "" + interval);
+		addProperty(name + " Rate Limit", "" + rateLimit);
+		reported[0] = interval;
+		reported[1] = rateLimitBits;
+	    }
+	    long offered = filter.getOfferedCount();
+	    if (shutdown && offered != reported[2]) {
+		addProperty(name + " Events Offered", "" + offered);
+		addProperty(name + " Events Admitted", ""
+			+ filter.getAdmittedCount());
+		reported[2] = offered;
+	    }
 	}
     }
 
@@ -422,11 +1346,9 @@ public class Logger implements ILogger, IConversionLogger {
      *
      * @see com.ibm.tuningfork.tracegen.ILogger#addString(java.lang.String)
      */
-    public synchronized int addString(String val) {
-	int index = stringIndex++;
-	while (!stringTableChunk.add(index, val)) {
-	    flush();
-	}
+    public int addString(String val) {
+	int index = nextStringId.getAndIncrement();
+	queueMeta(new PendingMeta(PendingMeta.STRING, null, index, null, val));
 	return index;
     }
 
@@ -436,24 +1358,47 @@ public class Logger implements ILogger, IConversionLogger {
      * @see com.ibm.tuningfork.tracegen.ILogger#addProperty(java.lang.String,
      *      java.lang.String)
      */
-    public synchronized void addProperty(String prop, String val) {
-	while (!propertyTableChunk.add(prop, val)) {
-	    flush();
+    public void addProperty(String prop, String val) {
+	queueMeta(new PendingMeta(PendingMeta.PROPERTY, null, 0, prop, val));
+    }
+
+    private void queueMeta(PendingMeta meta) {
+	if (feedletMode != NULL_MODE) {
+	    pendingMeta.offer(meta);
 	}
     }
 
-    private void writeEvents(OutputStream outputStream) throws IOException {
-	while (true) {
-	    EventChunk ec = getFullEventChunk();
-	    if (ec == null) {
-		return;
-	    }
-	    ec.close();
-	    if (outputStream != null) {
-		ec.write(outputStream);
+    /*
+     * Add the queued meta-data to the meta-chunks. Only the emitter calls
+     * this, from takeClosedMetaChunks. It stops at a marker so that threads
+     * that keep registering can not hold it up.
+     */
+    private void addPendingMeta() {
+	// assert Thread.holdsLock(this);
+	PendingMeta end = new PendingMeta(PendingMeta.END, null, 0, null, null);
+	pendingMeta.offer(end);
+	PendingMeta meta;
+	while ((meta = (PendingMeta) pendingMeta.poll()) != end) {
+	    switch (meta.kind) {
+	    case PendingMeta.EVENT_TYPE:
+		while (!eventTypeChunk.add(meta.eventType)) {
+		    closeEventTypeChunk();
+		}
+		eventTypes.add(meta.eventType);
+		reportedFilterSettings.add(new long[] { 1,
+			Double.doubleToLongBits(0), 0 });
+		break;
+	    case PendingMeta.STRING:
+		while (!stringTableChunk.add(meta.id, meta.value)) {
+		    closeStringTableChunk();
+		}
+		break;
+	    case PendingMeta.PROPERTY:
+		while (!propertyTableChunk.add(meta.key, meta.value)) {
+		    closePropertyTableChunk();
+		}
+		break;
 	    }
-	    // The event chunk is reset when a feedlet acquires it.
-	    returnReadyEventChunk(ec);
 	}
     }
 
@@ -468,82 +1413,301 @@ public class Logger implements ILogger, IConversionLogger {
 	while (feedletIterator.hasNext()) {
 	    ((AbstractFeedlet) feedletIterator.next()).flush();
 	}
+	for (int i = 0; i < sharedFeedlets.size(); i++) {
+	    ((ConcurrentSharedFeedlet) sharedFeedlets.get(i)).flush();
+	}
+	if (stripedFeedlet != null) {
+	    stripedFeedlet.flush();
+	}
+    }
+
+    private void writeOldMetaChunks(WritableByteChannel channel)
+	    throws IOException {
+	writeChunks(channel, oldMetaChunks);
     }
 
-    private synchronized void writeOldMetaChunks(OutputStream outputStream)
+    private void writeChunks(ArrayList/* <RawChunk> */chunks)
 	    throws IOException {
-	ListIterator chunkIterator = oldMetaChunks.listIterator();
-	while (chunkIterator.hasNext()) {
-	    RawChunk chunk = (RawChunk) chunkIterator.next();
-	    chunk.write(outputStream);
+	if (server != null) {
+	    server.write(chunks);
+	} else {
+	    writeChunks(outputChannel, chunks);
 	}
     }
 
+    /*
+     * Write the chunks in order. A file channel receives them in a single
+     * gathering write; other channels get one write per chunk.
+     */
+    private void writeChunks(WritableByteChannel channel,
+	    ArrayList/* <RawChunk> */chunks) throws IOException {
+	if (channel == null || chunks.isEmpty()) {
+	    return;
+	}
+	ByteBuffer[] buffers = new ByteBuffer[chunks.size()];
+	long remaining = 0;
+	for (int i = 0; i < buffers.length; i++) {
+	    buffers[i] = ((RawChunk) chunks.get(i)).getByteBuffer();
+	    remaining += buffers[i].remaining();
+	}
+	if (channel instanceof GatheringByteChannel) {
+	    GatheringByteChannel gatheringChannel = (GatheringByteChannel) channel;
+	    while (remaining > 0) {
+		remaining -= gatheringChannel.write(buffers);
+	    }
+	} else {
+	    for (int i = 0; i < buffers.length; i++) {
+		while (buffers[i].hasRemaining()) {
+		    channel.write(buffers[i]);
+		}
+	    }
+	}
+    }
+
+    private void closePropertyTableChunk() {
+	// assert Thread.holdsLock(this);
+	if (propertyTableChunk.hasData()) {
+	    propertyTableChunk.close();
+	    closedMetaChunks.add(propertyTableChunk);
+	    propertyTableChunk = new PropertyTableChunk();
+	}
+    }
+
+    private void closeStringTableChunk() {
+	// assert Thread.holdsLock(this);
+	if (stringTableChunk.hasData()) {
+	    stringTableChunk.close();
+	    closedMetaChunks.add(stringTableChunk);
+	    stringTableChunk = new StringTableChunk();
+	}
+    }
+
+    private void closeEventTypeChunk() {
+	// assert Thread.holdsLock(this);
+	if (eventTypeChunk.hasData()) {
+	    eventTypeChunk.close();
+	    closedMetaChunks.add(eventTypeChunk);
+	    eventTypeChunk = new EventTypeChunk();
+	}
+    }
+
+    private void closeFeedletChunk() {
+	// assert Thread.holdsLock(this);
+	if (feedletChunk.hasData()) {
+	    feedletChunk.close();
+	    closedMetaChunks.add(feedletChunk);
+	    feedletChunk = new FeedletChunk();
+	}
+    }
+
+    /*
+     * Close all the non-empty meta-chunks and hand back every meta-chunk that
+     * has not been written yet. They are remembered in oldMetaChunks so that
+     * they can be replayed to a socket client that connects later.
+     */
+    private synchronized ArrayList/* <RawChunk> */takeClosedMetaChunks() {
+	addPendingMeta();
+	closePropertyTableChunk();
+	closeStringTableChunk();
+	closeEventTypeChunk();
+	closeFeedletChunk();
+	ArrayList/* <RawChunk> */result = new ArrayList/* <RawChunk> */(
+		closedMetaChunks);
+	oldMetaChunks.addAll(closedMetaChunks);
+	closedMetaChunks.clear();
+	return result;
+    }
+
+    /*
+     * Takes event chunks and, in conversion mode, the compressed containers
+     * that converter threads put in their place.
+     */
+    private ArrayList/* <RawChunk> */takeFullEventChunks() {
+	ArrayList/* <RawChunk> */result = new ArrayList/* <RawChunk> */();
+	long bytes = 0;
+	while (bytes < (long) MAX_EVENT_CHUNKS_PER_WRITE
+		* EventChunk.DEFAULT_EVENT_CHUNK_SIZE) {
+	    RawChunk chunk = (RawChunk) fullEventChunks.poll();
+	    if (chunk == null) {
+		break;
+	    }
+	    bytes += chunk.getCapacity();
+	    pendingFullChunks.decrementAndGet();
+	    if (chunk.isOpen()) {
+		chunk.close();
+	    }
+	    result.add(chunk);
+	}
+	return result;
+    }
+
     /*
      * (non-Javadoc)
      *
      * @see com.ibm.tuningfork.tracegen.ILogger#flush()
      */
-    public synchronized void flush() {
+    public void flush() {
 	flush(false);
     }
 
-    private synchronized void flush(boolean shutdown) {
-	try {
-	    OutputStream os = outputStream;
-	    // Grab all the non-empty meta-chunks
-	    if (propertyTableChunk.hasData()) {
-		propertyTableChunk.close();
-		closedMetaChunks.add(propertyTableChunk);
-		propertyTableChunk = new PropertyTableChunk();
-	    }
-	    if (stringTableChunk.hasData()) {
-		stringTableChunk.close();
-		closedMetaChunks.add(stringTableChunk);
-		stringTableChunk = new StringTableChunk();
-	    }
-	    if (eventTypeChunk.hasData()) {
-		eventTypeChunk.close();
-		closedMetaChunks.add(eventTypeChunk);
-		eventTypeChunk = new EventTypeChunk();
-	    }
-	    if (feedletChunk.hasData()) {
-		feedletChunk.close();
-		closedMetaChunks.add(feedletChunk);
-		feedletChunk = new FeedletChunk();
-	    }
-	    if (os != null) {
-		ListIterator chunkIterator = closedMetaChunks.listIterator();
-		while (chunkIterator.hasNext()) {
-		    RawChunk chunk = (RawChunk) chunkIterator.next();
-		    chunk.write(os);
+    /*
+     * Only the chunk hand-off happens under the Logger monitor; the write
+     * itself is serialized by writeLock. Threads registering event types,
+     * strings or properties only queue them, so they never wait for either.
+     */
+    private int flush(boolean shutdown) {
+	synchronized (writeLock) {
+	    ArrayList/* <RawChunk> */eventChunks = null;
+	    int written = 0;
+	    try {
+		if (!shutdown) {
+		    releaseEndedFeedlets();
+		    if (harvestEvents) {
+			harvestFeedlets();
+		    }
 		}
-	    }
-	    oldMetaChunks.addAll(closedMetaChunks);
-	    closedMetaChunks.removeAll(oldMetaChunks);
-	    if (shutdown) {
-		flushFeedlets(); // Actively grab partial event chunks only
-				    // on shutdown
-	    }
-	    writeEvents(os); // Note that this must come after the other
-				// blocks (particularly feedlet and event type
-	    if (shutdown) {
-		if (outputStream != null) {
-		    outputStream.close();
-		    outputStream = null;
+		if (shutdown) {
+		    flushFeedlets(); // Actively grab whole partial event
+					// chunks only on shutdown
+		    synchronized (compressors) {
+			ChunkCompressor.addStatistics(this, compressors);
+		    }
+		    addLatencyStatistics();
+		    addEventChunkStatistics();
 		}
-	    }
-	} catch (IOException e) {
-	    if (outputStream != null && portNumber != 0) {
-		outputStream = null;
-		return;
-	    } else {
+		do {
+		    // The event chunks must be taken before the queued meta-data
+		    // is drained and the meta-chunks closed: anything an event
+		    // refers to was queued before the event was added, so it is
+		    // then guaranteed to be written first.
+		    eventChunks = takeFullEventChunks();
+		    if (shutdown) {
+			// Only the final totals, so that the meta-data does
+			// not grow with the length of the trace
+			addLossProperties();
+		    }
+		    addFilterProperties(shutdown);
+		    if (server != null) {
+			// Before the meta-chunks written below are added to
+			// oldMetaChunks, so that none is sent twice
+			server.admitSubscribers(oldMetaChunks);
+		    }
+		    ArrayList/* <RawChunk> */chunks = takeClosedMetaChunks();
+		    chunks.addAll(eventChunks);
+		    if (ringFile != null) {
+			ArrayList/* <EventChunk> */unwritten = ringFile
+				.write(chunks);
+			for (int i = 0; i < unwritten.size(); i++) {
+			    EventChunk ec = (EventChunk) unwritten.get(i);
+			    recordLoss(ec.getFeedletIndex(), 1, ec
+				    .getNumberOfEvents());
+			}
+		    } else if (compressor != null
+			    && (server == null || server.hasSubscribers())) {
+			// A server with no subscribers drops the chunks anyway
+			compressor.compress(chunks);
+			writeChunks(chunks);
+			compressor.recycle();
+		    } else {
+			writeChunks(chunks);
+		    }
+		    if (ringFile != null || outputChannel != null
+			    || server != null) {
+			recordOutputLatency(eventChunks);
+		    }
+		    written += chunks.size();
+		    recycleEventChunks(eventChunks);
+		    eventChunks = null;
+		} while (!fullEventChunks.isEmpty());
+		if (shutdown) {
+		    if (outputChannel != null) {
+			outputChannel.close();
+			outputChannel = null;
+		    }
+		    if (ringFile != null) {
+			ringFile.close();
+			ringFile = null;
+		    }
+		    if (server != null) {
+			server.close();
+			server = null;
+		    }
+		    synchronized (compressors) {
+			for (int i = 0; i < compressors.size(); i++) {
+			    ((ChunkCompressor) compressors.get(i)).end();
+			}
+			compressorsEnded = true;
+		    }
+		    compressor = null;
+		}
+	    } catch (Exception e) {
 		System.out.println("Exception in Logger.flush: " + e.getClass()
 			+ " " + e.getMessage());
+	    } finally {
+		if (eventChunks != null) {
+		    recycleEventChunks(eventChunks);
+		}
+	    }
+	    return written;
+	}
+    }
+
+    private void recordOutputLatency(ArrayList/* <RawChunk> */eventChunks) {
+	long now = System.nanoTime();
+	for (int i = 0; i < eventChunks.size(); i++) {
+	    long latency = now - ((RawChunk) eventChunks.get(i)).getReadyTime();
+	    totalOutputLatency += latency;
+	    maxOutputLatency = Math.max(maxOutputLatency, latency);
+	}
+	chunksOutput += eventChunks.size();
+    }
+
+    private void addLatencyStatistics() {
+	if (chunksOutput == 0) {
+	    return;
+	}
+	addProperty("Event Chunks Output", "" + chunksOutput);
+	addProperty("Mean Event Chunk Output Latency ns", ""
+		+ (totalOutputLatency / chunksOutput));
+	addProperty("Max Event Chunk Output Latency ns", ""
+		+ maxOutputLatency);
+    }
+
+    /*
+     * Record how well the event chunks were filled, and how many of each size
+     * were made, so that the chunk sizes chosen can be judged.
+     */
+    private void addEventChunkStatistics() {
+	long capacity = capacityHandedOver.get();
+	if (capacity == 0) {
+	    return;
+	}
+	addProperty("Mean Event Chunk Fill Ratio", ""
+		+ ((double) bytesHandedOver.get() / capacity));
+	for (int i = 0; i < NUMBER_OF_SIZE_CLASSES; i++) {
+	    int made = eventChunksMade.get(i);
+	    if (made != 0) {
+		addProperty("Event Chunks Made " + (sizeOfClass(i) / 1024)
+			+ "KB", "" + made);
+	    }
+	}
+	addProperty("Event Chunk Bytes", "" + eventChunkBytes.get());
+	if (harvestEvents) {
+	    addProperty("Event Chunks Harvested", "" + harvestedChunks);
+	}
+    }
+
+    private void recycleEventChunks(ArrayList/* <RawChunk> */eventChunks) {
+	// The event chunk is reset when a feedlet acquires it, a container when
+	// a converter thread next compresses into it.
+	for (int i = 0; i < eventChunks.size(); i++) {
+	    Object chunk = eventChunks.get(i);
+	    if (chunk instanceof CompressedChunk) {
+		readyContainers.offer(chunk);
+		notifyChunkWaiters();
+	    } else {
+		returnReadyEventChunk((EventChunk) chunk);
 	    }
-	} catch (Exception e) {
-	    System.out.println("Exception in Logger.flush: " + e.getClass()
-		    + " " + e.getMessage());
 	}
     }
 
@@ -0,0 +1,40 @@
+/*
+ * This file is part of the Tuning Fork Visualization Platform
+ *  (http://sourceforge.net/projects/tuningforkvp)
+ *
+ * Copyright (c) 2005 - 2008 IBM Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ */
+
+package com.ibm.tuningfork.tracegen.impl;
+
+import com.ibm.tuningfork.tracegen.ITimeSource;
+
+/**
+ * The default time source, System.nanoTime().
+ */
+public final class NanoTimeSource implements ITimeSource {
+
+    public static final NanoTimeSource INSTANCE = new NanoTimeSource();
+
+    private NanoTimeSource() {
+    }
+
+    public long getTime() {
+	return System.nanoTime();
+    }
+
+    public long getTickFrequency() {
+	return Feedlet.TICK_FREQUENCY;
+    }
+
+    public String getName() {
+	return "System.nanoTime";
+    }
+}
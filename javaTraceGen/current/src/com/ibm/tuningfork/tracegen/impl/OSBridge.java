@@ -22,6 +22,8 @@ public class OSBridge {
 
     public static final int NO_PID = -1;
 
+    public static final int NO_CPU = -1;
+
     public static final String TF_SUPPORT_LIBRARY = "TuningForkNativeTraceSupport";
 
     /**
@@ -78,9 +80,49 @@ public class OSBridge {
 	}
     }
 
+    /* package */static int getCurrentProcessor() {
+	if (nativesAreAvailable) {
+	    int cpu = getCurrentProcessorViaNative();
+	    return cpu >= 0 ? cpu : NO_CPU;
+	} else {
+	    return NO_CPU;
+	}
+    }
+
+    /*
+     * The processor's cycle counter, or 0 if it can not be read. The counter
+     * is only a usable clock where it ticks at a constant rate and is kept in
+     * step across processors.
+     */
+    /* package */static long readCycleCounter() {
+	if (nativesAreAvailable) {
+	    return readCycleCounterViaNative();
+	} else {
+	    return 0;
+	}
+    }
+
+    /*
+     * A monotonic time in nanoseconds that is only updated every few
+     * milliseconds, or -1 if the operating system has no such clock.
+     */
+    /* package */static long getCoarseTime() {
+	if (nativesAreAvailable) {
+	    return getCoarseTimeViaNative();
+	} else {
+	    return -1;
+	}
+    }
+
     private native static int getThreadIdViaNative();
 
     private native static int getProcessIdViaNative();
 
     private native static int setProcessorAffinityViaNative(int cpu);
+
+    private native static int getCurrentProcessorViaNative();
+
+    private native static long readCycleCounterViaNative();
+
+    private native static long getCoarseTimeViaNative();
 }
@@ -0,0 +1,190 @@
+/*
+ * This file is part of the Tuning Fork Visualization Platform
+ *  (http://sourceforge.net/projects/tuningforkvp)
+ *
+ * Copyright (c) 2005 - 2008 IBM Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ */
+
+package com.ibm.tuningfork.tracegen.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+import com.ibm.tuningfork.tracegen.chunk.EventChunk;
+import com.ibm.tuningfork.tracegen.chunk.PaddingChunk;
+import com.ibm.tuningfork.tracegen.chunk.RawChunk;
+
+/*
+ * A memory-mapped trace file of fixed capacity for always-on tracing.
+ *
+ * The file is split into a header region and a ring of event chunk slots.
+ * The feed header and all meta-chunks are appended to the header region and
+ * stay there, while each event chunk overwrites the oldest slot of the ring.
+ * Unused space in the header region and in every slot is covered by a
+ * padding chunk, so the file is a well-formed feed at all times and can be
+ * copied away whenever a dump of the recent past is wanted.
+ *
+ * Chunks are copied straight from their buffers into the mapping. The first
+ * 16 bytes of a chunk (its magic words, length and type) are copied last, so
+ * if the process dies half way through a copy the region still reads as
+ * padding. Note that slots are reused in ring order, so event chunks in the
+ * file are only ordered by their feedlet sequence numbers, not by position.
+ *
+ * Every meta-chunk must be kept, since any event may refer to it. When the
+ * header region fills up it takes over the ring slot that follows it, so
+ * the ring loses a slot of history instead. Once only two slots are left,
+ * meta-chunks and the event chunks that follow them can no longer be
+ * written, and the event chunks are returned to the logger to be counted as
+ * lost, so that the file stays readable.
+ *
+ * All methods are called with the Logger's writeLock held.
+ */
+final class RingFile {
+
+    private static final int MIN_HEADER_SIZE = 256 * 1024;
+    private static final int HEADER_FRACTION = 8;
+    private static final int SLOT_SIZE = EventChunk.DEFAULT_EVENT_CHUNK_SIZE
+	    + PaddingChunk.HEADER_SIZE;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final int headerCapacity;
+    private final int slotCount;
+    private int headerEnd = 0;
+    // The slots before firstSlot have been taken over by the header region
+    private int firstSlot = 0;
+    private int nextSlot = 0;
+    private boolean headerFull = false;
+
+    RingFile(File file, long capacity) throws IOException {
+	if (capacity > Integer.MAX_VALUE) {
+	    throw new IllegalArgumentException(
+		    "Ring file capacity must not exceed " + Integer.MAX_VALUE
+			    + " bytes");
+	}
+	headerCapacity = Math.max(MIN_HEADER_SIZE,
+		(int) (capacity / HEADER_FRACTION));
+	slotCount = (int) ((capacity - headerCapacity) / SLOT_SIZE);
+	if (slotCount < 2) {
+	    throw new IllegalArgumentException("Ring file capacity of "
+		    + capacity + " bytes is too small");
+	}
+	int size = headerCapacity + slotCount * SLOT_SIZE;
+	this.file = new RandomAccessFile(file, "rw");
+	this.file.setLength(size);
+	buffer = this.file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+		size);
+	PaddingChunk.putHeader(buffer, 0, headerCapacity);
+	for (int i = 0; i < slotCount; i++) {
+	    PaddingChunk.putHeader(buffer, slotPosition(i), SLOT_SIZE);
+	}
+    }
+
+    private int slotPosition(int slot) {
+	return headerCapacity + slot * SLOT_SIZE;
+    }
+
+    /*
+     * Write the chunks in order. Returns the event chunks that could not be
+     * written because meta-data they may refer to was not.
+     */
+    public ArrayList/* <EventChunk> */write(ArrayList/* <RawChunk> */chunks) {
+	ArrayList/* <EventChunk> */unwritten = new ArrayList/* <EventChunk> */();
+	for (int i = 0; i < chunks.size(); i++) {
+	    RawChunk chunk = (RawChunk) chunks.get(i);
+	    if (chunk instanceof EventChunk) {
+		if (headerFull) {
+		    unwritten.add(chunk);
+		} else {
+		    writeEventChunk(chunk);
+		}
+	    } else {
+		writeMetaChunk(chunk);
+	    }
+	}
+	return unwritten;
+    }
+
+    /* The end of the header region, which is where the ring starts */
+    private int headerLimit() {
+	return slotPosition(firstSlot);
+    }
+
+    private void writeMetaChunk(RawChunk chunk) {
+	if (headerFull) {
+	    return;
+	}
+	ByteBuffer data = chunk.getByteBuffer();
+	int length = data.remaining();
+	int remaining = headerLimit() - headerEnd - length;
+	while (remaining != 0 && remaining < PaddingChunk.HEADER_SIZE) {
+	    if (slotCount - firstSlot <= 2) {
+		System.out.println("RingFile: header region is full, "
+			+ "no more events are written");
+		headerFull = true;
+		return;
+	    }
+	    // The slot's event chunk is overwritten by the padding below
+	    firstSlot++;
+	    if (nextSlot < firstSlot) {
+		nextSlot = firstSlot;
+	    }
+	    remaining += SLOT_SIZE;
+	}
+	put(data, headerEnd, remaining);
+	headerEnd += length;
+    }
+
+    private void writeEventChunk(RawChunk chunk) {
+	ByteBuffer data = chunk.getByteBuffer();
+	int length = data.remaining();
+	if (length > SLOT_SIZE - PaddingChunk.HEADER_SIZE) {
+	    System.out.println("RingFile: event chunk of " + length
+		    + " bytes does not fit in a slot");
+	    return;
+	}
+	put(data, slotPosition(nextSlot), SLOT_SIZE - length);
+	nextSlot++;
+	if (nextSlot == slotCount) {
+	    nextSlot = firstSlot;
+	}
+    }
+
+    /*
+     * Copy data to position, followed by a padding chunk of paddingLength
+     * bytes. The region is first turned into a single padding chunk and the
+     * chunk header is stored last, length before type, so that the region
+     * never reads as a partially written chunk.
+     */
+    private void put(ByteBuffer data, int position, int paddingLength) {
+	// assert data.remaining() >= PaddingChunk.HEADER_SIZE;
+	int length = data.remaining();
+	PaddingChunk.putHeader(buffer, position, length + paddingLength);
+	data.position(PaddingChunk.HEADER_SIZE);
+	buffer.position(position + PaddingChunk.HEADER_SIZE);
+	buffer.put(data);
+	if (paddingLength > 0) {
+	    PaddingChunk.putHeader(buffer, position + length, paddingLength);
+	}
+	for (int i = 0; i < PaddingChunk.HEADER_SIZE; i += RawChunk.ENCODING_SPACE_INT) {
+	    buffer.putInt(position + i, data.getInt(i));
+	}
+    }
+
+    public void close() throws IOException {
+	buffer.force();
+	file.close();
+    }
+}
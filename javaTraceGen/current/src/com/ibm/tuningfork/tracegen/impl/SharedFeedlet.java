@@ -15,6 +15,7 @@
 package com.ibm.tuningfork.tracegen.impl;
 
 import com.ibm.tuningfork.tracegen.IFeedlet;
+import com.ibm.tuningfork.tracegen.types.EventRecord;
 import com.ibm.tuningfork.tracegen.types.EventType;
 
 
@@ -71,10 +72,14 @@ public class SharedFeedlet implements IFeedlet {
 	feedlet.addEvent(et, idata, ldata, ddata, sdata);
     }
 
+    public synchronized void addEvent(EventRecord record) {
+	feedlet.addEvent(record);
+    }
+
     public void bindToCurrentThread() {
-	// Note: should not really be used for shared feedlets. Is it more
-	// robust to ignore or to throw an exception??
-	feedlet.bindToCurrentThread();
+	// Bind the shared feedlet itself, so that bound writers still take
+	// turns, and without an owner, since no one thread's end retires it
+	Logger.threadLocalFeedlets.add(this);
     }
 
     public boolean isManual() {
@@ -0,0 +1,464 @@
+/*
+ * This file is part of the Tuning Fork Visualization Platform
+ *  (http://sourceforge.net/projects/tuningforkvp)
+ *
+ * Copyright (c) 2005 - 2008 IBM Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ */
+
+package com.ibm.tuningfork.tracegen.impl;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import com.ibm.tuningfork.tracegen.chunk.CompressedChunk;
+import com.ibm.tuningfork.tracegen.chunk.EventChunk;
+import com.ibm.tuningfork.tracegen.chunk.RawChunk;
+
+/*
+ * Serves the trace live to any number of subscribers over non-blocking
+ * sockets.
+ *
+ * The thread writing the trace hands each batch of chunks to write(), which
+ * only queues them; a single selector thread (see run) accepts connections
+ * and sends each subscriber its queue as fast as that subscriber reads it.
+ * A subscriber that connects late is sent every meta-chunk written so far
+ * before anything else, so it starts with a well-formed feed.
+ *
+ * Each queue is bounded in bytes. When a subscriber falls behind, event
+ * chunks that do not fit its queue are dropped for it alone; the feed stays
+ * well-formed as every chunk stands on its own, and the gaps show in the
+ * feedlet sequence numbers. Meta-chunks cannot be dropped, so a subscriber
+ * that falls so far behind that they do not fit either is disconnected.
+ *
+ * Event chunks and compressed containers are reused once written, so the
+ * bytes of each are copied once into a buffer shared by the subscribers.
+ * Meta-chunks are kept for late subscribers anyway and are not copied.
+ *
+ * admitSubscribers, write and close are called with the Logger's writeLock
+ * held.
+ */
+final class SocketServer {
+
+    // How long close waits for the subscribers to read what is queued
+    private static final int CLOSE_TIMEOUT_MS = 2000;
+
+    /* A chunk queued for a subscriber */
+    private static final class Entry {
+	final ByteBuffer data;
+	final boolean droppable;
+
+	Entry(ByteBuffer data, boolean droppable) {
+	    this.data = data;
+	    this.droppable = droppable;
+	}
+    }
+
+    private static final class Subscriber {
+	final SocketChannel channel;
+	SelectionKey key;
+	// The queue and its size are shared with the writing thread and
+	// guarded by the subscriber
+	final LinkedList/* <Entry> */queue = new LinkedList/* <Entry> */();
+	int queuedBytes = 0;
+	boolean overflowed = false;
+	long chunksSent = 0;
+	long chunksDropped = 0;
+
+	Subscriber(SocketChannel channel) {
+	    this.channel = channel;
+	}
+    }
+
+    private final Logger logger;
+    private final int queueLimit;
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+
+    // Subscribers are accepted by the selector thread and admitted by the
+    // writing thread; guarded by this
+    private final ArrayList/* <Subscriber> */pending = new ArrayList/* <Subscriber> */();
+    private final ArrayList/* <Subscriber> */subscribers = new ArrayList/* <Subscriber> */();
+    private volatile boolean closing = false;
+    private boolean stopped = false;
+    private final ByteBuffer scratch = ByteBuffer.allocate(256);
+
+    SocketServer(Logger logger, int port, int queueLimit) throws IOException {
+	this.logger = logger;
+	this.queueLimit = queueLimit;
+	selector = Selector.open();
+	serverChannel = ServerSocketChannel.open();
+	serverChannel.socket().setReuseAddress(true);
+	serverChannel.socket().bind(new InetSocketAddress(port));
+	serverChannel.configureBlocking(false);
+	serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /*
+     * Start sending to the subscribers that connected since the last write,
+     * beginning with the meta-chunks written so far.
+     */
+    void admitSubscribers(ArrayList/* <RawChunk> */metaChunks) {
+	Subscriber[] joining;
+	synchronized (this) {
+	    if (pending.isEmpty()) {
+		return;
+	    }
+	    joining = (Subscriber[]) pending.toArray(new Subscriber[pending
+		    .size()]);
+	    pending.clear();
+	}
+	for (int i = 0; i < joining.length; i++) {
+	    for (int j = 0; j < metaChunks.size(); j++) {
+		enqueue(joining[i], ((RawChunk) metaChunks.get(j))
+			.getByteBuffer(), false);
+	    }
+	}
+	synchronized (this) {
+	    for (int i = 0; i < joining.length; i++) {
+		subscribers.add(joining[i]);
+	    }
+	}
+	selector.wakeup();
+    }
+
+    /* Whether any subscriber has been admitted and is still connected */
+    synchronized boolean hasSubscribers() {
+	return !subscribers.isEmpty();
+    }
+
+    /* Queue the chunks for every subscriber */
+    void write(ArrayList/* <RawChunk> */chunks) {
+	Subscriber[] current;
+	synchronized (this) {
+	    if (subscribers.isEmpty()) {
+		return;
+	    }
+	    current = (Subscriber[]) subscribers
+		    .toArray(new Subscriber[subscribers.size()]);
+	}
+	for (int i = 0; i < chunks.size(); i++) {
+	    RawChunk chunk = (RawChunk) chunks.get(i);
+	    boolean reused = chunk instanceof EventChunk
+		    || chunk instanceof CompressedChunk;
+	    ByteBuffer data = chunk.getByteBuffer();
+	    if (reused) {
+		ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+		copy.put(data);
+		copy.flip();
+		data = copy;
+	    }
+	    for (int j = 0; j < current.length; j++) {
+		enqueue(current[j], data.duplicate(), reused);
+	    }
+	}
+	selector.wakeup();
+    }
+
+    private void enqueue(Subscriber subscriber, ByteBuffer data,
+	    boolean droppable) {
+	synchronized (subscriber) {
+	    if (subscriber.overflowed) {
+		return;
+	    }
+	    int size = data.remaining();
+	    if (droppable && subscriber.queuedBytes + size > queueLimit) {
+		subscriber.chunksDropped++;
+		return;
+	    }
+	    if (subscriber.queuedBytes + size > 2 * queueLimit) {
+		// Leave the selector thread to disconnect it
+		subscriber.overflowed = true;
+		return;
+	    }
+	    subscriber.queue.addLast(new Entry(data, droppable));
+	    subscriber.queuedBytes += size;
+	}
+    }
+
+    /*
+     * Wait until every subscriber has been sent what is queued for it, and
+     * then disconnect them all. Event chunks that have not been sent within
+     * CLOSE_TIMEOUT_MS are dropped, so that slow subscribers still receive a
+     * well-formed feed if they take what remains within another
+     * CLOSE_TIMEOUT_MS.
+     */
+    void close() {
+	closing = true;
+	selector.wakeup();
+	long deadline = System.currentTimeMillis() + 3 * CLOSE_TIMEOUT_MS;
+	synchronized (this) {
+	    while (!stopped) {
+		long left = deadline - System.currentTimeMillis();
+		if (left <= 0) {
+		    logger.socketDebugMsg("Server did not stop in time");
+		    return;
+		}
+		try {
+		    wait(left);
+		} catch (InterruptedException ie) {
+		}
+	    }
+	}
+    }
+
+    /* The selector loop, run by the server thread */
+    void run() {
+	long deadline = 0;
+	boolean pruned = false;
+	try {
+	    while (true) {
+		if (closing && deadline == 0) {
+		    deadline = System.currentTimeMillis() + CLOSE_TIMEOUT_MS;
+		}
+		if (deadline != 0) {
+		    if (allSent()) {
+			break;
+		    }
+		    if (System.currentTimeMillis() >= deadline) {
+			if (pruned) {
+			    break;
+			}
+			pruneEventChunks();
+			pruned = true;
+			deadline = System.currentTimeMillis() + CLOSE_TIMEOUT_MS;
+			updateInterest();
+			continue;
+		    }
+		    selector.select(Math.max(1, deadline
+			    - System.currentTimeMillis()));
+		} else {
+		    selector.select();
+		}
+		Iterator keys = selector.selectedKeys().iterator();
+		while (keys.hasNext()) {
+		    SelectionKey key = (SelectionKey) keys.next();
+		    keys.remove();
+		    if (!key.isValid()) {
+			continue;
+		    }
+		    if (key.isAcceptable()) {
+			accept();
+			continue;
+		    }
+		    Subscriber subscriber = (Subscriber) key.attachment();
+		    if (key.isReadable()) {
+			receive(subscriber);
+		    }
+		    if (key.isValid() && key.isWritable()) {
+			send(subscriber);
+		    }
+		}
+		updateInterest();
+	    }
+	} catch (IOException e) {
+	    logger.socketDebugMsg("Server stopped: " + e.getMessage());
+	} finally {
+	    stop();
+	}
+    }
+
+    private void accept() {
+	SocketChannel channel = null;
+	try {
+	    channel = serverChannel.accept();
+	    if (channel == null) {
+		return;
+	    }
+	    if (closing) {
+		channel.close();
+		return;
+	    }
+	    logger.socketDebugMsg("Accepted connection to " + channel.socket());
+	    channel.configureBlocking(false);
+	    channel.socket().setTcpNoDelay(true);
+	    Subscriber subscriber = new Subscriber(channel);
+	    subscriber.key = channel.register(selector, SelectionKey.OP_READ,
+		    subscriber);
+	    synchronized (this) {
+		pending.add(subscriber);
+	    }
+	    logger.wakeEmitter();
+	} catch (IOException e) {
+	    logger.socketDebugMsg("Problem establishing socket communication: "
+		    + e.getMessage());
+	    if (channel != null) {
+		try {
+		    channel.close();
+		} catch (IOException ce) {
+		}
+	    }
+	}
+    }
+
+    /*
+     * Subscribers have nothing to say, so reading only serves to notice that
+     * they have gone away.
+     */
+    private void receive(Subscriber subscriber) {
+	try {
+	    scratch.clear();
+	    if (subscriber.channel.read(scratch) < 0) {
+		disconnect(subscriber, "closed by subscriber");
+	    }
+	} catch (IOException e) {
+	    disconnect(subscriber, e.getMessage());
+	}
+    }
+
+    /* Send as much of the queue as the socket takes without blocking */
+    private void send(Subscriber subscriber) {
+	try {
+	    while (true) {
+		ByteBuffer head;
+		synchronized (subscriber) {
+		    if (subscriber.queue.isEmpty()) {
+			return;
+		    }
+		    head = ((Entry) subscriber.queue.getFirst()).data;
+		}
+		subscriber.channel.write(head);
+		if (head.hasRemaining()) {
+		    return;
+		}
+		synchronized (subscriber) {
+		    subscriber.queue.removeFirst();
+		    subscriber.queuedBytes -= head.limit();
+		    subscriber.chunksSent++;
+		}
+	    }
+	} catch (IOException e) {
+	    disconnect(subscriber, e.getMessage());
+	}
+    }
+
+    /*
+     * Ask to be told when a subscriber with something queued can be sent
+     * more, and disconnect those that have fallen too far behind.
+     */
+    private void updateInterest() {
+	Subscriber[] current;
+	synchronized (this) {
+	    current = (Subscriber[]) subscribers
+		    .toArray(new Subscriber[subscribers.size()]);
+	}
+	for (int i = 0; i < current.length; i++) {
+	    Subscriber subscriber = current[i];
+	    boolean overflowed;
+	    boolean hasData;
+	    synchronized (subscriber) {
+		overflowed = subscriber.overflowed;
+		hasData = !subscriber.queue.isEmpty();
+	    }
+	    if (overflowed) {
+		disconnect(subscriber, "too far behind");
+		continue;
+	    }
+	    try {
+		subscriber.key.interestOps(SelectionKey.OP_READ
+			| (hasData ? SelectionKey.OP_WRITE : 0));
+	    } catch (RuntimeException e) {
+		// The key was cancelled
+		disconnect(subscriber, "connection closed");
+	    }
+	}
+    }
+
+    /*
+     * Drop the queued event chunks that have not started to be sent.
+     */
+    private void pruneEventChunks() {
+	Subscriber[] current;
+	synchronized (this) {
+	    current = (Subscriber[]) subscribers
+		    .toArray(new Subscriber[subscribers.size()]);
+	}
+	for (int i = 0; i < current.length; i++) {
+	    Subscriber subscriber = current[i];
+	    synchronized (subscriber) {
+		Iterator entries = subscriber.queue.iterator();
+		while (entries.hasNext()) {
+		    Entry entry = (Entry) entries.next();
+		    if (entry.droppable && entry.data.position() == 0) {
+			entries.remove();
+			subscriber.queuedBytes -= entry.data.limit();
+			subscriber.chunksDropped++;
+		    }
+		}
+	    }
+	}
+    }
+
+    private boolean allSent() {
+	synchronized (this) {
+	    for (int i = 0; i < subscribers.size(); i++) {
+		Subscriber subscriber = (Subscriber) subscribers.get(i);
+		synchronized (subscriber) {
+		    if (!subscriber.queue.isEmpty() && !subscriber.overflowed) {
+			return false;
+		    }
+		}
+	    }
+	}
+	return true;
+    }
+
+    private void disconnect(Subscriber subscriber, String reason) {
+	if (!subscriber.channel.isOpen()) {
+	    return;
+	}
+	synchronized (this) {
+	    if (!subscribers.remove(subscriber)) {
+		pending.remove(subscriber);
+	    }
+	}
+	synchronized (subscriber) {
+	    subscriber.queue.clear();
+	    subscriber.queuedBytes = 0;
+	}
+	logger.socketDebugMsg("Disconnected " + subscriber.channel.socket()
+		+ " (" + reason + ") after sending " + subscriber.chunksSent
+		+ " chunks and dropping " + subscriber.chunksDropped);
+	subscriber.key.cancel();
+	try {
+	    subscriber.channel.close();
+	} catch (IOException e) {
+	}
+    }
+
+    private void stop() {
+	Subscriber[] current;
+	synchronized (this) {
+	    subscribers.addAll(pending);
+	    pending.clear();
+	    current = (Subscriber[]) subscribers
+		    .toArray(new Subscriber[subscribers.size()]);
+	}
+	for (int i = 0; i < current.length; i++) {
+	    disconnect(current[i], "trace closed");
+	}
+	try {
+	    serverChannel.close();
+	    selector.close();
+	} catch (IOException e) {
+	}
+	synchronized (this) {
+	    stopped = true;
+	    notifyAll();
+	}
+    }
+}
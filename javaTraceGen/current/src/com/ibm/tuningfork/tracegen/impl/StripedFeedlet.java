@@ -0,0 +1,328 @@
+/*
+ * This file is part of the Tuning Fork Visualization Platform
+ *  (http://sourceforge.net/projects/tuningforkvp)
+ *
+ * Copyright (c) 2005 - 2008 IBM Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ */
+
+package com.ibm.tuningfork.tracegen.impl;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.ibm.tuningfork.tracegen.IFeedlet;
+import com.ibm.tuningfork.tracegen.types.EventAttribute;
+import com.ibm.tuningfork.tracegen.types.EventRecord;
+import com.ibm.tuningfork.tracegen.types.EventType;
+import com.ibm.tuningfork.tracegen.types.ScalarType;
+
+/**
+ * A feedlet that spreads the threads writing to it over a fixed set of
+ * underlying feedlets, one per processor.
+ *
+ * This suits programs with very many threads, such as virtual threads, where a
+ * feedlet per thread would need an unbounded number of feedlets and event
+ * chunks. A writer claims a stripe, starting from one chosen by its thread id
+ * and probing the following stripes if that one is busy, adds its event and
+ * releases the stripe. A writer never waits for an event chunk while it holds
+ * a stripe, even under the BLOCK overflow policy, so a stripe is only ever
+ * busy for the duration of one event. Otherwise the logger, which claims
+ * every stripe to flush it on shut down, could wait for a writer that waits
+ * for the logger to write a chunk.
+ *
+ * A per-processor striped feedlet starts from the stripe of the processor
+ * the writer is running on instead, as reported by the operating system, so
+ * that the threads of each processor share a chunk that stays in its cache.
+ * A thread may move to another processor at any time, which only costs
+ * locality since stripes are claimed all the same. Without the native
+ * support library the thread id is used.
+ *
+ * Whenever a stripe is written by a different thread than the one that wrote
+ * it last, or starts a new chunk, a thread switch event carrying the thread's
+ * id is added first, so that every event can still be attributed to the
+ * thread that caused it. In manual clock mode each thread keeps its own time,
+ * which the stripe takes on while the thread holds it.
+ */
+final class StripedFeedlet implements IFeedlet {
+
+    private static final String THREAD_SWITCH_NAME = "Thread Switch";
+    private static final long NO_THREAD = -1;
+
+    /* Thread.isVirtual, where the platform has it */
+    private static final Method IS_VIRTUAL;
+
+    static {
+	Method isVirtual = null;
+	try {
+	    isVirtual = Thread.class.getMethod("isVirtual", new Class[0]);
+	} catch (Exception e) {
+	    // Threads are never virtual on this platform
+	}
+	IS_VIRTUAL = isVirtual;
+    }
+
+    /* Whether the current thread is virtual, looked up once per thread */
+    private static final ThreadLocal/* <Boolean> */currentIsVirtual = new ThreadLocal/* <Boolean> */();
+
+    private static final class Stripe {
+	final Feedlet feedlet;
+	final AtomicBoolean claimed = new AtomicBoolean(false);
+	long lastThreadId = NO_THREAD; // guarded by claimed
+
+	Stripe(Feedlet feedlet) {
+	    this.feedlet = feedlet;
+	}
+    }
+
+    private final Logger logger;
+    private final Stripe[] stripes;
+    private final boolean byProcessor;
+    private final EventType threadSwitchET;
+    /* The time each thread last set in manual clock mode, as a long[1] */
+    private final ThreadLocal/* <long[]> */timeStamps = new ThreadLocal/* <long[]> */();
+
+    StripedFeedlet(Logger logger, Feedlet[] feedlets, boolean byProcessor) {
+	this.logger = logger;
+	this.byProcessor = byProcessor;
+	stripes = new Stripe[feedlets.length];
+	for (int i = 0; i < feedlets.length; i++) {
+	    stripes[i] = new Stripe(feedlets[i]);
+	    // Events are filtered before a stripe is claimed for them, so that
+	    // a turned away event costs no thread switch event.
+	    feedlets[i].applyFilters = false;
+	    feedlets[i].mayBlock = false;
+	}
+	EventAttribute attribute = new EventAttribute("Thread Id",
+		"The id of the thread that wrote the events that follow",
+		ScalarType.LONG);
+	threadSwitchET = new EventType(THREAD_SWITCH_NAME,
+		"The events that follow were written by another thread",
+		attribute);
+	logger.addEventType(threadSwitchET);
+    }
+
+    /*
+     * Whether the current thread is virtual. The reflective call is made only
+     * the first time a thread asks.
+     */
+    static boolean isCurrentThreadVirtual() {
+	if (IS_VIRTUAL == null) {
+	    return false;
+	}
+	Boolean virtual = (Boolean) currentIsVirtual.get();
+	if (virtual == null) {
+	    try {
+		virtual = (Boolean) IS_VIRTUAL.invoke(Thread.currentThread(),
+			new Object[0]);
+	    } catch (Exception e) {
+		virtual = Boolean.FALSE;
+	    }
+	    currentIsVirtual.set(virtual);
+	}
+	return virtual.booleanValue();
+    }
+
+    /*
+     * Claim a stripe for the current thread, recording a thread switch if
+     * another thread wrote to it last. The caller must release it.
+     */
+    private Stripe claim() {
+	long tid = Thread.currentThread().getId();
+	int n = stripes.length;
+	int start = -1;
+	if (byProcessor) {
+	    int cpu = OSBridge.getCurrentProcessor();
+	    if (cpu != OSBridge.NO_CPU) {
+		start = cpu % n;
+	    }
+	}
+	if (start < 0) {
+	    start = (int) ((tid & 0x7fffffffffffffffL) % n);
+	}
+	while (true) {
+	    for (int i = 0; i < n; i++) {
+		Stripe stripe = stripes[(start + i) % n];
+		if (stripe.claimed.compareAndSet(false, true)) {
+		    if (logger.feedletMode == Logger.MANUAL_CLOCK_MODE) {
+			// The stripe's feedlet is shared, so it takes the time
+			// the claiming thread set, not the one set last.
+			long[] timeStamp = (long[]) timeStamps.get();
+			stripe.feedlet.setTime(timeStamp == null ? 0
+				: timeStamp[0]);
+		    }
+		    if (stripe.lastThreadId != tid) {
+			stripe.feedlet.setLeadingEvent(threadSwitchET, tid);
+			stripe.feedlet.addEvent(threadSwitchET, tid);
+			stripe.lastThreadId = tid;
+		    }
+		    return stripe;
+		}
+	    }
+	    Thread.yield();
+	}
+    }
+
+    private static void release(Stripe stripe) {
+	stripe.claimed.set(false);
+    }
+
+    public void addEvent(EventType et) {
+	if (logger.feedletMode == Logger.NULL_MODE
+		|| !AbstractFeedlet.admits(et)) {
+	    return;
+	}
+	Stripe stripe = claim();
+	try {
+	    stripe.feedlet.addEvent(et);
+	} finally {
+	    release(stripe);
+	}
+    }
+
+    public void addEvent(EventType et, int v) {
+	if (logger.feedletMode == Logger.NULL_MODE
+		|| !AbstractFeedlet.admits(et)) {
+	    return;
+	}
+	Stripe stripe = claim();
+	try {
+	    stripe.feedlet.addEvent(et, v);
+	} finally {
+	    release(stripe);
+	}
+    }
+
+    public void addEvent(EventType et, long v) {
+	if (logger.feedletMode == Logger.NULL_MODE
+		|| !AbstractFeedlet.admits(et)) {
+	    return;
+	}
+	Stripe stripe = claim();
+	try {
+	    stripe.feedlet.addEvent(et, v);
+	} finally {
+	    release(stripe);
+	}
+    }
+
+    public void addEvent(EventType et, double v) {
+	if (logger.feedletMode == Logger.NULL_MODE
+		|| !AbstractFeedlet.admits(et)) {
+	    return;
+	}
+	Stripe stripe = claim();
+	try {
+	    stripe.feedlet.addEvent(et, v);
+	} finally {
+	    release(stripe);
+	}
+    }
+
+    public void addEvent(EventType et, String v) {
+	if (logger.feedletMode == Logger.NULL_MODE
+		|| !AbstractFeedlet.admits(et)) {
+	    return;
+	}
+	Stripe stripe = claim();
+	try {
+	    stripe.feedlet.addEvent(et, v);
+	} finally {
+	    release(stripe);
+	}
+    }
+
+    public void addEvent(EventType et, int[] idata, long[] ldata,
+	    double[] ddata, String[] sdata) {
+	if (logger.feedletMode == Logger.NULL_MODE
+		|| !AbstractFeedlet.admits(et)) {
+	    return;
+	}
+	Stripe stripe = claim();
+	try {
+	    stripe.feedlet.addEvent(et, idata, ldata, ddata, sdata);
+	} finally {
+	    release(stripe);
+	}
+    }
+
+    public void addEvent(EventRecord record) {
+	if (logger.feedletMode == Logger.NULL_MODE
+		|| !AbstractFeedlet.admits(record.getEventType())) {
+	    return;
+	}
+	Stripe stripe = claim();
+	try {
+	    stripe.feedlet.addEvent(record);
+	} finally {
+	    release(stripe);
+	}
+    }
+
+    /*
+     * Hand each stripe's partial chunk to the logger, waiting for any writer
+     * that holds the stripe to finish its event. The next chunk of a stripe
+     * starts with a thread switch event for the thread that wrote last.
+     */
+    public void flush() {
+	for (int i = 0; i < stripes.length; i++) {
+	    Stripe stripe = stripes[i];
+	    while (!stripe.claimed.compareAndSet(false, true)) {
+		Thread.yield();
+	    }
+	    try {
+		stripe.feedlet.flush();
+	    } finally {
+		release(stripe);
+	    }
+	}
+    }
+
+    /*
+     * Called by the logger to bound the time events wait to be written.
+     * Harvesting does not hold up writers, so the stripes are not claimed.
+     * Each piece harvested, and the rest of the chunk, starts with a thread
+     * switch event, like every other chunk of a stripe.
+     */
+    void harvest() {
+	for (int i = 0; i < stripes.length; i++) {
+	    logger.harvest(stripes[i].feedlet);
+	}
+    }
+
+    public void bindToCurrentThread() {
+	Logger.threadLocalFeedlets.add(this);
+    }
+
+    public boolean isManual() {
+	return logger.feedletMode == Logger.MANUAL_CLOCK_MODE;
+    }
+
+    public boolean setTime(long timeStamp) {
+	if (logger.feedletMode != Logger.MANUAL_CLOCK_MODE) {
+	    return false;
+	}
+	long[] current = (long[]) timeStamps.get();
+	if (current == null) {
+	    current = new long[1];
+	    timeStamps.set(current);
+	}
+	current[0] = timeStamp;
+	return true;
+    }
+
+    public boolean recordThreadId() {
+	// Threads are recorded per event by the thread switch events.
+	return false;
+    }
+
+    public void setThreadId(int tid) {
+	// Threads are recorded per event by the thread switch events.
+    }
+}
@@ -18,6 +18,7 @@ import com.ibm.tuningfork.tracegen.IConversionFeedlet;
 import com.ibm.tuningfork.tracegen.IFeedlet;
 import com.ibm.tuningfork.tracegen.IValueEvent;
 import com.ibm.tuningfork.tracegen.types.EventAttribute;
+import com.ibm.tuningfork.tracegen.types.EventFilter;
 import com.ibm.tuningfork.tracegen.types.EventType;
 import com.ibm.tuningfork.tracegen.types.ScalarType;
 
@@ -58,6 +59,10 @@ final class ValueEvent implements IValueEvent {
 	feedlet.addEvent(timeStamp, valueET, val);
     }
 
+    public void setFilter(EventFilter filter) {
+	valueET.setFilter(filter);
+    }
+
     public String getName() {
 	return name;
     }
@@ -0,0 +1,223 @@
+/*
+ * This file is part of the Tuning Fork Visualization Platform
+ *  (http://sourceforge.net/projects/tuningforkvp)
+ *
+ * Copyright (c) 2005 - 2008 IBM Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ */
+
+package com.ibm.tuningfork.tracegen.types;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A filter that decides which of the events of an EventType are logged. An
+ * event that the filter turns away is not written to the trace. A filter can
+ * turn events of its type off altogether, keep only about one in every N of
+ * them, and limit the rate at which they are logged. It counts the events
+ * offered to it and those it admitted, and the logger records both counts in
+ * the trace, so that an analysis can scale counts back up. All settings may be
+ * changed while events are being logged.
+ *
+ * An event type only pays for filtering once a filter is set on it. Filters
+ * apply to events added one at a time, not to batches added to conversion
+ * feedlets. The start and stop events of a timer are filtered separately,
+ * so filtering them is likely to leave intervals unmatched.
+ *
+ * @see com.ibm.tuningfork.tracegen.types.EventType#setFilter(EventFilter)
+ */
+public final class EventFilter {
+
+    private volatile boolean enabled = true;
+    private volatile int sampleInterval = 1;
+    // The rate limit, as nanoseconds per event, or 0 for no limit
+    private volatile long emissionInterval = 0;
+    // How far ahead of the rate limit a burst of events may get
+    private volatile long burstTolerance = 0;
+    /*
+     * The rate limit is kept as the time at which the next event would be
+     * admitted if events came at exactly the limit, which is equivalent to a
+     * token bucket but needs a single compare-and-set to update.
+     */
+    private final AtomicLong theoreticalArrival = new AtomicLong(0);
+    /*
+     * The offered and admitted counts are striped by thread id, each stripe
+     * on a cache line of its own, so that threads logging events of the same
+     * type do not all increment the same two counters. The counts are summed
+     * when they are read, which happens rarely.
+     */
+    private static final int STRIPES = stripes();
+    private static final int STRIDE = 16; // longs, 128 bytes
+    private static final int OFFERED = 0;
+    private static final int ADMITTED = 1;
+    private final AtomicLongArray counts = new AtomicLongArray(STRIPES
+	    * STRIDE);
+
+    /* The number of processors rounded up to a power of two, at most 64 */
+    private static int stripes() {
+	int processors = Math.min(64, Runtime.getRuntime()
+		.availableProcessors());
+	int n = 1;
+	while (n < processors) {
+	    n <<= 1;
+	}
+	return n;
+    }
+
+    /**
+     * Create a filter that admits every event.
+     */
+    public EventFilter() {
+    }
+
+    /**
+     * Decide whether to log an event, counting it.
+     *
+     * @return True if the event should be logged.
+     */
+    public boolean admit() {
+	int stripe = ((int) Thread.currentThread().getId() & (STRIPES - 1))
+		* STRIDE;
+	long n = counts.incrementAndGet(stripe + OFFERED);
+	if (!enabled) {
+	    return false;
+	}
+	int interval = sampleInterval;
+	if (interval > 1 && n % interval != 0) {
+	    return false;
+	}
+	if (emissionInterval != 0 && !takeToken()) {
+	    return false;
+	}
+	counts.incrementAndGet(stripe + ADMITTED);
+	return true;
+    }
+
+    private boolean takeToken() {
+	long now = System.nanoTime();
+	while (true) {
+	    long arrival = theoreticalArrival.get();
+	    long next = (arrival - now < 0) ? now : arrival;
+	    if (next - now > burstTolerance) {
+		return false;
+	    }
+	    if (theoreticalArrival.compareAndSet(arrival, next
+		    + emissionInterval)) {
+		return true;
+	    }
+	}
+    }
+
+    /**
+     * Are events admitted at all?
+     *
+     * @return True if events are admitted.
+     */
+    public boolean isEnabled() {
+	return enabled;
+    }
+
+    /**
+     * Turn the logging of events of this type on or off.
+     *
+     * @param enabled
+     *                False to turn away every event.
+     */
+    public void setEnabled(boolean enabled) {
+	this.enabled = enabled;
+    }
+
+    /**
+     * How many events are offered for every one that is sampled.
+     *
+     * @return The sample interval.
+     */
+    public int getSampleInterval() {
+	return sampleInterval;
+    }
+
+    /**
+     * Admit only one in every interval events. Events are counted by groups
+     * of threads rather than all together, so the events of a thread that
+     * offers fewer than interval events may all be turned away.
+     *
+     * @param interval
+     *                The sample interval, 1 to admit every event.
+     */
+    public void setSampleInterval(int interval) {
+	if (interval < 1) {
+	    throw new IllegalArgumentException("Sample interval " + interval
+		    + " is less than 1");
+	}
+	this.sampleInterval = interval;
+    }
+
+    /**
+     * The most events admitted per second, or 0 if there is no limit.
+     *
+     * @return The rate limit.
+     */
+    public double getRateLimit() {
+	long interval = emissionInterval;
+	return interval == 0 ? 0 : 1e9 / interval;
+    }
+
+    /**
+     * Admit at most eventsPerSecond events per second on average, turning
+     * away the events that exceed the limit. Up to burst events may be
+     * admitted at once after a quiet period. The limit applies to events that
+     * have passed the sampling.
+     *
+     * @param eventsPerSecond
+     *                The rate limit, or 0 for no limit.
+     * @param burst
+     *                The number of events that may be admitted at once, at
+     *                least 1.
+     */
+    public void setRateLimit(double eventsPerSecond, int burst) {
+	if (eventsPerSecond < 0 || burst < 1) {
+	    throw new IllegalArgumentException("Rate limit " + eventsPerSecond
+		    + " with burst " + burst + " is invalid");
+	}
+	if (eventsPerSecond == 0) {
+	    emissionInterval = 0;
+	    return;
+	}
+	long interval = Math.max(1, Math.round(1e9 / eventsPerSecond));
+	burstTolerance = (burst - 1) * interval;
+	emissionInterval = interval;
+    }
+
+    /**
+     * The number of events that have been offered to the filter.
+     *
+     * @return The number of events offered.
+     */
+    public long getOfferedCount() {
+	return sum(OFFERED);
+    }
+
+    /**
+     * The number of events that the filter has admitted.
+     *
+     * @return The number of events admitted.
+     */
+    public long getAdmittedCount() {
+	return sum(ADMITTED);
+    }
+
+    private long sum(int counter) {
+	long total = 0;
+	for (int i = 0; i < STRIPES; i++) {
+	    total += counts.get(i * STRIDE + counter);
+	}
+	return total;
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * This file is part of the Tuning Fork Visualization Platform
+ *  (http://sourceforge.net/projects/tuningforkvp)
+ *
+ * Copyright (c) 2005 - 2008 IBM Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ */
+
+package com.ibm.tuningfork.tracegen.types;
+
+/**
+ * A reusable holder for the attribute values of an event, for event types
+ * with several attributes. The holder is made once for its event type, its
+ * values are set before each event and it is then passed to
+ * IFeedlet.addEvent(EventRecord). Unlike the addEvent that takes arrays,
+ * this allocates nothing per event, and the space the event needs is
+ * worked out from its type rather than from the arrays.
+ *
+ * An EventRecord is not thread safe, so each thread should have its own.
+ *
+ * @see com.ibm.tuningfork.tracegen.IFeedlet#addEvent(EventRecord)
+ */
+public final class EventRecord {
+
+    private final EventType eventType;
+    private final int[] ints;
+    private final long[] longs;
+    private final double[] doubles;
+    private final String[] strings;
+
+    /**
+     * Create a holder for the attributes of events of the given type.
+     *
+     * @param eventType
+     *                The type of the events.
+     */
+    public EventRecord(EventType eventType) {
+	this.eventType = eventType;
+	ints = new int[eventType.getNumberOfInts()];
+	longs = new long[eventType.getNumberOfLongs()];
+	doubles = new double[eventType.getNumberOfDoubles()];
+	strings = new String[eventType.getNumberOfStrings()];
+    }
+
+    /**
+     * Return the type of the events.
+     *
+     * @return The event type.
+     */
+    public EventType getEventType() {
+	return eventType;
+    }
+
+    /**
+     * Set the value of an int attribute.
+     *
+     * @param i
+     *                The index of the attribute among the int attributes.
+     * @param value
+     *                The value.
+     */
+    public void setInt(int i, int value) {
+	ints[i] = value;
+    }
+
+    /**
+     * Set the value of a long attribute.
+     *
+     * @param i
+     *                The index of the attribute among the long attributes.
+     * @param value
+     *                The value.
+     */
+    public void setLong(int i, long value) {
+	longs[i] = value;
+    }
+
+    /**
+     * Set the value of a double attribute.
+     *
+     * @param i
+     *                The index of the attribute among the double attributes.
+     * @param value
+     *                The value.
+     */
+    public void setDouble(int i, double value) {
+	doubles[i] = value;
+    }
+
+    /**
+     * Set the value of a String attribute.
+     *
+     * @param i
+     *                The index of the attribute among the String attributes.
+     * @param value
+     *                The value.
+     */
+    public void setString(int i, String value) {
+	strings[i] = value;
+    }
+
+    /*
+     * The values, for the feedlets and event chunks; they are not copied.
+     */
+    public int[] getInts() {
+	return ints;
+    }
+
+    public long[] getLongs() {
+	return longs;
+    }
+
+    public double[] getDoubles() {
+	return doubles;
+    }
+
+    public String[] getStrings() {
+	return strings;
+    }
+}
@@ -14,6 +14,8 @@
 
 package com.ibm.tuningfork.tracegen.types;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * An EventType describes the types and attributes of the data values associated
  * with a particular event index.
@@ -28,8 +30,10 @@ public final class EventType {
     private final int numberOfLongs;
     private final int numberOfDoubles;
     private final int numberOfStrings;
+    private final int fixedAttributeSize;
+    private volatile EventFilter filter;
 
-    private static int currentIndex = 0;
+    private static final AtomicInteger currentIndex = new AtomicInteger(0);
 
     /**
      * Does this event type accept the supplied number of attributes of each
@@ -77,8 +81,8 @@ public final class EventType {
 	this(name, description, new EventAttribute[] { attribute });
     }
 
-    private static synchronized int getNextIndex() {
-	return currentIndex++;
+    private static int getNextIndex() {
+	return currentIndex.getAndIncrement();
     }
 
     /**
@@ -122,6 +126,7 @@ public final class EventType {
 	numberOfLongs = lc;
 	numberOfDoubles = dc;
 	numberOfStrings = sc;
+	fixedAttributeSize = 4 * ic + 8 * lc + 8 * dc;
     }
 
     /**
@@ -204,6 +209,17 @@ public final class EventType {
 	return numberOfStrings;
     }
 
+    /**
+     * Return the number of bytes taken by the int, long and double
+     * attributes of an event of this type, written at full width. Only the
+     * String attributes, if any, vary in size.
+     *
+     * @return The size of the fixed size attributes.
+     */
+    public final int getFixedAttributeSize() {
+	return fixedAttributeSize;
+    }
+
     /**
      * Return the ith attribute of this event type.
      *
@@ -214,4 +230,24 @@ public final class EventType {
 	return attributes[i];
     }
 
+    /**
+     * Return the filter that decides which events of this type are logged.
+     *
+     * @return The filter, or null if every event is logged.
+     */
+    public final EventFilter getFilter() {
+	return filter;
+    }
+
+    /**
+     * Decide which events of this type are logged by a filter. The filter
+     * can be replaced or removed at any time.
+     *
+     * @param filter
+     *                The filter, or null to log every event.
+     */
+    public final void setFilter(EventFilter filter) {
+	this.filter = filter;
+    }
+
 }
@@ -0,0 +1,253 @@
+/*
+ * This file is part of the Tuning Fork Visualization Platform
+ *  (http://sourceforge.net/projects/tuningforkvp)
+ *
+ * Copyright (c) 2005 - 2008 IBM Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ */
+
+package com.ibm.tuningfork.tracereader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A view of the event a TraceReader is positioned on. A reader has a single
+ * cursor that it moves from event to event, decoding each event in place, so
+ * reading events allocates nothing. Only getString creates an object.
+ *
+ * The values returned are only meaningful during the TraceVisitor.visitEvent
+ * call that received the cursor.
+ */
+public final class EventCursor {
+
+    /* See CompactEventChunk */
+    private static final int INLINE_STRING = 0;
+
+    private final TraceReader reader;
+
+    // The chunk being read
+    private ByteBuffer buffer;
+    private int position;
+    private int end;
+    private boolean compact;
+    private int feedletIndex;
+    private int sequenceNumber;
+
+    // The current event; strings are decoded on demand
+    private long timeStamp;
+    private TraceEventType eventType;
+    private int[] ints = new int[4];
+    private long[] longs = new long[4];
+    private double[] doubles = new double[4];
+    private int[] stringPositions = new int[4];
+
+    EventCursor(TraceReader reader) {
+	this.reader = reader;
+    }
+
+    /*
+     * Position the cursor before the first event of the chunk whose events
+     * occupy buffer from start to end.
+     */
+    void startChunk(ByteBuffer buffer, int start, int end, boolean compact,
+	    int feedletIndex, int sequenceNumber) {
+	this.buffer = buffer;
+	this.position = start;
+	this.end = end;
+	this.compact = compact;
+	this.feedletIndex = feedletIndex;
+	this.sequenceNumber = sequenceNumber;
+	this.timeStamp = 0;
+    }
+
+    /*
+     * Move to the next event of the chunk, returning false at the end.
+     */
+    boolean next() throws IOException {
+	if (position >= end) {
+	    return false;
+	}
+	int typeIndex;
+	if (compact) {
+	    timeStamp += unzigzag(readVarLong());
+	    typeIndex = (int) readVarLong();
+	} else {
+	    timeStamp = buffer.getLong(position);
+	    typeIndex = buffer.getInt(position + 8);
+	    position += 12;
+	}
+	eventType = reader.getEventType(typeIndex);
+	if (eventType == null) {
+	    throw new IOException("Event of undefined type " + typeIndex
+		    + " in feedlet " + feedletIndex);
+	}
+	ensureCapacity();
+	for (int i = 0; i < eventType.getNumberOfInts(); i++) {
+	    if (compact) {
+		ints[i] = (int) unzigzag(readVarLong());
+	    } else {
+		ints[i] = buffer.getInt(position);
+		position += 4;
+	    }
+	}
+	for (int i = 0; i < eventType.getNumberOfLongs(); i++) {
+	    if (compact) {
+		longs[i] = unzigzag(readVarLong());
+	    } else {
+		longs[i] = buffer.getLong(position);
+		position += 8;
+	    }
+	}
+	for (int i = 0; i < eventType.getNumberOfDoubles(); i++) {
+	    doubles[i] = buffer.getDouble(position);
+	    position += 8;
+	}
+	for (int i = 0; i < eventType.getNumberOfStrings(); i++) {
+	    if (compact) {
+		int reference = (int) readVarLong();
+		if (reference != INLINE_STRING) {
+		    if (reader.getTableString(reference - 1) == null) {
+			throw new IOException("Event of type "
+				+ eventType.getName()
+				+ " refers to undefined string "
+				+ (reference - 1));
+		    }
+		    // Table references are kept as negative positions
+		    stringPositions[i] = -reference;
+		    continue;
+		}
+	    }
+	    stringPositions[i] = position;
+	    position += 4 + buffer.getInt(position);
+	}
+	if (position > end) {
+	    throw new IOException("Event of type " + eventType.getName()
+		    + " overruns its chunk in feedlet " + feedletIndex);
+	}
+	return true;
+    }
+
+    private void ensureCapacity() {
+	if (ints.length < eventType.getNumberOfInts()) {
+	    ints = new int[eventType.getNumberOfInts()];
+	}
+	if (longs.length < eventType.getNumberOfLongs()) {
+	    longs = new long[eventType.getNumberOfLongs()];
+	}
+	if (doubles.length < eventType.getNumberOfDoubles()) {
+	    doubles = new double[eventType.getNumberOfDoubles()];
+	}
+	if (stringPositions.length < eventType.getNumberOfStrings()) {
+	    stringPositions = new int[eventType.getNumberOfStrings()];
+	}
+    }
+
+    private long readVarLong() {
+	long value = 0;
+	int shift = 0;
+	while (true) {
+	    byte b = buffer.get(position++);
+	    value |= (long) (b & 0x7f) << shift;
+	    if (b >= 0) {
+		return value;
+	    }
+	    shift += 7;
+	}
+    }
+
+    private static long unzigzag(long value) {
+	return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * @return The index of the feedlet the event belongs to.
+     */
+    public int getFeedletIndex() {
+	return feedletIndex;
+    }
+
+    /**
+     * @return The sequence number of the chunk holding the event.
+     */
+    public int getSequenceNumber() {
+	return sequenceNumber;
+    }
+
+    /**
+     * @return The time stamp of the event, in ticks.
+     */
+    public long getTimeStamp() {
+	return timeStamp;
+    }
+
+    /**
+     * @return The type of the event.
+     */
+    public TraceEventType getEventType() {
+	return eventType;
+    }
+
+    /**
+     * @param i
+     *                The position of the attribute among the int attributes.
+     * @return The value of the attribute.
+     */
+    public int getInt(int i) {
+	checkIndex(i, eventType.getNumberOfInts());
+	return ints[i];
+    }
+
+    /**
+     * @param i
+     *                The position of the attribute among the long attributes.
+     * @return The value of the attribute.
+     */
+    public long getLong(int i) {
+	checkIndex(i, eventType.getNumberOfLongs());
+	return longs[i];
+    }
+
+    /**
+     * @param i
+     *                The position of the attribute among the double
+     *                attributes.
+     * @return The value of the attribute.
+     */
+    public double getDouble(int i) {
+	checkIndex(i, eventType.getNumberOfDoubles());
+	return doubles[i];
+    }
+
+    /**
+     * Decode a String attribute. Unlike the other accessors this creates a
+     * new String on each call, unless the event refers to the feed's string
+     * table.
+     *
+     * @param i
+     *                The position of the attribute among the String
+     *                attributes.
+     * @return The value of the attribute.
+     */
+    public String getString(int i) {
+	checkIndex(i, eventType.getNumberOfStrings());
+	if (stringPositions[i] < 0) {
+	    return reader.getTableString(-stringPositions[i] - 1);
+	}
+	return reader.readString(buffer, stringPositions[i]);
+    }
+
+    private void checkIndex(int i, int limit) {
+	if (i < 0 || i >= limit) {
+	    throw new IndexOutOfBoundsException("Event type "
+		    + eventType.getName() + " has " + limit
+		    + " attributes of that type, not " + (i + 1));
+	}
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * This file is part of the Tuning Fork Visualization Platform
+ *  (http://sourceforge.net/projects/tuningforkvp)
+ *
+ * Copyright (c) 2005 - 2008 IBM Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ */
+
+package com.ibm.tuningfork.tracereader;
+
+/**
+ * An event type as described in a feed. The attributes of an event type are
+ * always ordered ints, then longs, then doubles, then Strings.
+ */
+public final class TraceEventType {
+
+    private final int index;
+    private final String name;
+    private final String description;
+    private final int numberOfInts;
+    private final int numberOfLongs;
+    private final int numberOfDoubles;
+    private final int numberOfStrings;
+    private final String[] attributeNames;
+    private final String[] attributeDescriptions;
+
+    TraceEventType(int index, String name, String description,
+	    int numberOfInts, int numberOfLongs, int numberOfDoubles,
+	    int numberOfStrings, String[] attributeNames,
+	    String[] attributeDescriptions) {
+	this.index = index;
+	this.name = name;
+	this.description = description;
+	this.numberOfInts = numberOfInts;
+	this.numberOfLongs = numberOfLongs;
+	this.numberOfDoubles = numberOfDoubles;
+	this.numberOfStrings = numberOfStrings;
+	this.attributeNames = attributeNames;
+	this.attributeDescriptions = attributeDescriptions;
+    }
+
+    /**
+     * @return The index by which events refer to this type.
+     */
+    public int getIndex() {
+	return index;
+    }
+
+    /**
+     * @return The name of the event type.
+     */
+    public String getName() {
+	return name;
+    }
+
+    /**
+     * @return The description of the event type.
+     */
+    public String getDescription() {
+	return description;
+    }
+
+    /**
+     * @return The number of int attributes.
+     */
+    public int getNumberOfInts() {
+	return numberOfInts;
+    }
+
+    /**
+     * @return The number of long attributes.
+     */
+    public int getNumberOfLongs() {
+	return numberOfLongs;
+    }
+
+    /**
+     * @return The number of double attributes.
+     */
+    public int getNumberOfDoubles() {
+	return numberOfDoubles;
+    }
+
+    /**
+     * @return The number of String attributes.
+     */
+    public int getNumberOfStrings() {
+	return numberOfStrings;
+    }
+
+    /**
+     * @return The total number of attributes.
+     */
+    public int getNumberOfAttributes() {
+	return attributeNames.length;
+    }
+
+    /**
+     * @param i
+     *                The position of the attribute among all attributes.
+     * @return The name of the attribute.
+     */
+    public String getAttributeName(int i) {
+	return attributeNames[i];
+    }
+
+    /**
+     * @param i
+     *                The position of the attribute among all attributes.
+     * @return The description of the attribute.
+     */
+    public String getAttributeDescription(int i) {
+	return attributeDescriptions[i];
+    }
+
+    public String toString() {
+	return name;
+    }
+}
@@ -0,0 +1,422 @@
+/*
+ * This file is part of the Tuning Fork Visualization Platform
+ *  (http://sourceforge.net/projects/tuningforkvp)
+ *
+ * Copyright (c) 2005 - 2008 IBM Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ */
+
+package com.ibm.tuningfork.tracereader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import com.ibm.tuningfork.tracegen.chunk.CompactEventChunk;
+import com.ibm.tuningfork.tracegen.chunk.CompressedChunk;
+import com.ibm.tuningfork.tracegen.chunk.EventChunk;
+import com.ibm.tuningfork.tracegen.chunk.EventTypeChunk;
+import com.ibm.tuningfork.tracegen.chunk.EventTypeSpaceChunk;
+import com.ibm.tuningfork.tracegen.chunk.FeedletChunk;
+import com.ibm.tuningfork.tracegen.chunk.PaddingChunk;
+import com.ibm.tuningfork.tracegen.chunk.PropertyTableChunk;
+import com.ibm.tuningfork.tracegen.chunk.StringTableChunk;
+
+/**
+ * Reads a feed written by a Logger to a file, including ring files, and
+ * passes its contents to a TraceVisitor.
+ *
+ * The file is read through a window that is memory-mapped and slid along the
+ * file, so feeds much larger than the address space available to Java can be
+ * read, and events are decoded in place by a single reusable EventCursor.
+ * Compact and compressed event chunks are decoded transparently.
+ *
+ * A TraceReader is not thread safe.
+ *
+ * @see com.ibm.tuningfork.tracereader.TraceVisitor
+ */
+public final class TraceReader {
+
+    /**
+     * The size of the mapped window used unless another is requested.
+     */
+    public static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+
+    private static final int FEED_MAGIC_WORD_1 = 0xcafefeed;
+    private static final int FEED_MAGIC_WORD_2 = 0x2bad4dfb;
+    private static final int FEED_HEADER_SIZE = 20;
+    private static final int CHUNK_MAGIC_WORD_1 = 0xdeadbeef;
+    private static final int CHUNK_MAGIC_WORD_2 = 0xcafebabe;
+    private static final int CHUNK_HEADER_SIZE = PaddingChunk.HEADER_SIZE;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long fileSize;
+    private final int windowSize;
+    private ByteBuffer window;
+    private long windowStart;
+
+    private TraceEventType[] eventTypes = new TraceEventType[64];
+    private String[] strings = new String[64];
+    private final EventCursor cursor = new EventCursor(this);
+    private char[] chars = new char[256];
+    private int stringEnd;
+
+    // For compressed chunks
+    private Inflater inflater;
+    private byte[] compressed;
+    private byte[] inflated;
+    private ByteBuffer inflatedBuffer;
+
+    /**
+     * Open a feed for reading.
+     *
+     * @param file
+     *                The file holding the feed.
+     * @throws IOException
+     *                 If the file cannot be opened.
+     */
+    public TraceReader(File file) throws IOException {
+	this(file, DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * Open a feed for reading through a mapped window of the given size.
+     *
+     * @param file
+     *                The file holding the feed.
+     * @param windowSize
+     *                The number of bytes of the file mapped at once. Chunks
+     *                larger than this are mapped whole.
+     * @throws IOException
+     *                 If the file cannot be opened.
+     */
+    public TraceReader(File file, int windowSize) throws IOException {
+	if (windowSize < CHUNK_HEADER_SIZE) {
+	    throw new IllegalArgumentException("Window size " + windowSize
+		    + " is too small");
+	}
+	this.file = new RandomAccessFile(file, "r");
+	this.channel = this.file.getChannel();
+	this.fileSize = channel.size();
+	this.windowSize = windowSize;
+    }
+
+    /**
+     * Read the whole feed, passing its contents to the visitor in order.
+     *
+     * @param visitor
+     *                The visitor to receive the contents of the feed.
+     * @throws IOException
+     *                 If the file cannot be read or is not a well-formed feed.
+     */
+    public void read(TraceVisitor visitor) throws IOException {
+	if (fileSize < FEED_HEADER_SIZE) {
+	    throw new IOException("Too short to be a feed");
+	}
+	ByteBuffer buffer = map(0, FEED_HEADER_SIZE);
+	if (buffer.getInt(0) != FEED_MAGIC_WORD_1
+		|| buffer.getInt(4) != FEED_MAGIC_WORD_2) {
+	    throw new IOException("Not a feed: bad magic number");
+	}
+	visitor.visitFeedHeader(buffer.getInt(8), buffer.getInt(12));
+
+	long position = FEED_HEADER_SIZE;
+	while (position + CHUNK_HEADER_SIZE <= fileSize) {
+	    buffer = map(position, CHUNK_HEADER_SIZE);
+	    int offset = (int) (position - windowStart);
+	    if (buffer.getInt(offset) != CHUNK_MAGIC_WORD_1
+		    || buffer.getInt(offset + 4) != CHUNK_MAGIC_WORD_2) {
+		throw new IOException("Bad chunk magic number at offset "
+			+ position);
+	    }
+	    int length = buffer.getInt(offset + 8);
+	    int type = buffer.getInt(offset + 12);
+	    long end = position + CHUNK_HEADER_SIZE + length;
+	    if (length < 0 || end > fileSize) {
+		throw new IOException("Chunk at offset " + position
+			+ " runs past the end of the feed");
+	    }
+	    buffer = map(position, CHUNK_HEADER_SIZE + length);
+	    offset = (int) (position - windowStart);
+	    readChunk(buffer, offset, type, length, visitor);
+	    position = end;
+	}
+	if (position != fileSize) {
+	    throw new IOException("Feed ends part way through a chunk header");
+	}
+    }
+
+    /**
+     * Release the file. The reader cannot be used afterwards.
+     *
+     * @throws IOException
+     *                 If the file cannot be closed.
+     */
+    public void close() throws IOException {
+	window = null;
+	if (inflater != null) {
+	    inflater.end();
+	}
+	channel.close();
+	file.close();
+    }
+
+    /*
+     * Return a window holding the length bytes at position in the file,
+     * mapping a new one if the current window does not.
+     */
+    private ByteBuffer map(long position, int length) throws IOException {
+	if (window != null && position >= windowStart
+		&& position + length <= windowStart + window.capacity()) {
+	    return window;
+	}
+	long size = Math.min(Math.max(windowSize, length), fileSize - position);
+	window = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+	windowStart = position;
+	return window;
+    }
+
+    private void readChunk(ByteBuffer buffer, int offset, int type,
+	    int length, TraceVisitor visitor) throws IOException {
+	int body = offset + CHUNK_HEADER_SIZE;
+	int end = body + length;
+	switch (type) {
+	case PropertyTableChunk.PROPERTY_TABLE_ID:
+	    readProperties(buffer, body, visitor);
+	    break;
+	case FeedletChunk.FEEDLET_TYPE_ID:
+	    readFeedlets(buffer, body, visitor);
+	    break;
+	case EventTypeSpaceChunk.EVENT_TYPE_SPACE_ID:
+	    String name = readString(buffer, body);
+	    visitor.visitEventTypeSpace(name, buffer.getInt(stringEnd));
+	    break;
+	case EventTypeChunk.EVENT_TYPE_ID:
+	    readEventTypes(buffer, body, visitor);
+	    break;
+	case StringTableChunk.STRING_TABLE_ID:
+	    readStrings(buffer, body, visitor);
+	    break;
+	case EventChunk.EVENT_TYPE_ID:
+	case CompactEventChunk.COMPACT_EVENT_TYPE_ID:
+	    int feedletIndex = buffer.getInt(body);
+	    int sequenceNumber = buffer.getInt(body + 4);
+	    if (visitor.visitEventChunk(feedletIndex, sequenceNumber)) {
+		cursor.startChunk(buffer, body + 8, end,
+			type == CompactEventChunk.COMPACT_EVENT_TYPE_ID,
+			feedletIndex, sequenceNumber);
+		while (cursor.next()) {
+		    visitor.visitEvent(cursor);
+		}
+	    }
+	    break;
+	case CompressedChunk.COMPRESSED_TYPE_ID:
+	    readCompressed(buffer, body, end, visitor);
+	    break;
+	case PaddingChunk.PADDING_TYPE_ID:
+	    break;
+	default:
+	    visitor.visitUnknownChunk(type, length);
+	    break;
+	}
+    }
+
+    private void readProperties(ByteBuffer buffer, int position,
+	    TraceVisitor visitor) {
+	int count = buffer.getInt(position);
+	position += 4;
+	for (int i = 0; i < count; i++) {
+	    String key = readString(buffer, position);
+	    String value = readString(buffer, stringEnd);
+	    position = stringEnd;
+	    visitor.visitProperty(key, value);
+	}
+    }
+
+    private void readFeedlets(ByteBuffer buffer, int position,
+	    TraceVisitor visitor) throws IOException {
+	int count = buffer.getInt(position);
+	position += 4;
+	for (int i = 0; i < count; i++) {
+	    int operation = buffer.getInt(position);
+	    int feedletIndex = buffer.getInt(position + 4);
+	    position += 8;
+	    switch (operation) {
+	    case FeedletChunk.FEEDLET_ADD_OPERATION:
+		visitor.visitFeedletAdded(feedletIndex);
+		break;
+	    case FeedletChunk.FEEDLET_REMOVE_OPERATION:
+		visitor.visitFeedletRemoved(feedletIndex);
+		break;
+	    case FeedletChunk.FEEDLET_DESCRIBE_OPERATION:
+		String key = readString(buffer, position);
+		String value = readString(buffer, stringEnd);
+		position = stringEnd;
+		visitor.visitFeedletProperty(feedletIndex, key, value);
+		break;
+	    default:
+		throw new IOException("Unknown feedlet operation " + operation);
+	    }
+	}
+    }
+
+    private void readEventTypes(ByteBuffer buffer, int position,
+	    TraceVisitor visitor) {
+	int count = buffer.getInt(position);
+	position += 4;
+	for (int i = 0; i < count; i++) {
+	    int index = buffer.getInt(position);
+	    String name = readString(buffer, position + 4);
+	    String description = readString(buffer, stringEnd);
+	    position = stringEnd;
+	    int numberOfInts = buffer.getInt(position);
+	    int numberOfLongs = buffer.getInt(position + 4);
+	    int numberOfDoubles = buffer.getInt(position + 8);
+	    int numberOfStrings = buffer.getInt(position + 12);
+	    position += 16;
+	    int numberOfAttributes = numberOfInts + numberOfLongs
+		    + numberOfDoubles + numberOfStrings;
+	    String[] names = new String[numberOfAttributes];
+	    String[] descriptions = new String[numberOfAttributes];
+	    for (int j = 0; j < numberOfAttributes; j++) {
+		names[j] = readString(buffer, position);
+		descriptions[j] = readString(buffer, stringEnd);
+		position = stringEnd;
+	    }
+	    TraceEventType eventType = new TraceEventType(index, name,
+		    description, numberOfInts, numberOfLongs, numberOfDoubles,
+		    numberOfStrings, names, descriptions);
+	    if (index >= eventTypes.length) {
+		TraceEventType[] grown = new TraceEventType[Math.max(index + 1,
+			eventTypes.length * 2)];
+		System.arraycopy(eventTypes, 0, grown, 0, eventTypes.length);
+		eventTypes = grown;
+	    }
+	    eventTypes[index] = eventType;
+	    visitor.visitEventType(eventType);
+	}
+    }
+
+    private void readStrings(ByteBuffer buffer, int position,
+	    TraceVisitor visitor) {
+	int count = buffer.getInt(position);
+	position += 4;
+	for (int i = 0; i < count; i++) {
+	    int index = buffer.getInt(position);
+	    String value = readString(buffer, position + 4);
+	    position = stringEnd;
+	    if (index >= strings.length) {
+		String[] grown = new String[Math.max(index + 1,
+			strings.length * 2)];
+		System.arraycopy(strings, 0, grown, 0, strings.length);
+		strings = grown;
+	    }
+	    strings[index] = value;
+	    visitor.visitString(index, value);
+	}
+    }
+
+    /*
+     * Inflate the chunk held by a compressed chunk and read it in turn.
+     */
+    private void readCompressed(ByteBuffer buffer, int position, int end,
+	    TraceVisitor visitor) throws IOException {
+	int length = buffer.getInt(position);
+	position += 4;
+	if (inflater == null) {
+	    inflater = new Inflater();
+	}
+	if (compressed == null || compressed.length < end - position) {
+	    compressed = new byte[Math.max(end - position,
+		    EventChunk.DEFAULT_EVENT_CHUNK_SIZE)];
+	}
+	if (inflated == null || inflated.length < length) {
+	    inflated = new byte[Math.max(length,
+		    EventChunk.DEFAULT_EVENT_CHUNK_SIZE)];
+	    inflatedBuffer = ByteBuffer.wrap(inflated);
+	}
+	ByteBuffer source = buffer.duplicate();
+	source.position(position);
+	source.get(compressed, 0, end - position);
+	inflater.reset();
+	inflater.setInput(compressed, 0, end - position);
+	try {
+	    int done = 0;
+	    while (done < length && !inflater.finished()) {
+		int n = inflater.inflate(inflated, done, length - done);
+		if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+		    break;
+		}
+		done += n;
+	    }
+	    if (done != length) {
+		throw new IOException("Compressed chunk is truncated");
+	    }
+	} catch (DataFormatException e) {
+	    throw new IOException("Compressed chunk is corrupt: "
+		    + e.getMessage());
+	}
+	if (length < CHUNK_HEADER_SIZE
+		|| inflatedBuffer.getInt(0) != CHUNK_MAGIC_WORD_1
+		|| inflatedBuffer.getInt(4) != CHUNK_MAGIC_WORD_2
+		|| inflatedBuffer.getInt(8) != length - CHUNK_HEADER_SIZE) {
+	    throw new IOException("Compressed chunk does not hold a chunk");
+	}
+	readChunk(inflatedBuffer, 0, inflatedBuffer.getInt(12), length
+		- CHUNK_HEADER_SIZE, visitor);
+    }
+
+    TraceEventType getEventType(int index) {
+	if (index < 0 || index >= eventTypes.length) {
+	    return null;
+	}
+	return eventTypes[index];
+    }
+
+    String getTableString(int index) {
+	if (index < 0 || index >= strings.length) {
+	    return null;
+	}
+	return strings[index];
+    }
+
+    /*
+     * Decode the string at position, the inverse of RawChunk.addString, and
+     * leave the position that follows it in stringEnd.
+     */
+    String readString(ByteBuffer buffer, int position) {
+	int length = buffer.getInt(position);
+	position += 4;
+	int end = position + length;
+	if (chars.length < length) {
+	    chars = new char[length];
+	}
+	int n = 0;
+	while (position < end) {
+	    int b = buffer.get(position++) & 0xff;
+	    if (b < 0x80) {
+		chars[n++] = (char) b;
+	    } else if (b < 0xe0) {
+		int b2 = buffer.get(position++) & 0x3f;
+		chars[n++] = (char) (((b & 0x1f) << 6) | b2);
+	    } else {
+		int b2 = buffer.get(position++) & 0x3f;
+		int b3 = buffer.get(position++) & 0x3f;
+		chars[n++] = (char) (((b & 0x0f) << 12) | (b2 << 6) | b3);
+	    }
+	}
+	stringEnd = end;
+	return new String(chars, 0, n);
+    }
+}
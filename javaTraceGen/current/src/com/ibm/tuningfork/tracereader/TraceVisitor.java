@@ -0,0 +1,145 @@
+/*
+ * This file is part of the Tuning Fork Visualization Platform
+ *  (http://sourceforge.net/projects/tuningforkvp)
+ *
+ * Copyright (c) 2005 - 2008 IBM Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     IBM Corporation - initial API and implementation
+ */
+
+package com.ibm.tuningfork.tracereader;
+
+/**
+ * Receives the contents of a feed from a TraceReader, in the order in which
+ * they appear in the feed. Every method does nothing by default, so a visitor
+ * need only override the methods for the parts of the feed it is interested
+ * in.
+ *
+ * @see com.ibm.tuningfork.tracereader.TraceReader
+ */
+public abstract class TraceVisitor {
+
+    /**
+     * Called once, for the feed header at the start of the feed.
+     *
+     * @param majorVersion
+     *                The major version of the feed format.
+     * @param minorVersion
+     *                The minor version of the feed format.
+     */
+    public void visitFeedHeader(int majorVersion, int minorVersion) {
+    }
+
+    /**
+     * Called for each property of the feed.
+     *
+     * @param key
+     *                The name of the property.
+     * @param value
+     *                The value of the property.
+     */
+    public void visitProperty(String key, String value) {
+    }
+
+    /**
+     * Called for each event type space used by the feed.
+     *
+     * @param name
+     *                The name of the event type space.
+     * @param version
+     *                The version of the event type space.
+     */
+    public void visitEventTypeSpace(String name, int version) {
+    }
+
+    /**
+     * Called when a feedlet is added to the feed.
+     *
+     * @param feedletIndex
+     *                The index of the new feedlet.
+     */
+    public void visitFeedletAdded(int feedletIndex) {
+    }
+
+    /**
+     * Called when a feedlet is removed from the feed.
+     *
+     * @param feedletIndex
+     *                The index of the feedlet.
+     */
+    public void visitFeedletRemoved(int feedletIndex) {
+    }
+
+    /**
+     * Called for each property of a feedlet, such as its name and description.
+     *
+     * @param feedletIndex
+     *                The index of the feedlet.
+     * @param key
+     *                The name of the property.
+     * @param value
+     *                The value of the property.
+     */
+    public void visitFeedletProperty(int feedletIndex, String key, String value) {
+    }
+
+    /**
+     * Called for each event type, before any event of that type.
+     *
+     * @param eventType
+     *                The event type.
+     */
+    public void visitEventType(TraceEventType eventType) {
+    }
+
+    /**
+     * Called for each entry of the feed's string table.
+     *
+     * @param index
+     *                The index of the string.
+     * @param value
+     *                The string.
+     */
+    public void visitString(int index, String value) {
+    }
+
+    /**
+     * Called at the start of each chunk of events.
+     *
+     * @param feedletIndex
+     *                The index of the feedlet the events belong to.
+     * @param sequenceNumber
+     *                The position of the chunk among the feedlet's chunks.
+     * @return True to visit the events of the chunk, false to skip them.
+     */
+    public boolean visitEventChunk(int feedletIndex, int sequenceNumber) {
+	return true;
+    }
+
+    /**
+     * Called for each event. The cursor is reused for every event, so it must
+     * not be kept beyond the call.
+     *
+     * @param event
+     *                The cursor positioned on the event.
+     */
+    public void visitEvent(EventCursor event) {
+    }
+
+    /**
+     * Called for each chunk of a type this reader does not understand. The
+     * chunk is skipped.
+     *
+     * @param chunkType
+     *                The type of the chunk.
+     * @param length
+     *                The length of the chunk's body in bytes.
+     */
+    public void visitUnknownChunk(int chunkType, int length) {
+    }
+}